@@ -24,17 +24,20 @@ import org.jitsi.utils.concurrent.*;
 import org.jitsi.utils.logging2.*;
 import org.jxmpp.jid.*;
 
+import java.lang.invoke.*;
 import java.lang.ref.*;
 import java.util.*;
-
-import static org.apache.commons.lang3.StringUtils.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /**
  * Implements a {@link RecurringRunnable} which periodically generates a
- * statistics. The statistics is obtained from the two abstract methods
- * which are implemented in classes using this
- * <tt>AbstractStatsPeriodicRunnable</tt>. One method for received statistics
- * and one method for send statistics, all grouped by endpoint ID.
+ * statistics. The statistics is either obtained from
+ * {@link #getEndpointStats()}, implemented in classes using this
+ * <tt>AbstractStatsPeriodicRunnable</tt>, or pushed by the producer through
+ * the handles returned by {@link #registerSsrc(String, long, String, boolean)},
+ * all grouped by endpoint ID.
  *
  * @author Damian Minkov
  */
@@ -47,10 +50,92 @@ public abstract class AbstractStatsPeriodicRunnable<T>
     private final static Logger logger = new LoggerImpl(AbstractStatsPeriodicRunnable.class.getName());
 
     /**
-     * The user info object used to identify the reports to callstats. Holds
-     * the conference, the initiatorID and user callstats ID.
+     * The estimated size in bytes of a single report, not counting the
+     * conference and initiator IDs.
+     */
+    private static final int ESTIMATED_REPORT_SIZE = 400;
+
+    /**
+     * The estimated memory used by a conference without streams, in bytes.
+     */
+    private static final int ESTIMATED_CONFERENCE_SIZE = 2048;
+
+    /**
+     * The estimated memory used by a single stream, in bytes.
+     */
+    private static final int ESTIMATED_STREAM_SIZE = 256;
+
+    /**
+     * The handle of {@link #lifecycle}, for compare and set.
+     */
+    private static final VarHandle LIFECYCLE;
+
+    static
+    {
+        try
+        {
+            LIFECYCLE = MethodHandles.lookup().findVarHandle(
+                AbstractStatsPeriodicRunnable.class,
+                "lifecycle",
+                Lifecycle.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The states of the reporting of a conference to callstats.
+     * <pre>
+     * PENDING -> ACTIVE -> TERMINATING -> TERMINATED
+     *         -----------> TERMINATING
+     * </pre>
+     */
+    public enum LifecycleState
+    {
+        /**
+         * The conference is not set up in callstats yet; only the local
+         * sinks receive its stats.
+         */
+        PENDING,
+
+        /**
+         * The conference is set up in callstats and its stats are reported.
+         */
+        ACTIVE,
+
+        /**
+         * The conference is stopping; nothing is reported anymore, the
+         * reports in progress are being waited for.
+         */
+        TERMINATING,
+
+        /**
+         * The conference was terminated.
+         */
+        TERMINATED
+    }
+
+    /**
+     * The lifecycle state, and the user info object used to identify the
+     * reports to callstats, which holds the conference, the initiatorID and
+     * user callstats ID. Replaced as a whole, only through compare and set
+     * once the conference is started.
      */
-    private UserInfo userInfo = null;
+    private volatile Lifecycle lifecycle = Lifecycle.PENDING;
+
+    /**
+     * The number of reporting periods collecting or sending stats, waited for
+     * by {@link #stop()} and {@link #terminate()}.
+     */
+    private final AtomicInteger reportsInFlight = new AtomicInteger();
+
+    /**
+     * The thread waiting in {@link #stop()} for the reports in flight, woken
+     * up by the last of them.
+     */
+    private volatile Thread stopWaiter = null;
 
     /**
      * The id which identifies the current initiator.
@@ -61,18 +146,117 @@ public abstract class AbstractStatsPeriodicRunnable<T>
      * The site id which identifies the current initiator.
      * If there is no site id, default value is '/'.
      */
-    private String initiatorSiteID = "/";
+    private final String initiatorSiteID;
 
     /**
      * The conference ID to use when reporting stats.
      */
     private final String conferenceID;
 
+    /**
+     * The shared instances of the endpoint IDs of this conference.
+     */
+    private final IdentifierPool identifierPool = new IdentifierPool();
+
     /**
      * The stats service to use for periodic reports.
      */
     private final StatsService statsService;
 
+    /**
+     * The clock of the stats service.
+     */
+    private final StatsClock clock;
+
+    /**
+     * The tracer of the reports.
+     */
+    private final ReportTracer tracer;
+
+    /**
+     * The aggregator applied to the endpoint stats before reporting them, or
+     * <tt>null</tt> to report every SSRC separately.
+     */
+    private volatile SsrcStatsAggregator ssrcStatsAggregator = null;
+
+    /**
+     * The estimator of the quality scores of the streams and endpoints, or
+     * <tt>null</tt> if the scores are not estimated.
+     */
+    private volatile QualityEstimator qualityEstimator = null;
+
+    /**
+     * The index of the endpoint to report first, used to take turns between
+     * endpoints when the reports are rate limited.
+     */
+    private int reportOffset = 0;
+
+    /**
+     * The index of the stream to report first of an endpoint that has more
+     * streams than the rate limiter grants, so that all its streams get a
+     * turn.
+     */
+    private int streamOffset = 0;
+
+    /**
+     * Whether this conference was started and counts against the rate limits
+     * of the stats service.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Whether the setup event waits for callstats to be initialized.
+     */
+    private final AtomicBoolean setupDeferred = new AtomicBoolean();
+
+    /**
+     * The handles registered by producers using the push API, by endpoint ID.
+     * Guarded by itself.
+     */
+    private final Map<String, List<SsrcStatsHandle>> handles
+        = new LinkedHashMap<>();
+
+    /**
+     * The stats built from the registered handles, replaced whenever a handle
+     * is registered or unregistered.
+     */
+    private volatile PushedStats pushedStats = PushedStats.EMPTY;
+
+    /**
+     * The duration of the last reporting period, in nanoseconds.
+     */
+    private volatile long lastRunDurationNanos = 0;
+
+    /**
+     * The last time there were endpoints to report, this conference was
+     * started, or, while its stats are not collected, it was set up, in
+     * milliseconds since the epoch.
+     */
+    private volatile long lastActivity;
+
+    /**
+     * The number of streams of the last reporting period.
+     */
+    private volatile int lastStreamCount = 0;
+
+    /**
+     * Removes this conference from the executor running it, or <tt>null</tt>
+     * if it was not registered through {@link #registerWith}.
+     */
+    private volatile Runnable deregistration = null;
+
+    /**
+     * The time the previous reporting period started, in milliseconds since
+     * the epoch, or -1 before the first period.
+     */
+    private long previousRunTime = -1;
+
+    /**
+     * The reporting interval this conference was created with, restored when
+     * the {@link ConferenceRegistry} stops overriding it.
+     */
+    private final long initialPeriod;
+
     /**
      * Constructs <tt>AbstractStatsPeriodicRunnable</tt>.
      *
@@ -92,43 +276,134 @@ public abstract class AbstractStatsPeriodicRunnable<T>
         String initiatorID)
     {
         super(o, period);
+        this.initialPeriod = period;
         this.statsService = statsService;
+        this.clock = statsService.getClock();
+        this.tracer = statsService.getReportTracer();
+        this.lastActivity = clock.millis();
         this.initiatorID = initiatorID;
 
-        StringBuilder conferenceIDBuilder = new StringBuilder();
+        IdentifierPool.DomainIdentifiers domainIdentifiers
+            = IdentifierPool.getDomainIdentifiers(
+                conferenceIDPrefix, conferenceJid.getDomain().toString());
 
-        if (conferenceIDPrefix != null)
-        {
-            conferenceIDBuilder.append(conferenceIDPrefix);
-            if(!conferenceIDPrefix.endsWith("/"))
-            {
-                conferenceIDBuilder.append("/");
-            }
+        this.initiatorSiteID = domainIdentifiers.siteID;
+        this.conferenceID = domainIdentifiers.prefix
+            + conferenceJid.getLocalpart().toString();
+    }
 
-            // extract siteId/subdomain
-            String domain = conferenceJid.getDomain().toString();
-            if (domain.endsWith("." + conferenceIDPrefix))
-            {
-                // strip `.conferenceIDPrefix`
-                String mucDomain = domain.substring(0, domain.length() - conferenceIDPrefix.length() - 1);
+    /**
+     * Constructs <tt>AbstractStatsPeriodicRunnable</tt> for a conference
+     * whose ID was already built, like the conferences forwarded by a
+     * {@link StatsRelayServer}.
+     *
+     * @param o the conference/call used to report statistics.
+     * @param period the reporting interval.
+     * @param statsService the stats service that will be serving this reporting
+     * @param conferenceID the conference ID to use when reporting stats.
+     * @param initiatorSiteID the site id of the initiator, or '/'.
+     * @param initiatorID the initiator.
+     */
+    protected AbstractStatsPeriodicRunnable(
+        @NotNull T o,
+        long period,
+        StatsService statsService,
+        @NotNull String conferenceID,
+        @NotNull String initiatorSiteID,
+        String initiatorID)
+    {
+        super(o, period);
+        this.initialPeriod = period;
+        this.statsService = statsService;
+        this.clock = statsService.getClock();
+        this.tracer = statsService.getReportTracer();
+        this.lastActivity = clock.millis();
+        this.initiatorID = initiatorID;
+        this.initiatorSiteID = initiatorSiteID;
+        this.conferenceID = conferenceID;
+    }
 
-                int dotIx = mucDomain.indexOf('.');
-                if (dotIx > 0)
-                {
-                    String siteId = mucDomain.substring(dotIx + 1);
+    /**
+     * Returns the state of the reporting of this conference to callstats.
+     * @return the lifecycle state.
+     */
+    public LifecycleState getLifecycleState()
+    {
+        return lifecycle.state;
+    }
 
-                    if (isNotBlank(siteId))
-                    {
-                        this.initiatorSiteID = siteId;
-                        conferenceIDBuilder.append(siteId).append("/");
-                    }
-                }
-            }
-        }
+    /**
+     * Returns the reporting interval this conference was created with.
+     * @return the interval in milliseconds.
+     */
+    long getInitialPeriod()
+    {
+        return initialPeriod;
+    }
+
+    /**
+     * Returns the conference ID used when reporting stats.
+     * @return the conference ID.
+     */
+    public String getConferenceID()
+    {
+        return this.conferenceID;
+    }
+
+    /**
+     * Returns the pool of the endpoint IDs of this conference, which producers
+     * can use to share the endpoint IDs they keep for the life of an endpoint.
+     * Interning the IDs of the stats built for a single period saves nothing,
+     * those are garbage after the period anyway.
+     * @return the identifier pool.
+     */
+    protected IdentifierPool getIdentifierPool()
+    {
+        return identifierPool;
+    }
 
-        conferenceIDBuilder.append(conferenceJid.getLocalpart().toString());
+    /**
+     * Returns the last time this conference had endpoints to report.
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getLastActivity()
+    {
+        return lastActivity;
+    }
 
-        this.conferenceID = conferenceIDBuilder.toString();
+    /**
+     * Returns a rough estimate of the memory this conference keeps for
+     * reporting, based on the number of streams of the last period.
+     * @return the estimated number of bytes.
+     */
+    public long estimateMemoryUsage()
+    {
+        return ESTIMATED_CONFERENCE_SIZE
+            + (long) ESTIMATED_STREAM_SIZE
+                * Math.max(lastStreamCount, pushedStats.handles.length);
+    }
+
+    /**
+     * Registers this conference with the executor that runs it, so that it is
+     * removed from the executor when it is stopped, including when the
+     * {@link ConferenceRegistry} or a shutdown stops it.
+     * @param executor the executor.
+     */
+    public void registerWith(RecurringRunnableExecutor executor)
+    {
+        deregistration = () -> executor.deRegisterRecurringRunnable(this);
+        executor.registerRecurringRunnable(this);
+    }
+
+    /**
+     * Registers this conference with the scheduler that runs it, so that it
+     * is removed from the scheduler when it is stopped.
+     * @param scheduler the scheduler.
+     */
+    public void registerWith(VirtualTimeScheduler scheduler)
+    {
+        deregistration = () -> scheduler.deRegisterRecurringRunnable(this);
+        scheduler.registerRecurringRunnable(this);
     }
 
     /**
@@ -141,144 +416,690 @@ public abstract class AbstractStatsPeriodicRunnable<T>
     }
 
     /**
-     * Retrieves stats for all endpoints.
+     * Sets the aggregator used to collapse the SSRCs of every endpoint before
+     * reporting them. The aggregator keeps the state of the groups of this
+     * conference and is not shared with other conferences.
+     * @param ssrcStatsAggregator the aggregator, or <tt>null</tt> to report
+     * every SSRC separately.
+     */
+    public void setSsrcStatsAggregator(SsrcStatsAggregator ssrcStatsAggregator)
+    {
+        this.ssrcStatsAggregator = ssrcStatsAggregator;
+    }
+
+    /**
+     * Enables estimating a mean opinion score for every stream and endpoint
+     * on each period, available to the sinks as {@link SsrcStats#mos} and
+     * {@link EndpointStats#getMos()}.
+     * @param enabled whether to estimate the scores.
+     */
+    public void setQualityEstimation(boolean enabled)
+    {
+        if (enabled == (this.qualityEstimator != null))
+        {
+            return;
+        }
+        this.qualityEstimator = enabled ? new QualityEstimator() : null;
+    }
+
+    /**
+     * Returns the time it took to run the last reporting period.
+     * @return the duration of the last reporting period in nanoseconds.
+     */
+    public long getLastRunDurationNanos()
+    {
+        return lastRunDurationNanos;
+    }
+
+    /**
+     * Registers a stream whose stats are pushed by the producer through the
+     * returned handle, as an alternative to overriding
+     * {@link #getEndpointStats()}.
+     *
+     * @param endpointId the endpoint the stream belongs to.
+     * @param ssrc the SSRC of the stream.
+     * @param mediaType the media type of the stream.
+     * @param send whether the stream is sent to the endpoint.
+     * @return the handle to update the stats of the stream with.
+     */
+    public SsrcStatsHandle registerSsrc(
+        String endpointId, long ssrc, String mediaType, boolean send)
+    {
+        // the handle lives as long as the stream, share its endpoint ID
+        endpointId = identifierPool.intern(endpointId);
+        SsrcStatsHandle handle
+            = new SsrcStatsHandle(endpointId, ssrc, mediaType, send);
+
+        synchronized (handles)
+        {
+            handles.computeIfAbsent(endpointId, k -> new ArrayList<>())
+                .add(handle);
+            pushedStats = new PushedStats(handles);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Unregisters a stream registered with
+     * {@link #registerSsrc(String, long, String, boolean)}.
+     * @param handle the handle of the stream.
+     */
+    public void unregisterSsrc(SsrcStatsHandle handle)
+    {
+        synchronized (handles)
+        {
+            List<SsrcStatsHandle> endpointHandles
+                = handles.get(handle.getEndpointId());
+
+            if (endpointHandles == null || !endpointHandles.remove(handle))
+            {
+                return;
+            }
+            if (endpointHandles.isEmpty())
+            {
+                handles.remove(handle.getEndpointId());
+            }
+            pushedStats = new PushedStats(handles);
+        }
+    }
+
+    /**
+     * Retrieves stats for all endpoints. The default implementation returns
+     * the stats of the streams registered with
+     * {@link #registerSsrc(String, long, String, boolean)}, reading their
+     * handles in place; producers that build the stats on demand override it.
      */
-    protected abstract List<EndpointStats> getEndpointStats();
+    protected List<EndpointStats> getEndpointStats()
+    {
+        PushedStats pushedStats = this.pushedStats;
+
+        for (SsrcStatsHandle handle : pushedStats.handles)
+        {
+            handle.read();
+        }
+
+        return pushedStats.endpointStats;
+    }
 
     @Override
     protected void doRun()
     {
-        CallStats callStats = this.statsService.getCallStats();
+        long start = clock.nanoTime();
+        long now = clock.millis();
 
-        if (userInfo == null
-            || callStats == null
-            || !callStats.isInitialized())
+        if (previousRunTime >= 0)
         {
-            return;
+            this.statsService.getLoadMonitor().recordTickLag(
+                now - previousRunTime - getPeriod());
         }
+        previousRunTime = now;
 
-        for (EndpointStats endpointStats : getEndpointStats())
+        try
+        {
+            report();
+        }
+        finally
         {
-            String endpointId = endpointStats.getEndpointId();
-            callStats.startStatsReportingForUser(
-                endpointId,
-                this.conferenceID);
+            lastRunDurationNanos = clock.nanoTime() - start;
+        }
+    }
 
-            for (SsrcStats receiveStat : endpointStats.getReceiveStats())
+    /**
+     * Collects the stats of all endpoints and reports them, unless the
+     * conference is stopping.
+     */
+    private void report()
+    {
+        Lifecycle lifecycle = this.lifecycle;
+        if (lifecycle.isTerminated())
+        {
+            return;
+        }
+
+        // Announce the report before checking the state again: either
+        // stop() sees it and waits, or it sees that stop() started.
+        reportsInFlight.incrementAndGet();
+        try
+        {
+            lifecycle = this.lifecycle;
+            if (!lifecycle.isTerminated())
             {
-                if (logger.isDebugEnabled())
+                report(lifecycle, false);
+            }
+        }
+        finally
+        {
+            if (reportsInFlight.decrementAndGet() == 0
+                && this.lifecycle.isTerminated())
+            {
+                Thread stopWaiter = this.stopWaiter;
+                if (stopWaiter != null)
                 {
-                    logger.debug(new StringBuilder()
-                        .append("Receive stats (")
-                        .append(this.initiatorID)
-                        .append(" <- ").append(endpointId).append(") :")
-                        .append(receiveStat.toString()));
+                    LockSupport.unpark(stopWaiter);
                 }
+            }
+        }
+    }
 
-                ConferenceStatsBuilder conferenceStats
-                    = new ConferenceStatsBuilder()
-                        .bytesReceived(receiveStat.bytes)
-                        .packetsReceived(receiveStat.packets)
-                        .packetsLost(receiveStat.packetsLost)
-                        .fractionalPacketLost(receiveStat.fractionalPacketLoss)
-                        .ssrc(String.valueOf(receiveStat.ssrc))
-                        .confID(this.conferenceID)
-                        .localUserID(this.initiatorID)
-                        .remoteUserID(endpointId)
-                        .statsType(CallStatsStreamType.INBOUND)
-                        .ucID(userInfo.getUcID())
-                        .mediaType(receiveStat.mediaType);
-
-                if (receiveStat.jitter_ms != null)
-                {
-                    conferenceStats
-                            = conferenceStats.jitter(receiveStat.jitter_ms);
-                }
+    /**
+     * Collects the stats of all endpoints and reports them.
+     * @param lifecycle the lifecycle the report started in.
+     * @param last whether this is the last report, sent by
+     * {@link #terminate()} once the periodic reports stopped.
+     */
+    private void report(Lifecycle lifecycle, boolean last)
+    {
+        CallStats callStats = this.statsService.getCallStats();
 
-                if (receiveStat.rtt_ms > 0)
-                {
-                    conferenceStats = conferenceStats.rtt(receiveStat.rtt_ms);
-                }
+        boolean report = lifecycle.state == LifecycleState.ACTIVE
+            && callStats != null
+            && callStats.isInitialized();
+        boolean hasSinks = this.statsService.hasSinks();
+
+        if (!report && !hasSinks)
+        {
+            // Nothing is collected, so we cannot tell whether it is idle,
+            // unless it never got set up: then it stays idle, so that it is
+            // evicted if its owner forgot it.
+            if (lifecycle.state != LifecycleState.PENDING)
+            {
+                lastActivity = clock.millis();
+            }
+            return;
+        }
+
+        List<EndpointStats> allEndpointStats = getEndpointStats();
 
-                callStats.reportConferenceStats(
-                    endpointId, conferenceStats.build());
+        SsrcStatsAggregator aggregator = this.ssrcStatsAggregator;
+        if (aggregator != null)
+        {
+            allEndpointStats = aggregator.aggregate(allEndpointStats);
+        }
+
+        int reports = 0;
+        for (EndpointStats endpointStats : allEndpointStats)
+        {
+            reports += endpointStats.getReceiveStats().size()
+                + endpointStats.getSendStats().size();
+        }
+
+        lastStreamCount = reports;
+
+        QualityEstimator qualityEstimator = this.qualityEstimator;
+        if (qualityEstimator != null)
+        {
+            qualityEstimator.update(allEndpointStats);
+        }
+
+        if (!allEndpointStats.isEmpty())
+        {
+            lastActivity = clock.millis();
+        }
+
+        // stop() may have started while the stats were collected
+        if (!last && this.lifecycle.isTerminated())
+        {
+            return;
+        }
+
+        // local sinks keep receiving stats while callstats is unavailable
+        if (hasSinks)
+        {
+            this.statsService.conferenceStats(
+                this.conferenceID,
+                clock.millis(),
+                allEndpointStats);
+        }
+
+        if (!report)
+        {
+            return;
+        }
+
+        ReportRateLimiter rateLimiter = this.statsService.getRateLimiter();
+        int bytesPerReport = ESTIMATED_REPORT_SIZE + conferenceID.length()
+            + initiatorID.length();
+        int granted = rateLimiter.acquire(
+            reports, bytesPerReport, getPeriod());
+
+        if (reports > 0)
+        {
+            this.statsService.getLoadMonitor().recordQueueDepth(
+                reports - granted, reports);
+        }
+
+        String ucID = lifecycle.userInfo.getUcID();
+        long sendStart = clock.nanoTime();
+        int sent = 0;
+
+        try
+        {
+            sent = report(
+                callStats, ucID, allEndpointStats, reports, granted);
+        }
+        finally
+        {
+            this.statsService.getLoadMonitor().recordSendLatency(
+                clock.nanoTime() - sendStart, sent);
+            rateLimiter.release(granted - sent, bytesPerReport);
+        }
+    }
+
+    /**
+     * Sends the reports of all endpoints to callstats.
+     * @param callStats the callstats instance to report to.
+     * @param ucID the callstats id of the conference.
+     * @param allEndpointStats the stats of all endpoints.
+     * @param reports the number of reports of all endpoints.
+     * @param granted the number of reports allowed by the rate limiter.
+     * @return the number of reports sent.
+     */
+    private int report(
+        CallStats callStats,
+        String ucID,
+        List<EndpointStats> allEndpointStats,
+        int reports,
+        int granted)
+    {
+        if (granted >= reports)
+        {
+            // All CallStats methods synchronize on the instance, which also
+            // sends the reports of an endpoint, so the endpoints are reported
+            // from this thread only.
+            for (EndpointStats endpointStats : allEndpointStats)
+            {
+                reportEndpointStats(callStats, ucID, endpointStats);
             }
+            return reports;
+        }
+
+        // When limited, report whole endpoints starting from the first one
+        // that was held back the previous time, so all endpoints get a turn.
+        if (!(allEndpointStats instanceof RandomAccess))
+        {
+            allEndpointStats = new ArrayList<>(allEndpointStats);
+        }
+
+        int size = allEndpointStats.size();
+        int offset = reportOffset % size;
+        int sent = 0;
 
-            for (SsrcStats sendStat : endpointStats.getSendStats())
+        for (int i = 0; i < size && granted > 0; i++)
+        {
+            int index = (offset + i) % size;
+            EndpointStats endpointStats = allEndpointStats.get(index);
+            int endpointReports = endpointStats.getReceiveStats().size()
+                + endpointStats.getSendStats().size();
+
+            if (endpointReports > granted)
             {
-                if (logger.isDebugEnabled())
+                if (i > 0)
                 {
-                    logger.debug(new StringBuilder()
-                        .append("Send stats (")
-                        .append(this.initiatorID)
-                        .append(" -> ").append(endpointId).append(") :")
-                        .append(sendStat.toString()));
+                    // it goes first next time
+                    reportOffset = index;
+                    break;
                 }
 
-                ConferenceStatsBuilder conferenceStats
-                    = new ConferenceStatsBuilder()
-                        .bytesSent(sendStat.bytes)
-                        .packetsSent(sendStat.packets)
-                        .fractionalPacketLost(sendStat.fractionalPacketLoss)
-                        .ssrc(String.valueOf(sendStat.ssrc))
-                        .confID(this.conferenceID)
-                        .localUserID(this.initiatorID)
-                        .remoteUserID(endpointId)
-                        .statsType(CallStatsStreamType.OUTBOUND)
-                        .ucID(userInfo.getUcID())
-                        .mediaType(sendStat.mediaType);
-
-                if (sendStat.jitter_ms != null)
-                {
-                    conferenceStats = conferenceStats.jitter(sendStat.jitter_ms);
-                }
+                // It would never fit, report part of its streams and move on
+                // so that it does not block the conference.
+                reportEndpointStats(
+                    callStats, ucID, partOf(endpointStats, granted));
+                sent += granted;
+                reportOffset = (index + 1) % size;
+                break;
+            }
+            granted -= endpointReports;
+            sent += endpointReports;
 
-                if (sendStat.rtt_ms > 0)
-                {
-                    conferenceStats = conferenceStats.rtt(sendStat.rtt_ms);
-                }
+            reportEndpointStats(callStats, ucID, endpointStats);
+            // the next one goes first next time, unless it is sent too
+            reportOffset = (index + 1) % size;
+        }
 
-                callStats.reportConferenceStats(
-                    endpointId, conferenceStats.build());
+        return sent;
+    }
+
+    /**
+     * Returns <tt>count</tt> streams of an endpoint, starting after the ones
+     * returned the previous time.
+     * @param endpointStats the stats of the endpoint.
+     * @param count the number of streams, less than the streams of the
+     * endpoint.
+     * @return the stats of the selected streams.
+     */
+    private EndpointStats partOf(EndpointStats endpointStats, int count)
+    {
+        List<SsrcStats> receiveStats = endpointStats.getReceiveStats();
+        List<SsrcStats> sendStats = endpointStats.getSendStats();
+        int streams = receiveStats.size() + sendStats.size();
+        int first = streamOffset % streams;
+        streamOffset = first + count;
+
+        EndpointStats part = new EndpointStats(endpointStats.getEndpointId());
+        for (int i = 0; i < count; i++)
+        {
+            int index = (first + i) % streams;
+            if (index < receiveStats.size())
+            {
+                part.addReceiveStats(receiveStats.get(index));
+            }
+            else
+            {
+                part.addSendStats(sendStats.get(index - receiveStats.size()));
+            }
+        }
+        return part;
+    }
+
+    /**
+     * Reports the stats of a single endpoint.
+     * @param callStats the callstats instance to report to.
+     * @param ucID the callstats id of the conference.
+     * @param endpointStats the stats to report.
+     */
+    private void reportEndpointStats(
+        CallStats callStats, String ucID, EndpointStats endpointStats)
+    {
+        String endpointId = endpointStats.getEndpointId();
+        callStats.startStatsReportingForUser(
+            endpointId,
+            this.conferenceID);
+
+        boolean trace = tracer.isTraced(this.conferenceID, endpointId);
+        long now = trace ? clock.millis() : 0;
+
+        for (SsrcStats receiveStat : endpointStats.getReceiveStats())
+        {
+            if (trace)
+            {
+                tracer.trace(now, this.conferenceID, this.initiatorID,
+                    endpointId, false, receiveStat);
+            }
+
+            ConferenceStatsBuilder conferenceStats
+                = new ConferenceStatsBuilder()
+                    .bytesReceived(receiveStat.bytes)
+                    .packetsReceived(receiveStat.packets)
+                    .packetsLost(receiveStat.packetsLost)
+                    .fractionalPacketLost(receiveStat.fractionalPacketLoss)
+                    .ssrc(String.valueOf(receiveStat.ssrc))
+                    .confID(this.conferenceID)
+                    .localUserID(this.initiatorID)
+                    .remoteUserID(endpointId)
+                    .statsType(CallStatsStreamType.INBOUND)
+                    .ucID(ucID)
+                    .mediaType(receiveStat.mediaType);
+
+            if (receiveStat.jitter_ms != null)
+            {
+                conferenceStats
+                        = conferenceStats.jitter(receiveStat.jitter_ms);
+            }
+
+            if (receiveStat.rtt_ms > 0)
+            {
+                conferenceStats = conferenceStats.rtt(receiveStat.rtt_ms);
             }
 
-            callStats.stopStatsReportingForUser(endpointId, this.conferenceID);
+            callStats.reportConferenceStats(
+                endpointId, conferenceStats.build());
         }
+
+        for (SsrcStats sendStat : endpointStats.getSendStats())
+        {
+            if (trace)
+            {
+                tracer.trace(now, this.conferenceID, this.initiatorID,
+                    endpointId, true, sendStat);
+            }
+
+            ConferenceStatsBuilder conferenceStats
+                = new ConferenceStatsBuilder()
+                    .bytesSent(sendStat.bytes)
+                    .packetsSent(sendStat.packets)
+                    .fractionalPacketLost(sendStat.fractionalPacketLoss)
+                    .ssrc(String.valueOf(sendStat.ssrc))
+                    .confID(this.conferenceID)
+                    .localUserID(this.initiatorID)
+                    .remoteUserID(endpointId)
+                    .statsType(CallStatsStreamType.OUTBOUND)
+                    .ucID(ucID)
+                    .mediaType(sendStat.mediaType);
+
+            if (sendStat.jitter_ms != null)
+            {
+                conferenceStats = conferenceStats.jitter(sendStat.jitter_ms);
+            }
+
+            if (sendStat.rtt_ms > 0)
+            {
+                conferenceStats = conferenceStats.rtt(sendStat.rtt_ms);
+            }
+
+            callStats.reportConferenceStats(
+                endpointId, conferenceStats.build());
+        }
+
+        callStats.stopStatsReportingForUser(endpointId, this.conferenceID);
     }
 
     /**
      * Called when conference/call is created. Sends a setup event to callstats
      * and creates the userInfo object that identifies the statistics for
-     * this conference/call.
+     * this conference/call. When callstats is not initialized yet, the event
+     * is sent once it is.
      */
     public void start()
     {
+        if (lifecycle.isTerminated())
+        {
+            logger.warn("Not starting stopped conference " + conferenceID);
+            return;
+        }
+
+        if (started.compareAndSet(false, true))
+        {
+            this.statsService.getRateLimiter().conferenceStarted();
+            lastActivity = clock.millis();
+            StatsServiceFactory.getInstance().getConferenceRegistry()
+                .register(this);
+            this.statsService.conferenceStarted(
+                this.conferenceID, this.initiatorSiteID, this.initiatorID);
+        }
+
+        if (this.statsService.getCallStats() == null)
+        {
+            // the stats only go to the local sinks, e.g. in relay mode
+            return;
+        }
+
+        // Set before checking the service, so that either this thread or the
+        // factory initializing the service sends the setup event.
+        setupDeferred.set(true);
+        if (this.statsService.isInitialized())
+        {
+            setUpDeferred();
+        }
+    }
+
+    /**
+     * Sends the setup event requested by {@link #start()}, if it was not sent
+     * yet. Called by the factory for the conferences started before callstats
+     * was initialized, which callstats would not set up.
+     */
+    void setUpDeferred()
+    {
+        if (!setupDeferred.compareAndSet(true, false)
+            || lifecycle.isTerminated())
+        {
+            return;
+        }
+
+        CallStats callStats = this.statsService.getCallStats();
         ConferenceInfo conferenceInfo = new ConferenceInfo(this.conferenceID, this.initiatorID, this.initiatorSiteID);
 
         // Send setup event to callstats and on successful response create
         // the userInfo object.
-        this.statsService.getCallStats().sendCallStatsConferenceEvent(
+        callStats.sendCallStatsConferenceEvent(
             CallStatsConferenceEvents.CONFERENCE_SETUP,
             conferenceInfo,
             new CSStartConferenceListener(new WeakReference<>(this)));
     }
 
     /**
-     * The conference has expired, send terminate event to callstats.
+     * Reports the current stats one last time and stops the conference, used
+     * when the whole library shuts down. The periodic reports are stopped and
+     * waited for first, so that none overlaps the last one or follows it.
+     */
+    void terminate()
+    {
+        Lifecycle current = beginStop();
+        if (current == null)
+        {
+            return;
+        }
+
+        awaitReports();
+        try
+        {
+            if (started.get())
+            {
+                report(current, true);
+            }
+        }
+        finally
+        {
+            finishStop(current);
+        }
+    }
+
+    /**
+     * The conference has expired, send terminate event to callstats. Waits
+     * for the reports already running, so no reports are sent after this
+     * method returns. Must not be called from {@link #getEndpointStats()}.
      */
     public void stop()
     {
-        if (userInfo != null)
+        Lifecycle current = beginStop();
+        if (current == null)
+        {
+            return;
+        }
+
+        awaitReports();
+        finishStop(current);
+    }
+
+    /**
+     * Moves the lifecycle to {@link LifecycleState#TERMINATING}, after which
+     * no report starts.
+     * @return the lifecycle before, or <tt>null</tt> if the conference was
+     * already stopping.
+     */
+    private Lifecycle beginStop()
+    {
+        Lifecycle current;
+        do
         {
-            this.statsService.getCallStats().sendCallStatsConferenceEvent(
-                CallStatsConferenceEvents.CONFERENCE_TERMINATED,
-                userInfo);
-            if (this.statsService.getIsclient()) 
+            current = this.lifecycle;
+            if (current.isTerminated())
             {
-                this.statsService.getCallStats().stopConferenceAliveSender(
-                    userInfo.getUcID());
+                return null;
             }
         }
+        while (!LIFECYCLE.compareAndSet(
+            this,
+            current,
+            new Lifecycle(LifecycleState.TERMINATING, current.userInfo)));
+
+        return current;
+    }
+
+    /**
+     * Waits for the reports that started before the conference was stopping.
+     * Interrupts do not end the wait, the interrupt status is kept.
+     */
+    private void awaitReports()
+    {
+        // set before checking the reports, so that a report ending after the
+        // check sees the waiter
+        stopWaiter = Thread.currentThread();
+
+        boolean interrupted = false;
+        while (reportsInFlight.get() > 0)
+        {
+            LockSupport.park(this);
+            if (Thread.interrupted())
+            {
+                interrupted = true;
+            }
+        }
+        stopWaiter = null;
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Releases the resources of the conference and sends the terminate
+     * event, once no report runs anymore.
+     * @param current the lifecycle before the conference was stopping.
+     */
+    private void finishStop(Lifecycle current)
+    {
+        this.statsService.conferenceStopped(this.conferenceID);
+        if (started.compareAndSet(true, false))
+        {
+            this.statsService.getRateLimiter().conferenceStopped();
+            StatsServiceFactory.getInstance().getConferenceRegistry()
+                .unregister(this);
+        }
+        identifierPool.clear();
+        QualityEstimator qualityEstimator = this.qualityEstimator;
+        if (qualityEstimator != null)
+        {
+            qualityEstimator.clear();
+        }
+
+        if (current.userInfo != null)
+        {
+            sendTerminated(current.userInfo);
+        }
+
+        this.lifecycle = new Lifecycle(
+            LifecycleState.TERMINATED, current.userInfo);
+
+        Runnable deregistration = this.deregistration;
+        if (deregistration != null)
+        {
+            // The executor may be running this conference or be iterating
+            // its runnables on this thread, leave it from another one.
+            clock.schedule(deregistration, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the terminate event of a conference set up in callstats.
+     * @param userInfo the user info of the conference.
+     */
+    private void sendTerminated(UserInfo userInfo)
+    {
+        CallStats callStats = this.statsService.getCallStats();
+        if (callStats == null)
+        {
+            return;
+        }
+
+        callStats.sendCallStatsConferenceEvent(
+            CallStatsConferenceEvents.CONFERENCE_TERMINATED,
+            userInfo);
+        if (this.statsService.getIsclient())
+        {
+            callStats.stopConferenceAliveSender(userInfo.getUcID());
+        }
     }
 
     /**
@@ -288,12 +1109,116 @@ public abstract class AbstractStatsPeriodicRunnable<T>
      */
     private void conferenceSetupResponse(String ucid)
     {
-        userInfo = new UserInfo(conferenceID, this.initiatorID, ucid);
-        if (this.statsService.getIsclient()) 
+        UserInfo userInfo = new UserInfo(conferenceID, this.initiatorID, ucid);
+
+        CallStats callStats = this.statsService.getCallStats();
+        if (callStats != null && this.statsService.getIsclient())
         {
-            this.statsService.getCallStats().startConferenceAliveSender(
+            callStats.startConferenceAliveSender(
                 this.initiatorID, conferenceID, ucid);
         }
+
+        Lifecycle current;
+        do
+        {
+            current = this.lifecycle;
+            if (current.isTerminated())
+            {
+                // stopped while being set up, do not leave it open upstream
+                sendTerminated(userInfo);
+                return;
+            }
+        }
+        while (!LIFECYCLE.compareAndSet(
+            this, current, new Lifecycle(LifecycleState.ACTIVE, userInfo)));
+    }
+
+    /**
+     * A lifecycle state with the user info of the conference in callstats.
+     */
+    private static class Lifecycle
+    {
+        /**
+         * The initial lifecycle.
+         */
+        static final Lifecycle PENDING
+            = new Lifecycle(LifecycleState.PENDING, null);
+
+        final LifecycleState state;
+
+        /**
+         * The user info, set from {@link LifecycleState#ACTIVE} on if the
+         * conference was set up in callstats.
+         */
+        final UserInfo userInfo;
+
+        Lifecycle(LifecycleState state, UserInfo userInfo)
+        {
+            this.state = state;
+            this.userInfo = userInfo;
+        }
+
+        /**
+         * Whether the conference is terminating or terminated.
+         */
+        boolean isTerminated()
+        {
+            return state == LifecycleState.TERMINATING
+                || state == LifecycleState.TERMINATED;
+        }
+    }
+
+    /**
+     * An immutable view of the handles registered by push producers.
+     */
+    private static class PushedStats
+    {
+        /**
+         * The view with no handles.
+         */
+        static final PushedStats EMPTY
+            = new PushedStats(Collections.emptyMap());
+
+        /**
+         * All registered handles.
+         */
+        final SsrcStatsHandle[] handles;
+
+        /**
+         * The stats of all endpoints, referencing the stats of the handles.
+         */
+        final List<EndpointStats> endpointStats;
+
+        PushedStats(Map<String, List<SsrcStatsHandle>> handlesByEndpoint)
+        {
+            List<SsrcStatsHandle> allHandles = new ArrayList<>();
+            List<EndpointStats> allEndpointStats
+                = new ArrayList<>(handlesByEndpoint.size());
+
+            for (Map.Entry<String, List<SsrcStatsHandle>> e
+                : handlesByEndpoint.entrySet())
+            {
+                EndpointStats stats = new EndpointStats(e.getKey());
+
+                for (SsrcStatsHandle handle : e.getValue())
+                {
+                    if (handle.isSend())
+                    {
+                        stats.addSendStats(handle.getStats());
+                    }
+                    else
+                    {
+                        stats.addReceiveStats(handle.getStats());
+                    }
+                    allHandles.add(handle);
+                }
+                allEndpointStats.add(stats);
+            }
+
+            this.handles = allHandles.toArray(new SsrcStatsHandle[0]);
+            this.endpointStats
+                = Collections.unmodifiableList(allEndpointStats);
+        }
     }
 
     /**
@@ -0,0 +1,315 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Accumulates bridge wide statistics from the stats of all conferences of a
+ * {@link StatsService} and periodically sends them as
+ * {@link BridgeStatistics}, so that callers do not need to walk all their
+ * conferences a second time to build the bridge status.
+ * <p>
+ * Every conference contributes as a side effect of its reporting period, with
+ * a constant amount of work per conference. The byte and packet counters of
+ * {@link SsrcStats} are treated as cumulative per stream and their increase
+ * since the previous period is accumulated. Registering the accumulator with
+ * a {@link RecurringRunnableExecutor} snapshots and sends the statistics every
+ * <tt>period</tt>.
+ */
+public class BridgeStatisticsAccumulator
+    extends PeriodicRunnable
+    implements StatsSink
+{
+    /**
+     * The media type of audio streams.
+     */
+    private static final String AUDIO = "audio";
+
+    /**
+     * The media type of video streams.
+     */
+    private static final String VIDEO = "video";
+
+    /**
+     * The totals of a conference that has not reported yet.
+     */
+    private static final ConferenceTotals EMPTY = new ConferenceTotals();
+
+    /**
+     * The service the statistics are sent with.
+     */
+    private final StatsService statsService;
+
+    /**
+     * The last totals reported by every conference.
+     */
+    private final Map<String, ConferenceTotals> conferences
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The bytes sent and received during the current interval.
+     */
+    private final LongAdder intervalSentBytes = new LongAdder();
+    private final LongAdder intervalReceivedBytes = new LongAdder();
+
+    /**
+     * The packets received and lost during the current interval.
+     */
+    private final LongAdder intervalReceivedPackets = new LongAdder();
+    private final LongAdder intervalPacketsLost = new LongAdder();
+
+    /**
+     * The sums and counts of the RTT and jitter samples of the current
+     * interval.
+     */
+    private final DoubleAdder intervalRttSum = new DoubleAdder();
+    private final LongAdder intervalRttCount = new LongAdder();
+    private final DoubleAdder intervalJitterSum = new DoubleAdder();
+    private final LongAdder intervalJitterCount = new LongAdder();
+
+    /**
+     * The packets received and lost by the streams of all live conferences.
+     */
+    private final LongAdder totalReceivedPackets = new LongAdder();
+    private final LongAdder totalPacketsLost = new LongAdder();
+
+    /**
+     * The number of participants and audio/video streams of all live
+     * conferences.
+     */
+    private final LongAdder participants = new LongAdder();
+    private final LongAdder audioFabrics = new LongAdder();
+    private final LongAdder videoFabrics = new LongAdder();
+
+    /**
+     * The time of the last snapshot.
+     */
+    private long lastSnapshotTime;
+
+    /**
+     * Creates an accumulator and adds it as a sink of <tt>statsService</tt>.
+     *
+     * @param statsService the service to accumulate statistics for and to send
+     * them with.
+     * @param period the interval of sending the bridge statistics.
+     */
+    public BridgeStatisticsAccumulator(StatsService statsService, long period)
+    {
+        super(period);
+        this.statsService = statsService;
+        this.lastSnapshotTime = statsService.getClock().millis();
+
+        statsService.addSink(this);
+    }
+
+    @Override
+    public void run()
+    {
+        super.run();
+
+        statsService.sendBridgeStatusUpdate(snapshot());
+    }
+
+    @Override
+    public void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats)
+    {
+        ConferenceTotals current = new ConferenceTotals();
+        current.participants = endpointStats.size();
+
+        for (EndpointStats stats : endpointStats)
+        {
+            for (SsrcStats ssrcStats : stats.getReceiveStats())
+            {
+                current.receivedBytes += ssrcStats.bytes;
+                current.receivedPackets += ssrcStats.packets;
+                current.packetsLost += ssrcStats.packetsLost;
+                addStream(current, ssrcStats);
+            }
+            for (SsrcStats ssrcStats : stats.getSendStats())
+            {
+                current.sentBytes += ssrcStats.bytes;
+                addStream(current, ssrcStats);
+            }
+        }
+
+        ConferenceTotals last = conferences.put(conferenceID, current);
+        if (last == null)
+        {
+            last = EMPTY;
+        }
+
+        // streams leaving make the totals drop, which is not traffic
+        intervalSentBytes.add(
+            Math.max(0, current.sentBytes - last.sentBytes));
+        intervalReceivedBytes.add(
+            Math.max(0, current.receivedBytes - last.receivedBytes));
+        intervalReceivedPackets.add(
+            Math.max(0, current.receivedPackets - last.receivedPackets));
+        intervalPacketsLost.add(
+            Math.max(0, current.packetsLost - last.packetsLost));
+
+        addGauges(current, 1);
+        addGauges(last, -1);
+    }
+
+    @Override
+    public void conferenceStopped(String conferenceID)
+    {
+        ConferenceTotals last = conferences.remove(conferenceID);
+
+        if (last != null)
+        {
+            addGauges(last, -1);
+        }
+    }
+
+    /**
+     * Counts the stream and its quality values.
+     */
+    private void addStream(ConferenceTotals totals, SsrcStats ssrcStats)
+    {
+        if (AUDIO.equals(ssrcStats.mediaType))
+        {
+            totals.audioFabrics++;
+        }
+        else if (VIDEO.equals(ssrcStats.mediaType))
+        {
+            totals.videoFabrics++;
+        }
+
+        if (ssrcStats.rtt_ms > 0)
+        {
+            intervalRttSum.add(ssrcStats.rtt_ms);
+            intervalRttCount.increment();
+        }
+        if (ssrcStats.jitter_ms != null)
+        {
+            intervalJitterSum.add(ssrcStats.jitter_ms);
+            intervalJitterCount.increment();
+        }
+    }
+
+    /**
+     * Adds the gauges of <tt>totals</tt> multiplied by <tt>sign</tt>.
+     */
+    private void addGauges(ConferenceTotals totals, int sign)
+    {
+        totalReceivedPackets.add(sign * totals.receivedPackets);
+        totalPacketsLost.add(sign * totals.packetsLost);
+        participants.add(sign * totals.participants);
+        audioFabrics.add(sign * totals.audioFabrics);
+        videoFabrics.add(sign * totals.videoFabrics);
+    }
+
+    /**
+     * Builds the statistics accumulated since the previous snapshot and starts
+     * a new interval.
+     *
+     * @return the bridge statistics.
+     */
+    public synchronized BridgeStatistics snapshot()
+    {
+        long now = statsService.getClock().millis();
+        long intervalMs = Math.max(1, now - lastSnapshotTime);
+        lastSnapshotTime = now;
+
+        long sentBytes = intervalSentBytes.sumThenReset();
+        long receivedBytes = intervalReceivedBytes.sumThenReset();
+        long receivedPackets = intervalReceivedPackets.sumThenReset();
+        long packetsLost = intervalPacketsLost.sumThenReset();
+        double rttSum = intervalRttSum.sumThenReset();
+        long rttCount = intervalRttCount.sumThenReset();
+        double jitterSum = intervalJitterSum.sumThenReset();
+        long jitterCount = intervalJitterCount.sumThenReset();
+
+        long totalPackets = totalReceivedPackets.sum();
+        long totalLost = totalPacketsLost.sum();
+
+        BridgeStatistics stats = new BridgeStatistics();
+        stats.measurementInterval((int) (intervalMs / 1000))
+            .intervalSentBytes(sentBytes)
+            .intervalReceivedBytes(receivedBytes)
+            .intervalRtpFractionLoss(fraction(packetsLost, receivedPackets))
+            .totalLoss(fraction(totalLost, totalPackets))
+            .avgIntervalRtt(rttCount == 0 ? 0 : (float) (rttSum / rttCount))
+            .avgIntervalJitter(
+                jitterCount == 0 ? 0 : (float) (jitterSum / jitterCount))
+            // kbps
+            .intervalDownloadBitRate((int) (receivedBytes * 8 / intervalMs))
+            .intervalUploadBitRate((int) (sentBytes * 8 / intervalMs))
+            .audioFabricCount((int) audioFabrics.sum())
+            .videoFabricCount((int) videoFabrics.sum())
+            .conferenceCount(conferences.size())
+            .participantsCount((int) participants.sum());
+
+        addSystemStatistics(stats);
+
+        return stats;
+    }
+
+    /**
+     * Fills in the CPU, memory and thread statistics of the JVM.
+     * @param stats the statistics to update.
+     */
+    protected void addSystemStatistics(BridgeStatistics stats)
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double load = os.getSystemLoadAverage();
+        if (load >= 0)
+        {
+            stats.cpuUsage(
+                (float) (100 * load / os.getAvailableProcessors()));
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        // MB
+        stats.memoryUsage(
+            (runtime.totalMemory() - runtime.freeMemory()) / 1048576f);
+        stats.totalMemory(runtime.maxMemory() / 1048576f);
+
+        stats.threadCount(ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    /**
+     * Returns the fraction of lost packets.
+     */
+    private static float fraction(long lost, long received)
+    {
+        long expected = lost + received;
+        return expected <= 0 ? 0 : (float) lost / expected;
+    }
+
+    /**
+     * The totals of a conference as of its last reporting period.
+     */
+    private static class ConferenceTotals
+    {
+        private long sentBytes;
+        private long receivedBytes;
+        private long receivedPackets;
+        private long packetsLost;
+        private int participants;
+        private int audioFabrics;
+        private int videoFabrics;
+    }
+}
@@ -0,0 +1,924 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * A {@link StatsSink} appending the per SSRC samples of all conferences to
+ * compressed columnar files on the local disk, for offline analysis. Files are
+ * rotated when they reach a maximum size or age.
+ * <p>
+ * The reporting threads only copy the samples into a block. Full blocks are
+ * encoded, compressed and written by a dedicated thread, and are dropped
+ * when that thread falls behind by more than a few blocks, so that a slow
+ * disk never delays the reports. The same thread closes files that reach
+ * their maximum age while no samples arrive.
+ * <p>
+ * Files are named after the prefix, the time they were opened and a sequence
+ * number, so that files opened within the same millisecond do not collide.
+ * A file starts with the magic bytes <tt>JSTC</tt> and a version byte,
+ * followed by blocks of up to <tt>rowsPerBlock</tt> samples. A block is the
+ * big endian int length of its deflated payload followed by the payload. The
+ * payload holds, as unsigned varints unless noted:
+ * <ul>
+ * <li>the row count;</li>
+ * <li>the number of new dictionary entries, each as a length and UTF-8 bytes.
+ * Entries are numbered from 0 in order of appearance within the file;</li>
+ * <li>the columns, each holding a value for every row: timestamp (zig-zag
+ * delta to the previous row), conference, endpoint and media type (dictionary
+ * numbers), direction (byte, 1 for send), SSRC, bytes, packets and packets
+ * lost (zig-zag delta to the previous sample of the same stream in the file),
+ * fractional loss (in 1/10000), jitter (zig-zag, in 1/100 ms, -1 if unknown)
+ * and RTT (zig-zag, in ms);</li>
+ * <li>the number of conferences stopped after the rows, and their dictionary
+ * numbers. The deltas of their streams restart from zero.</li>
+ * </ul>
+ */
+public class ColumnarFileSink
+    implements StatsSink, Closeable, Flushable
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(ColumnarFileSink.class.getName());
+
+    /**
+     * The magic bytes starting every file.
+     */
+    private static final byte[] MAGIC = { 'J', 'S', 'T', 'C', 2 };
+
+    /**
+     * The extension of the files.
+     */
+    private static final String EXTENSION = ".jstc";
+
+    /**
+     * The maximum number of blocks waiting to be written, above which new
+     * blocks are dropped.
+     */
+    private static final int MAX_PENDING_BLOCKS = 4;
+
+    /**
+     * The maximum interval of checking the age of the current file, in
+     * milliseconds.
+     */
+    private static final long AGE_CHECK_INTERVAL = 1000;
+
+    /**
+     * The directory the files are written to.
+     */
+    private final Path directory;
+
+    /**
+     * The prefix of the file names.
+     */
+    private final String prefix;
+
+    /**
+     * The size after which a file is rotated, in bytes.
+     */
+    private final long maxFileSize;
+
+    /**
+     * The age after which a file is rotated, in milliseconds.
+     */
+    private final long maxFileAge;
+
+    /**
+     * The number of samples in a block.
+     */
+    private final int rowsPerBlock;
+
+    /**
+     * Encodes, compresses and writes the blocks, and rotates the files.
+     */
+    private final ScheduledExecutorService writer
+        = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("columnar-file-sink", true));
+
+    /**
+     * The block being filled. Guarded by this.
+     */
+    private Block block;
+
+    /**
+     * Whether the sink was closed. Guarded by this.
+     */
+    private boolean closed = false;
+
+    /**
+     * The blocks written and ready to be filled again.
+     */
+    private final BlockingQueue<Block> freeBlocks
+        = new ArrayBlockingQueue<>(MAX_PENDING_BLOCKS + 1);
+
+    /**
+     * The number of blocks waiting to be written.
+     */
+    private final AtomicInteger pendingBlocks = new AtomicInteger();
+
+    /**
+     * The number of blocks dropped because too many were pending.
+     */
+    private final AtomicLong droppedBlocks = new AtomicLong();
+
+    /**
+     * The dictionary of the current file, used by the writer thread only.
+     */
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    /**
+     * The dictionary entries added since the last block was written, used by
+     * the writer thread only.
+     */
+    private final List<String> newEntries = new ArrayList<>();
+
+    /**
+     * The counters of the previous sample of every stream in the current
+     * file, used by the writer thread only.
+     */
+    private final Map<StreamKey, long[]> previousCounters = new HashMap<>();
+
+    /**
+     * The dictionary numbers and counter deltas of the block being encoded,
+     * used by the writer thread only.
+     */
+    private final int[] conferenceNumbers;
+    private final int[] endpointNumbers;
+    private final int[] mediaTypeNumbers;
+    private final long[][] deltas;
+
+    /**
+     * The buffer the block payload is encoded to, used by the writer thread
+     * only.
+     */
+    private ByteBuffer encodeBuffer;
+
+    /**
+     * The buffer the payload is compressed to, used by the writer thread
+     * only.
+     */
+    private ByteBuffer compressBuffer;
+
+    /**
+     * The compressor, used by the writer thread only.
+     */
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * The current file, or <tt>null</tt> if none is open. Used by the writer
+     * thread only.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * The time the current file was opened.
+     */
+    private long fileOpenTime = 0;
+
+    /**
+     * The sequence number of the next file, used by the writer thread only.
+     */
+    private long fileSequence = 0;
+
+    /**
+     * The clock the age of the files is measured with.
+     */
+    private final StatsClock clock
+        = StatsServiceFactory.getInstance().getClock();
+
+    /**
+     * The timestamp of the last encoded row, used by the writer thread only.
+     */
+    private long lastTimestamp = 0;
+
+    /**
+     * Creates a sink.
+     * @param directory the directory to write the files to.
+     * @param prefix the prefix of the file names.
+     * @param maxFileSize the size in bytes after which a file is rotated.
+     * @param maxFileAge the age in milliseconds after which a file is rotated.
+     * @param rowsPerBlock the number of samples buffered before they are
+     * compressed and written.
+     */
+    public ColumnarFileSink(
+        Path directory,
+        String prefix,
+        long maxFileSize,
+        long maxFileAge,
+        int rowsPerBlock)
+    {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxFileSize = maxFileSize;
+        this.maxFileAge = maxFileAge;
+        this.rowsPerBlock = rowsPerBlock;
+
+        block = new Block(rowsPerBlock);
+        conferenceNumbers = new int[rowsPerBlock];
+        endpointNumbers = new int[rowsPerBlock];
+        mediaTypeNumbers = new int[rowsPerBlock];
+        deltas = new long[3][rowsPerBlock];
+
+        // worst case of 10 bytes per varint for 12 columns
+        encodeBuffer = ByteBuffer.allocate(rowsPerBlock * 12 * 10);
+        compressBuffer = ByteBuffer.allocateDirect(encodeBuffer.capacity());
+
+        long ageCheckInterval
+            = Math.max(1, Math.min(maxFileAge, AGE_CHECK_INTERVAL));
+        writer.scheduleWithFixedDelay(
+            this::checkAge,
+            ageCheckInterval, ageCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of blocks dropped because the writer thread could
+     * not keep up.
+     * @return the number of blocks.
+     */
+    public long getDroppedBlocks()
+    {
+        return droppedBlocks.get();
+    }
+
+    @Override
+    public synchronized void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats)
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        for (EndpointStats stats : endpointStats)
+        {
+            String endpointId = stats.getEndpointId();
+
+            for (SsrcStats ssrcStats : stats.getReceiveStats())
+            {
+                add(timestamp, conferenceID, endpointId, false, ssrcStats);
+            }
+            for (SsrcStats ssrcStats : stats.getSendStats())
+            {
+                add(timestamp, conferenceID, endpointId, true, ssrcStats);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void conferenceStopped(String conferenceID)
+    {
+        if (!closed)
+        {
+            // applied by the writer after the rows of the block
+            block.stoppedConferences.add(conferenceID);
+        }
+    }
+
+    /**
+     * Writes the buffered samples to the current file and waits until they
+     * are on the disk.
+     * @throws IOException if writing fails.
+     */
+    public void flush()
+        throws IOException
+    {
+        Future<?> task;
+        synchronized (this)
+        {
+            // submitted with the lock held, so that close() cannot stop the
+            // writer in between
+            if (closed)
+            {
+                return;
+            }
+            submit(false);
+            task = writer.submit(() ->
+            {
+                if (channel != null)
+                {
+                    channel.force(false);
+                }
+                return null;
+            });
+        }
+
+        await(task);
+    }
+
+    /**
+     * Writes the buffered samples, closes the current file and stops the
+     * writer thread.
+     * @throws IOException if writing fails.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        Future<?> task;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            submit(false);
+            closed = true;
+            task = writer.submit(() ->
+            {
+                try
+                {
+                    if (channel != null)
+                    {
+                        channel.force(false);
+                    }
+                }
+                finally
+                {
+                    rotate();
+                    deflater.end();
+                }
+                return null;
+            });
+        }
+
+        try
+        {
+            await(task);
+        }
+        finally
+        {
+            // nothing is submitted once closed
+            writer.shutdown();
+        }
+    }
+
+    /**
+     * Waits for a task of the writer thread.
+     */
+    private static void await(Future<?> task)
+        throws IOException
+    {
+        try
+        {
+            task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Buffers a sample, handing the block to the writer when it is full.
+     * Called with the lock held.
+     */
+    private void add(
+        long timestamp, String conferenceID, String endpointId, boolean isSend,
+        SsrcStats stats)
+    {
+        Block block = this.block;
+        int i = block.rows;
+
+        block.timestamps[i] = timestamp;
+        block.conferences[i] = conferenceID;
+        block.endpoints[i] = endpointId;
+        block.mediaTypes[i] = stats.mediaType;
+        block.send[i] = isSend;
+        block.ssrcs[i] = stats.ssrc;
+        block.bytes[i] = stats.bytes;
+        block.packets[i] = stats.packets;
+        block.packetsLost[i] = stats.packetsLost;
+        block.fractionalLoss[i]
+            = (int) Math.round(stats.fractionalPacketLoss * 10000);
+        block.jitter[i] = stats.jitter_ms == null
+            ? -1 : Math.round(stats.jitter_ms * 100);
+        block.rtt[i] = stats.rtt_ms;
+
+        block.rows++;
+        if (block.rows == block.timestamps.length)
+        {
+            submit(true);
+        }
+    }
+
+    /**
+     * Hands the block being filled to the writer thread and starts a new
+     * one. Called with the lock held.
+     * @param mayDrop whether to drop the block when too many are pending.
+     */
+    private void submit(boolean mayDrop)
+    {
+        Block full = block;
+        if (full.rows == 0 && full.stoppedConferences.isEmpty())
+        {
+            return;
+        }
+
+        if (pendingBlocks.incrementAndGet() > MAX_PENDING_BLOCKS && mayDrop)
+        {
+            // keep the stopped conferences for the next block
+            pendingBlocks.decrementAndGet();
+            droppedBlocks.incrementAndGet();
+            full.rows = 0;
+            return;
+        }
+
+        Block next = freeBlocks.poll();
+        block = next != null ? next : new Block(rowsPerBlock);
+        writer.execute(() -> write(full));
+    }
+
+    /**
+     * Writes a block on the writer thread and hands it back for reuse.
+     */
+    private void write(Block block)
+    {
+        try
+        {
+            // the stops are written even without rows, the reader needs them
+            // to restart the deltas
+            if (block.rows > 0 || hasStoppedConferences(block))
+            {
+                writeBlock(block);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to write stats to " + directory, e);
+            rotate();
+        }
+        finally
+        {
+            block.clear();
+            freeBlocks.offer(block);
+            pendingBlocks.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns whether a block stops conferences that have rows in the current
+     * file.
+     */
+    private boolean hasStoppedConferences(Block block)
+    {
+        if (channel == null)
+        {
+            return false;
+        }
+        for (String conferenceID : block.stoppedConferences)
+        {
+            if (dictionary.containsKey(conferenceID))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rotates the current file when it is older than the maximum age, on the
+     * writer thread, so that files of rarely reported stats are closed in
+     * time.
+     */
+    private void checkAge()
+    {
+        if (channel != null && clock.millis() - fileOpenTime >= maxFileAge)
+        {
+            rotate();
+        }
+    }
+
+    /**
+     * Returns the dictionary number of <tt>s</tt>, adding it if needed.
+     */
+    private int lookup(String s)
+    {
+        if (s == null)
+        {
+            s = "";
+        }
+
+        Integer index = dictionary.get(s);
+        if (index == null)
+        {
+            index = dictionary.size();
+            dictionary.put(s, index);
+            newEntries.add(s);
+        }
+
+        return index;
+    }
+
+    /**
+     * Encodes, compresses and writes a block, rotating the file afterwards
+     * if needed.
+     */
+    private void writeBlock(Block block)
+        throws IOException
+    {
+        if (channel == null)
+        {
+            openFile();
+        }
+
+        int rows = block.rows;
+        int[] conferences = conferenceNumbers;
+        int[] endpoints = endpointNumbers;
+        int[] mediaTypes = mediaTypeNumbers;
+        for (int i = 0; i < rows; i++)
+        {
+            conferences[i] = lookup(block.conferences[i]);
+            endpoints[i] = lookup(block.endpoints[i]);
+            mediaTypes[i] = lookup(block.mediaTypes[i]);
+        }
+
+        ByteBuffer buf = encodeBuffer;
+        buf.clear();
+
+        putVarint(buf, rows);
+        putVarint(buf, newEntries.size());
+        for (String entry : newEntries)
+        {
+            byte[] utf8 = entry.getBytes(StandardCharsets.UTF_8);
+            buf = ensureCapacity(buf, utf8.length + 10);
+            putVarint(buf, utf8.length);
+            buf.put(utf8);
+        }
+        newEntries.clear();
+        buf = ensureCapacity(buf, rows * 12 * 10);
+
+        long[] timestamps = block.timestamps;
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, zigZag(timestamps[i] - lastTimestamp));
+            lastTimestamp = timestamps[i];
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, conferences[i]);
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, endpoints[i]);
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, mediaTypes[i]);
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            buf.put((byte) (block.send[i] ? 1 : 0));
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, block.ssrcs[i] & 0xFFFFFFFFL);
+        }
+
+        // the counters as deltas to the previous sample of the stream
+        long[] bytes = deltas[0];
+        long[] packets = deltas[1];
+        long[] packetsLost = deltas[2];
+        for (int i = 0; i < rows; i++)
+        {
+            long[] previous = previousCounters.computeIfAbsent(
+                new StreamKey(
+                    conferences[i], endpoints[i], block.ssrcs[i],
+                    block.send[i]),
+                k -> new long[3]);
+            bytes[i] = block.bytes[i] - previous[0];
+            packets[i] = block.packets[i] - previous[1];
+            packetsLost[i] = block.packetsLost[i] - previous[2];
+            previous[0] = block.bytes[i];
+            previous[1] = block.packets[i];
+            previous[2] = block.packetsLost[i];
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, zigZag(bytes[i]));
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, zigZag(packets[i]));
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, zigZag(packetsLost[i]));
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, Math.max(0, block.fractionalLoss[i]));
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, zigZag(block.jitter[i]));
+        }
+        for (int i = 0; i < rows; i++)
+        {
+            putVarint(buf, zigZag(block.rtt[i]));
+        }
+
+        // forget the deltas of the stopped conferences, the reader does too
+        List<String> stopped = block.stoppedConferences;
+        int stoppedCount = 0;
+        for (String conferenceID : stopped)
+        {
+            if (dictionary.containsKey(conferenceID))
+            {
+                stoppedCount++;
+            }
+        }
+        buf = ensureCapacity(buf, 10 + stoppedCount * 10);
+        putVarint(buf, stoppedCount);
+        for (String conferenceID : stopped)
+        {
+            Integer conference = dictionary.get(conferenceID);
+            if (conference != null)
+            {
+                putVarint(buf, conference);
+                previousCounters.keySet()
+                    .removeIf(k -> k.conference == conference);
+            }
+        }
+
+        buf.flip();
+        encodeBuffer = buf;
+
+        if (compressBuffer.capacity() < buf.remaining() + 64)
+        {
+            compressBuffer = ByteBuffer.allocateDirect(buf.capacity() + 64);
+        }
+
+        ByteBuffer out = compressBuffer;
+        out.clear();
+        out.putInt(0);
+
+        deflater.reset();
+        deflater.setInput(buf);
+        deflater.finish();
+        while (!deflater.finished())
+        {
+            if (!out.hasRemaining())
+            {
+                ByteBuffer bigger
+                    = ByteBuffer.allocateDirect(out.capacity() * 2);
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+                compressBuffer = bigger;
+            }
+            deflater.deflate(out);
+        }
+
+        out.putInt(0, out.position() - 4);
+        out.flip();
+        while (out.hasRemaining())
+        {
+            channel.write(out);
+        }
+
+        if (channel.size() >= maxFileSize
+            || clock.millis() - fileOpenTime >= maxFileAge)
+        {
+            rotate();
+        }
+    }
+
+    /**
+     * Closes the current file and resets the dictionary and deltas, so that
+     * every file can be read on its own. Called by the writer thread between
+     * blocks.
+     */
+    private void rotate()
+    {
+        closeFile();
+
+        dictionary.clear();
+        newEntries.clear();
+        previousCounters.clear();
+        lastTimestamp = 0;
+    }
+
+    /**
+     * Opens a new file.
+     */
+    private void openFile()
+        throws IOException
+    {
+        fileOpenTime = clock.millis();
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS")
+            .format(new Date(fileOpenTime));
+
+        Files.createDirectories(directory);
+        while (channel == null)
+        {
+            String name = prefix + "-" + time + "-" + fileSequence++
+                + EXTENSION;
+            try
+            {
+                channel = FileChannel.open(
+                    directory.resolve(name),
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                // e.g. left by another sink with the same prefix, try the
+                // next number
+            }
+        }
+        channel.write(ByteBuffer.wrap(MAGIC));
+    }
+
+    /**
+     * Closes the current file, ignoring errors.
+     */
+    private void closeFile()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to close stats file", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Grows <tt>buf</tt> if it has less than <tt>needed</tt> bytes left.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buf, int needed)
+    {
+        if (buf.remaining() >= needed)
+        {
+            return buf;
+        }
+
+        ByteBuffer bigger = ByteBuffer.allocate(
+            Math.max(buf.capacity() * 2, buf.position() + needed));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /**
+     * Writes an unsigned varint.
+     */
+    private static void putVarint(ByteBuffer buf, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Maps signed values to unsigned ones so small magnitudes stay small.
+     */
+    private static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * The samples of a block, as reported.
+     */
+    private static class Block
+    {
+        final long[] timestamps;
+        final String[] conferences;
+        final String[] endpoints;
+        final String[] mediaTypes;
+        final boolean[] send;
+        final long[] ssrcs;
+        final long[] bytes;
+        final long[] packets;
+        final long[] packetsLost;
+        final int[] fractionalLoss;
+        final long[] jitter;
+        final int[] rtt;
+
+        /**
+         * The number of samples.
+         */
+        int rows = 0;
+
+        /**
+         * The conferences stopped after the samples.
+         */
+        final List<String> stoppedConferences = new ArrayList<>(0);
+
+        Block(int size)
+        {
+            timestamps = new long[size];
+            conferences = new String[size];
+            endpoints = new String[size];
+            mediaTypes = new String[size];
+            send = new boolean[size];
+            ssrcs = new long[size];
+            bytes = new long[size];
+            packets = new long[size];
+            packetsLost = new long[size];
+            fractionalLoss = new int[size];
+            jitter = new long[size];
+            rtt = new int[size];
+        }
+
+        /**
+         * Empties the block, releasing the references to the IDs.
+         */
+        void clear()
+        {
+            Arrays.fill(conferences, 0, rows, null);
+            Arrays.fill(endpoints, 0, rows, null);
+            Arrays.fill(mediaTypes, 0, rows, null);
+            stoppedConferences.clear();
+            rows = 0;
+        }
+    }
+
+    /**
+     * Identifies a stream within a file.
+     */
+    private static class StreamKey
+    {
+        private final int conference;
+        private final int endpoint;
+        private final long ssrc;
+        private final boolean send;
+
+        StreamKey(int conference, int endpoint, long ssrc, boolean send)
+        {
+            this.conference = conference;
+            this.endpoint = endpoint;
+            this.ssrc = ssrc;
+            this.send = send;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof StreamKey))
+            {
+                return false;
+            }
+
+            StreamKey other = (StreamKey) o;
+            return conference == other.conference
+                && endpoint == other.endpoint
+                && ssrc == other.ssrc
+                && send == other.send;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = conference;
+            result = 31 * result + endpoint;
+            result = 31 * result + Long.hashCode(ssrc);
+            return 31 * result + (send ? 1 : 0);
+        }
+    }
+}
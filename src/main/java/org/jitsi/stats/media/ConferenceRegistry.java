@@ -0,0 +1,388 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps track of all started {@link AbstractStatsPeriodicRunnable}s, so that
+ * conferences whose owner forgot to call
+ * {@link AbstractStatsPeriodicRunnable#stop()} do not keep their callstats
+ * state and alive senders for the life of the process.
+ * <p>
+ * While conferences are started, the registry checks them every minute on the
+ * clock of the library. With an idle timeout, it stops conferences that had
+ * no activity for longer; with a memory budget, it stops the least recently
+ * active conferences while the estimated memory of all conferences exceeds
+ * it. Both are off until set. A conference whose setup in callstats never
+ * completed, and whose stats go to no sink, counts as idle. Stopped
+ * conferences leave the executor they were registered with through
+ * {@link AbstractStatsPeriodicRunnable#registerWith}.
+ */
+public class ConferenceRegistry
+    extends PeriodicRunnable
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(ConferenceRegistry.class.getName());
+
+    /**
+     * The default interval of checking the conferences.
+     */
+    private static final long DEFAULT_PERIOD = 60_000;
+
+    /**
+     * The started conferences.
+     */
+    private final Set<AbstractStatsPeriodicRunnable<?>> conferences
+        = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The time without activity after which a conference is stopped, in
+     * milliseconds, or 0 to disable.
+     */
+    private volatile long idleTimeout = 0;
+
+    /**
+     * The estimated number of bytes all conferences may use, or 0 to disable.
+     */
+    private volatile long memoryBudget = 0;
+
+    /**
+     * The clock the checks run on, the one of the factory owning this
+     * registry. Written while holding this.
+     */
+    private volatile StatsClock clock;
+
+    /**
+     * The next check, or <tt>null</tt> if none is scheduled. Guarded by this.
+     */
+    private ScheduledFuture<?> nextCheck = null;
+
+    /**
+     * The reporting interval applied to all conferences, or 0 to keep the
+     * interval each conference was created with.
+     */
+    private volatile long period = 0;
+
+    /**
+     * The estimated number of bytes used by all conferences, as of the last
+     * check.
+     */
+    private volatile long estimatedMemoryUsage = 0;
+
+    /**
+     * The number of conferences stopped for being idle.
+     */
+    private final AtomicLong idleEvictions = new AtomicLong();
+
+    /**
+     * The number of conferences stopped to stay within the memory budget.
+     */
+    private final AtomicLong memoryEvictions = new AtomicLong();
+
+    /**
+     * Creates a registry.
+     * @param clock the clock to run the checks on.
+     */
+    ConferenceRegistry(StatsClock clock)
+    {
+        super(DEFAULT_PERIOD);
+        this.clock = clock;
+    }
+
+    /**
+     * Changes the clock the checks run on, following the clock of the
+     * factory. A pending check is moved to the new clock.
+     * @param clock the clock.
+     */
+    synchronized void setClock(StatsClock clock)
+    {
+        if (clock == this.clock)
+        {
+            return;
+        }
+
+        this.clock = clock;
+        if (nextCheck != null)
+        {
+            nextCheck.cancel(false);
+            nextCheck = null;
+        }
+        scheduleCheck();
+    }
+
+    /**
+     * Schedules the next check if there are conferences and none is
+     * scheduled. Called while holding this.
+     */
+    private void scheduleCheck()
+    {
+        if (nextCheck == null && !conferences.isEmpty())
+        {
+            StatsClock clock = this.clock;
+            nextCheck = clock.schedule(
+                () -> check(clock), getPeriod(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the time without activity after which a conference is stopped.
+     * @param idleTimeout the timeout in milliseconds, or 0 to disable.
+     */
+    public void setIdleTimeout(long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns the time without activity after which a conference is stopped.
+     * @return the timeout in milliseconds, or 0 if disabled.
+     */
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the estimated number of bytes all conferences may use.
+     * @param memoryBudget the budget in bytes, or 0 to disable.
+     */
+    public void setMemoryBudget(long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns the estimated number of bytes all conferences may use.
+     * @return the budget in bytes, or 0 if disabled.
+     */
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Changes the reporting interval of all started conferences and of those
+     * started later.
+     * @param period the interval in milliseconds, or 0 to stop overriding it,
+     * which restores the interval every started conference was created with.
+     */
+    public void setPeriod(long period)
+    {
+        long previous = this.period;
+        this.period = period;
+        if (period > 0)
+        {
+            for (AbstractStatsPeriodicRunnable<?> conference : conferences)
+            {
+                conference.setPeriod(period);
+            }
+        }
+        else if (previous > 0)
+        {
+            for (AbstractStatsPeriodicRunnable<?> conference : conferences)
+            {
+                conference.setPeriod(conference.getInitialPeriod());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of started conferences.
+     * @return the number of conferences.
+     */
+    public int getConferenceCount()
+    {
+        return conferences.size();
+    }
+
+    /**
+     * Returns the estimated number of bytes used by all conferences, as of the
+     * last check.
+     * @return the estimated memory usage in bytes.
+     */
+    public long getEstimatedMemoryUsage()
+    {
+        return estimatedMemoryUsage;
+    }
+
+    /**
+     * Returns the number of conferences stopped for being idle.
+     * @return the number of idle evictions.
+     */
+    public long getIdleEvictions()
+    {
+        return idleEvictions.get();
+    }
+
+    /**
+     * Returns the number of conferences stopped to stay within the memory
+     * budget.
+     * @return the number of memory evictions.
+     */
+    public long getMemoryEvictions()
+    {
+        return memoryEvictions.get();
+    }
+
+    /**
+     * Returns a copy of the started conferences.
+     * @return the started conferences.
+     */
+    public List<AbstractStatsPeriodicRunnable<?>> getConferences()
+    {
+        return new ArrayList<>(conferences);
+    }
+
+    /**
+     * Adds a started conference.
+     * @param conference the conference.
+     */
+    void register(AbstractStatsPeriodicRunnable<?> conference)
+    {
+        long period = this.period;
+        if (period > 0)
+        {
+            conference.setPeriod(period);
+        }
+
+        conferences.add(conference);
+
+        synchronized (this)
+        {
+            scheduleCheck();
+        }
+    }
+
+    /**
+     * Runs a check and schedules the next one while there are conferences.
+     * @param scheduledOn the clock the check was scheduled on.
+     */
+    private void check(StatsClock scheduledOn)
+    {
+        try
+        {
+            run();
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to check conferences", e);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                // after a change of the clock, the check on the new one
+                // was already scheduled
+                if (scheduledOn == clock)
+                {
+                    nextCheck = null;
+                    scheduleCheck();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a stopped conference.
+     * @param conference the conference.
+     */
+    void unregister(AbstractStatsPeriodicRunnable<?> conference)
+    {
+        conferences.remove(conference);
+    }
+
+    @Override
+    public void run()
+    {
+        super.run();
+
+        long now = clock.millis();
+        long idleTimeout = this.idleTimeout;
+
+        if (idleTimeout > 0)
+        {
+            for (AbstractStatsPeriodicRunnable<?> conference : conferences)
+            {
+                if (now - conference.getLastActivity() > idleTimeout)
+                {
+                    logger.warn("Stopping idle conference "
+                        + conference.getConferenceID());
+                    evict(conference);
+                    idleEvictions.incrementAndGet();
+                }
+            }
+        }
+
+        long memoryUsage = 0;
+        for (AbstractStatsPeriodicRunnable<?> conference : conferences)
+        {
+            memoryUsage += conference.estimateMemoryUsage();
+        }
+
+        long memoryBudget = this.memoryBudget;
+        if (memoryBudget > 0 && memoryUsage > memoryBudget)
+        {
+            List<AbstractStatsPeriodicRunnable<?>> byActivity
+                = getConferences();
+            byActivity.sort(Comparator.comparingLong(
+                AbstractStatsPeriodicRunnable::getLastActivity));
+
+            for (AbstractStatsPeriodicRunnable<?> conference : byActivity)
+            {
+                if (memoryUsage <= memoryBudget)
+                {
+                    break;
+                }
+
+                logger.warn("Memory budget exceeded, stopping conference "
+                    + conference.getConferenceID());
+                memoryUsage -= conference.estimateMemoryUsage();
+                evict(conference);
+                memoryEvictions.incrementAndGet();
+            }
+        }
+
+        estimatedMemoryUsage = memoryUsage;
+    }
+
+    /**
+     * Stops a conference, which also removes it from the registry.
+     */
+    private void evict(AbstractStatsPeriodicRunnable<?> conference)
+    {
+        try
+        {
+            conference.stop();
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to stop conference "
+                + conference.getConferenceID(), e);
+        }
+        finally
+        {
+            conferences.remove(conference);
+        }
+    }
+}
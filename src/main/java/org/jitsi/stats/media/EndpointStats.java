@@ -37,6 +37,12 @@ public class EndpointStats
      */
     private final String endpointId;
 
+    /**
+     * The mean opinion score of the streams of the endpoint, or <tt>NaN</tt>
+     * if not estimated.
+     */
+    private double mos = Double.NaN;
+
     /**
      * Initializes a new {@link EndpointStats} instance.
      */
@@ -85,4 +91,21 @@ public class EndpointStats
         return endpointId;
     }
 
+    /**
+     * Gets the mean opinion score of the streams of the endpoint, estimated by
+     * {@link QualityEstimator}, or <tt>NaN</tt> if not estimated.
+     */
+    public double getMos()
+    {
+        return mos;
+    }
+
+    /**
+     * Sets the mean opinion score of the streams of the endpoint.
+     */
+    void setMos(double mos)
+    {
+        this.mos = mos;
+    }
+
 }
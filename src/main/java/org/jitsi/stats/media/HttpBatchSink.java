@@ -0,0 +1,906 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * A {@link StatsSink} posting the stats of the conferences and the bridge
+ * statistics in batches to an HTTP collector, as a gzip compressed JSON array
+ * of records:
+ * <pre>
+ * {"type":"conference","conferenceID":"...","timestamp":...,"endpoints":[
+ *   {"id":"...","mos":...,"receive":[stream...],"send":[stream...]}]}
+ * {"type":"bridge","timestamp":...,"cpuUsage":...,...}
+ *
+ * stream = {"ssrc":...,"mediaType":"...","bytes":...,"packets":...,
+ *   "packetsLost":...,"fractionalPacketLoss":...,"jitter":...,"rtt":...,
+ *   "mos":...}
+ * </pre>
+ * The <tt>mos</tt> fields are only written for conferences estimating the
+ * quality scores, see
+ * {@link AbstractStatsPeriodicRunnable#setQualityEstimation(boolean)}. With
+ * {@link #setQualityOnly(boolean)} the scored streams are written without
+ * their loss, jitter and RTT.
+ * The records are encoded by the calling thread into pooled direct buffers of
+ * its own, without holding the lock of the sink, which is only taken to copy
+ * the finished record into the batch. Batches are compressed into other
+ * pooled buffers and handed to the HTTP client without copying. A batch is
+ * sent when it reaches the maximum size or when the flush interval elapsed.
+ * Batches are dropped rather than queued when the collector cannot keep up.
+ */
+public class HttpBatchSink
+    implements StatsSink, Closeable, Flushable
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(HttpBatchSink.class.getName());
+
+    /**
+     * The size of the pooled buffers.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of buffers kept in the pool.
+     */
+    private static final int MAX_POOLED_CHUNKS = 64;
+
+    /**
+     * The maximum number of batches being compressed or sent, above which
+     * new batches are dropped.
+     */
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    /**
+     * The timeout of a request to the collector.
+     */
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * The interval of checking whether the pending batches completed when
+     * closing, in milliseconds.
+     */
+    private static final long CLOSE_POLL_INTERVAL = 10;
+
+    /**
+     * The gzip header: magic, deflate, no flags, no time, no extra flags,
+     * unknown OS.
+     */
+    private static final byte[] GZIP_HEADER
+        = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /**
+     * The URI batches are posted to.
+     */
+    private final URI collectorUri;
+
+    /**
+     * The uncompressed size above which a batch is sent.
+     */
+    private final int maxBatchSize;
+
+    /**
+     * The pool of buffers.
+     */
+    private final BlockingQueue<ByteBuffer> pool
+        = new ArrayBlockingQueue<>(MAX_POOLED_CHUNKS);
+
+    /**
+     * The client sending the batches, over HTTP/2 when the collector
+     * supports it.
+     */
+    private final HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+
+    /**
+     * Runs the periodic flushes and the compression.
+     */
+    private final ScheduledExecutorService executor
+        = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("http-batch-sink", true));
+
+    /**
+     * The compressor, used by the executor thread only.
+     */
+    private final Deflater deflater
+        = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    /**
+     * The checksum of the compressed data, used by the executor thread only.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The batch being filled. Guarded by this.
+     */
+    private JsonBuffer batch = null;
+
+    /**
+     * Whether the loss, jitter and RTT of scored streams are left out.
+     */
+    private volatile boolean qualityOnly = false;
+
+    /**
+     * The number of batches being compressed or sent.
+     */
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong droppedBatches = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    /**
+     * Creates a sink.
+     * @param collectorUri the URI the batches are posted to.
+     * @param maxBatchSize the uncompressed size in bytes above which a batch
+     * is sent.
+     * @param flushInterval the maximum time between sending batches, in
+     * milliseconds.
+     */
+    public HttpBatchSink(URI collectorUri, int maxBatchSize, long flushInterval)
+    {
+        this.collectorUri = collectorUri;
+        this.maxBatchSize = maxBatchSize;
+
+        executor.scheduleWithFixedDelay(
+            this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of batches accepted by the collector.
+     * @return the number of batches.
+     */
+    public long getSentBatches()
+    {
+        return sentBatches.get();
+    }
+
+    /**
+     * Returns the number of batches that failed to be sent or were rejected
+     * by the collector.
+     * @return the number of batches.
+     */
+    public long getFailedBatches()
+    {
+        return failedBatches.get();
+    }
+
+    /**
+     * Returns the number of batches dropped because too many batches were
+     * pending.
+     * @return the number of batches.
+     */
+    public long getDroppedBatches()
+    {
+        return droppedBatches.get();
+    }
+
+    /**
+     * Returns the number of compressed bytes accepted by the collector.
+     * @return the number of bytes.
+     */
+    public long getSentBytes()
+    {
+        return sentBytes.get();
+    }
+
+    /**
+     * Sets whether the streams that have a quality score are written with
+     * the score in place of their loss, jitter and RTT, which makes the
+     * batches smaller for collectors that only need the score.
+     * @param qualityOnly whether to leave out the raw quality fields.
+     */
+    public void setQualityOnly(boolean qualityOnly)
+    {
+        this.qualityOnly = qualityOnly;
+    }
+
+    @Override
+    public void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats)
+    {
+        boolean qualityOnly = this.qualityOnly;
+        JsonBuffer json = new JsonBuffer();
+
+        json.ascii("{\"type\":\"conference\",\"conferenceID\":")
+            .string(conferenceID)
+            .ascii(",\"timestamp\":").number(timestamp)
+            .ascii(",\"endpoints\":[");
+
+        boolean first = true;
+        for (EndpointStats endpoint : endpointStats)
+        {
+            if (!first)
+            {
+                json.put((byte) ',');
+            }
+            first = false;
+
+            json.ascii("{\"id\":").string(endpoint.getEndpointId());
+            if (!Double.isNaN(endpoint.getMos()))
+            {
+                json.ascii(",\"mos\":").number(endpoint.getMos());
+            }
+            json.ascii(",\"receive\":");
+            writeStreams(json, endpoint.getReceiveStats(), qualityOnly);
+            json.ascii(",\"send\":");
+            writeStreams(json, endpoint.getSendStats(), qualityOnly);
+            json.put((byte) '}');
+        }
+        json.ascii("]}");
+
+        add(json);
+    }
+
+    @Override
+    public void bridgeStatistics(long timestamp, BridgeStatistics stats)
+    {
+        JsonBuffer json = new JsonBuffer();
+
+        json.ascii("{\"type\":\"bridge\",\"timestamp\":").number(timestamp)
+            .ascii(",\"measurementInterval\":")
+            .number(stats.getMeasurementInterval())
+            .ascii(",\"cpuUsage\":").number(stats.getCpuUsage())
+            .ascii(",\"memoryUsage\":").number(stats.getMemoryUsage())
+            .ascii(",\"totalMemory\":").number(stats.getTotalMemory())
+            .ascii(",\"threadCount\":").number(stats.getThreadCount())
+            .ascii(",\"intervalSentBytes\":")
+            .number(stats.getIntervalSentBytes())
+            .ascii(",\"intervalReceivedBytes\":")
+            .number(stats.getIntervalReceivedBytes())
+            .ascii(",\"intervalRtpFractionLoss\":")
+            .number(stats.getIntervalRtpFractionLoss())
+            .ascii(",\"totalLoss\":").number(stats.getTotalLoss())
+            .ascii(",\"avgIntervalRtt\":").number(stats.getAvgIntervalRtt())
+            .ascii(",\"avgIntervalJitter\":")
+            .number(stats.getAvgIntervalJitter())
+            .ascii(",\"intervalDownloadBitRate\":")
+            .number(stats.getIntervalDownloadBitRate())
+            .ascii(",\"intervalUploadBitRate\":")
+            .number(stats.getIntervalUploadBitRate())
+            .ascii(",\"audioFabricCount\":")
+            .number(stats.getAudioFabricCount())
+            .ascii(",\"videoFabricCount\":")
+            .number(stats.getVideoFabricCount())
+            .ascii(",\"conferenceCount\":")
+            .number(stats.getConferenceCount())
+            .ascii(",\"participantsCount\":")
+            .number(stats.getParticipantsCount())
+            .put((byte) '}');
+
+        add(json);
+    }
+
+    /**
+     * Sends the current batch, if it is not empty.
+     */
+    public void flush()
+    {
+        JsonBuffer full;
+
+        synchronized (this)
+        {
+            full = batch;
+            batch = null;
+        }
+
+        if (full != null)
+        {
+            submit(full);
+        }
+    }
+
+    /**
+     * Sends the current batch, stops the periodic flushes and waits for the
+     * pending batches to complete, for at most the request timeout. When
+     * interrupted, the pending batches complete in the background.
+     */
+    @Override
+    public void close()
+    {
+        flush();
+        executor.shutdown();
+
+        long deadline = System.nanoTime() + REQUEST_TIMEOUT.toNanos();
+        try
+        {
+            while (pendingBatches.get() > 0 && System.nanoTime() < deadline)
+            {
+                Thread.sleep(CLOSE_POLL_INTERVAL);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies an encoded record into the current batch, and sends the batch if
+     * it is full.
+     */
+    private void add(JsonBuffer record)
+    {
+        JsonBuffer full = null;
+
+        try
+        {
+            synchronized (this)
+            {
+                JsonBuffer json = startRecord();
+                json.append(record);
+
+                if (json.size() >= maxBatchSize)
+                {
+                    full = batch;
+                    batch = null;
+                }
+            }
+        }
+        finally
+        {
+            release(record.chunks);
+        }
+
+        if (full != null)
+        {
+            submit(full);
+        }
+    }
+
+    /**
+     * Starts a record in the current batch, starting a batch if needed.
+     * Called with the lock held.
+     */
+    private JsonBuffer startRecord()
+    {
+        if (batch == null)
+        {
+            batch = new JsonBuffer();
+            batch.put((byte) '[');
+        }
+        else
+        {
+            batch.put((byte) ',');
+        }
+        return batch;
+    }
+
+    /**
+     * Writes the stats of the streams of an endpoint.
+     */
+    private static void writeStreams(
+        JsonBuffer json, List<SsrcStats> streams, boolean qualityOnly)
+    {
+        json.put((byte) '[');
+
+        boolean first = true;
+        for (SsrcStats stats : streams)
+        {
+            if (!first)
+            {
+                json.put((byte) ',');
+            }
+            first = false;
+
+            json.ascii("{\"ssrc\":").number(stats.ssrc)
+                .ascii(",\"mediaType\":").string(stats.mediaType)
+                .ascii(",\"bytes\":").number(stats.bytes)
+                .ascii(",\"packets\":").number(stats.packets);
+
+            boolean scored = !Double.isNaN(stats.mos);
+            if (!scored || !qualityOnly)
+            {
+                json.ascii(",\"packetsLost\":").number(stats.packetsLost)
+                    .ascii(",\"fractionalPacketLoss\":")
+                    .number(stats.fractionalPacketLoss)
+                    .ascii(",\"jitter\":")
+                    .number(stats.jitter_ms == null
+                        ? Double.NaN : stats.jitter_ms)
+                    .ascii(",\"rtt\":").number(stats.rtt_ms);
+            }
+            if (scored)
+            {
+                json.ascii(",\"mos\":").number(stats.mos);
+            }
+            json.put((byte) '}');
+        }
+
+        json.put((byte) ']');
+    }
+
+    /**
+     * Closes a batch and hands it to the executor for compressing and
+     * sending, or drops it if too many batches are pending.
+     */
+    private void submit(JsonBuffer json)
+    {
+        json.put((byte) ']');
+
+        if (pendingBatches.incrementAndGet() > MAX_PENDING_BATCHES)
+        {
+            pendingBatches.decrementAndGet();
+            droppedBatches.incrementAndGet();
+            release(json.chunks);
+            return;
+        }
+
+        try
+        {
+            executor.execute(() -> send(json));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // closed
+            pendingBatches.decrementAndGet();
+            droppedBatches.incrementAndGet();
+            release(json.chunks);
+        }
+    }
+
+    /**
+     * Compresses a batch and posts it. Runs on the executor.
+     */
+    private void send(JsonBuffer json)
+    {
+        List<ByteBuffer> compressed;
+        try
+        {
+            compressed = compress(json.chunks);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Failed to compress stats batch", e);
+            pendingBatches.decrementAndGet();
+            failedBatches.incrementAndGet();
+            return;
+        }
+        finally
+        {
+            release(json.chunks);
+        }
+
+        long length = 0;
+        for (ByteBuffer chunk : compressed)
+        {
+            length += chunk.remaining();
+        }
+        long contentLength = length;
+
+        HttpRequest request = HttpRequest.newBuilder(collectorUri)
+            .timeout(REQUEST_TIMEOUT)
+            .header("Content-Type", "application/json")
+            .header("Content-Encoding", "gzip")
+            .POST(HttpRequest.BodyPublishers.fromPublisher(
+                new ChunksPublisher(compressed), contentLength))
+            .build();
+
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .whenComplete((response, error) -> {
+                pendingBatches.decrementAndGet();
+                release(compressed);
+
+                if (error != null)
+                {
+                    failedBatches.incrementAndGet();
+                    logger.warn("Failed to send stats batch to "
+                        + collectorUri + ": " + error.getMessage());
+                }
+                else if (response.statusCode() / 100 != 2)
+                {
+                    failedBatches.incrementAndGet();
+                    logger.warn("Stats collector " + collectorUri
+                        + " responded " + response.statusCode());
+                }
+                else
+                {
+                    sentBatches.incrementAndGet();
+                    sentBytes.addAndGet(contentLength);
+                }
+            });
+    }
+
+    /**
+     * Compresses the chunks of a batch in the gzip format. Runs on the
+     * executor.
+     */
+    private List<ByteBuffer> compress(List<ByteBuffer> chunks)
+    {
+        List<ByteBuffer> compressed = new ArrayList<>();
+        ByteBuffer out = acquire();
+        compressed.add(out);
+        out.put(GZIP_HEADER);
+
+        deflater.reset();
+        crc.reset();
+        long size = 0;
+
+        for (ByteBuffer chunk : chunks)
+        {
+            chunk.flip();
+            size += chunk.remaining();
+            crc.update(chunk.duplicate());
+            deflater.setInput(chunk);
+
+            while (!deflater.needsInput())
+            {
+                out = deflate(out, compressed);
+            }
+        }
+
+        deflater.finish();
+        while (!deflater.finished())
+        {
+            out = deflate(out, compressed);
+        }
+
+        if (out.remaining() < 8)
+        {
+            out = acquire();
+            compressed.add(out);
+        }
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt((int) crc.getValue());
+        out.putInt((int) size);
+        out.order(ByteOrder.BIG_ENDIAN);
+
+        for (ByteBuffer buffer : compressed)
+        {
+            buffer.flip();
+        }
+        return compressed;
+    }
+
+    /**
+     * Deflates into <tt>out</tt>, or a new buffer if it is full.
+     */
+    private ByteBuffer deflate(ByteBuffer out, List<ByteBuffer> compressed)
+    {
+        if (!out.hasRemaining())
+        {
+            out = acquire();
+            compressed.add(out);
+        }
+        deflater.deflate(out);
+        return out;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one.
+     */
+    private ByteBuffer acquire()
+    {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    /**
+     * Returns buffers to the pool, dropping those that do not fit.
+     */
+    private void release(List<ByteBuffer> buffers)
+    {
+        for (ByteBuffer buffer : buffers)
+        {
+            buffer.clear();
+            if (!pool.offer(buffer))
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes JSON into pooled buffers.
+     */
+    private class JsonBuffer
+    {
+        /**
+         * The buffers written so far, the last one being written.
+         */
+        final List<ByteBuffer> chunks = new ArrayList<>();
+
+        /**
+         * The buffer being written.
+         */
+        private ByteBuffer current;
+
+        /**
+         * The size of the buffers before <tt>current</tt>.
+         */
+        private int previousSize = 0;
+
+        /**
+         * The digits of a number being written.
+         */
+        private final byte[] digits = new byte[20];
+
+        JsonBuffer()
+        {
+            current = acquire();
+            chunks.add(current);
+        }
+
+        /**
+         * Returns the number of bytes written.
+         */
+        int size()
+        {
+            return previousSize + current.position();
+        }
+
+        JsonBuffer put(byte b)
+        {
+            if (!current.hasRemaining())
+            {
+                previousSize += current.position();
+                current = acquire();
+                chunks.add(current);
+            }
+            current.put(b);
+            return this;
+        }
+
+        /**
+         * Copies the bytes written into another buffer.
+         */
+        void append(JsonBuffer other)
+        {
+            for (ByteBuffer chunk : other.chunks)
+            {
+                chunk.flip();
+                int limit = chunk.limit();
+                while (chunk.hasRemaining())
+                {
+                    if (!current.hasRemaining())
+                    {
+                        previousSize += current.position();
+                        current = acquire();
+                        chunks.add(current);
+                    }
+                    chunk.limit(chunk.position()
+                        + Math.min(chunk.remaining(), current.remaining()));
+                    current.put(chunk);
+                    chunk.limit(limit);
+                }
+            }
+        }
+
+        /**
+         * Writes a string that needs no escaping, as is.
+         */
+        JsonBuffer ascii(String s)
+        {
+            for (int i = 0, n = s.length(); i < n; i++)
+            {
+                put((byte) s.charAt(i));
+            }
+            return this;
+        }
+
+        /**
+         * Writes a quoted and escaped string, or null.
+         */
+        JsonBuffer string(String s)
+        {
+            if (s == null)
+            {
+                return ascii("null");
+            }
+
+            put((byte) '"');
+            for (int i = 0, n = s.length(); i < n; i++)
+            {
+                char c = s.charAt(i);
+
+                if (c == '"' || c == '\\')
+                {
+                    put((byte) '\\').put((byte) c);
+                }
+                else if (c < 0x20)
+                {
+                    ascii("\\u00")
+                        .put(hex(c >> 4))
+                        .put(hex(c & 0xf));
+                }
+                else if (c < 0x80)
+                {
+                    put((byte) c);
+                }
+                else
+                {
+                    int codePoint = s.codePointAt(i);
+                    if (Character.isSupplementaryCodePoint(codePoint))
+                    {
+                        i++;
+                    }
+                    else if (Character.isSurrogate(c))
+                    {
+                        // unpaired surrogate
+                        codePoint = '?';
+                    }
+                    utf8(codePoint);
+                }
+            }
+            return put((byte) '"');
+        }
+
+        JsonBuffer number(long value)
+        {
+            if (value == Long.MIN_VALUE)
+            {
+                return ascii(Long.toString(value));
+            }
+            if (value < 0)
+            {
+                put((byte) '-');
+                value = -value;
+            }
+
+            int i = digits.length;
+            do
+            {
+                digits[--i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            while (value != 0);
+
+            for (; i < digits.length; i++)
+            {
+                put(digits[i]);
+            }
+            return this;
+        }
+
+        /**
+         * Writes a number, or null if it is not finite.
+         */
+        JsonBuffer number(double value)
+        {
+            if (Double.isNaN(value) || Double.isInfinite(value))
+            {
+                return ascii("null");
+            }
+            if (value == (long) value && Math.abs(value) < 1e15)
+            {
+                return number((long) value);
+            }
+            return ascii(Double.toString(value));
+        }
+
+        private void utf8(int codePoint)
+        {
+            if (codePoint < 0x800)
+            {
+                put((byte) (0xc0 | (codePoint >> 6)));
+            }
+            else if (codePoint < 0x10000)
+            {
+                put((byte) (0xe0 | (codePoint >> 12)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            }
+            else
+            {
+                put((byte) (0xf0 | (codePoint >> 18)));
+                put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            }
+            put((byte) (0x80 | (codePoint & 0x3f)));
+        }
+
+        private byte hex(int nibble)
+        {
+            return (byte) (nibble < 10 ? '0' + nibble : 'a' + nibble - 10);
+        }
+    }
+
+    /**
+     * Publishes the compressed buffers of a batch to the HTTP client.
+     */
+    private static class ChunksPublisher
+        implements Flow.Publisher<ByteBuffer>
+    {
+        private final List<ByteBuffer> chunks;
+
+        ChunksPublisher(List<ByteBuffer> chunks)
+        {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+        {
+            subscriber.onSubscribe(new Flow.Subscription()
+            {
+                /**
+                 * The index of the next buffer.
+                 */
+                private int next = 0;
+
+                /**
+                 * The number of buffers requested and not published yet.
+                 */
+                private long demand = 0;
+
+                /**
+                 * Whether buffers are being published, to not recurse when
+                 * more are requested from <tt>onNext</tt>.
+                 */
+                private boolean publishing = false;
+
+                private boolean cancelled = false;
+
+                @Override
+                public synchronized void request(long n)
+                {
+                    if (cancelled)
+                    {
+                        return;
+                    }
+                    if (n <= 0)
+                    {
+                        cancelled = true;
+                        subscriber.onError(new IllegalArgumentException(
+                            "non-positive request " + n));
+                        return;
+                    }
+
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    if (publishing)
+                    {
+                        return;
+                    }
+
+                    publishing = true;
+                    while (demand > 0 && next < chunks.size() && !cancelled)
+                    {
+                        demand--;
+                        // a view, so a retry publishes the whole buffer again
+                        subscriber.onNext(chunks.get(next++).duplicate());
+                    }
+                    publishing = false;
+
+                    if (next == chunks.size() && !cancelled)
+                    {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public synchronized void cancel()
+                {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.apache.commons.lang3.StringUtils.*;
+
+/**
+ * Shares the identifier strings of a conference, so that an identifier kept
+ * by long lived objects is on the heap once.
+ * <p>
+ * The conference ID prefix and site ID derived from a MUC domain are cached
+ * for all conferences, in a bounded least recently used cache, so they are
+ * derived once per domain rather than once per conference. The endpoint IDs
+ * are interned per conference, where they are first kept, e.g. by the
+ * handles of pushed streams, and dropped when the conference stops.
+ */
+public class IdentifierPool
+{
+    /**
+     * The maximum number of MUC domains whose derived identifiers are cached.
+     */
+    private static final int MAX_DOMAINS = 1024;
+
+    /**
+     * The maximum number of endpoint IDs interned per conference. IDs beyond
+     * it are used as they are.
+     */
+    private static final int MAX_ENDPOINT_IDS = 4096;
+
+    /**
+     * The identifiers derived from a MUC domain, by domain.
+     * Guarded by itself.
+     */
+    private static final Map<String, DomainIdentifiers> domains
+        = new LRUCache<>(MAX_DOMAINS, true);
+
+    /**
+     * The interned endpoint IDs of the conference.
+     */
+    private final Map<String, String> endpointIDs = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the identifiers derived from the domain of a conference.
+     *
+     * @param conferenceIDPrefix the conference prefix, this is the domain of
+     * the deployment, or <tt>null</tt>.
+     * @param domain the domain of the conference jid.
+     * @return the derived identifiers.
+     */
+    static DomainIdentifiers getDomainIdentifiers(
+        String conferenceIDPrefix, String domain)
+    {
+        synchronized (domains)
+        {
+            DomainIdentifiers identifiers = domains.get(domain);
+            if (identifiers != null
+                && Objects.equals(
+                    identifiers.conferenceIDPrefix, conferenceIDPrefix))
+            {
+                return identifiers;
+            }
+        }
+
+        DomainIdentifiers identifiers
+            = new DomainIdentifiers(conferenceIDPrefix, domain);
+
+        synchronized (domains)
+        {
+            domains.put(domain, identifiers);
+        }
+
+        return identifiers;
+    }
+
+    /**
+     * Returns the shared instance of an endpoint ID.
+     *
+     * @param endpointID the endpoint ID.
+     * @return the shared instance equal to <tt>endpointID</tt>.
+     */
+    public String intern(String endpointID)
+    {
+        if (endpointID == null)
+        {
+            return null;
+        }
+
+        String interned = endpointIDs.get(endpointID);
+        if (interned != null)
+        {
+            return interned;
+        }
+
+        if (endpointIDs.size() >= MAX_ENDPOINT_IDS)
+        {
+            return endpointID;
+        }
+
+        interned = endpointIDs.putIfAbsent(endpointID, endpointID);
+        return interned != null ? interned : endpointID;
+    }
+
+    /**
+     * Returns the number of interned endpoint IDs.
+     * @return the number of endpoint IDs.
+     */
+    public int size()
+    {
+        return endpointIDs.size();
+    }
+
+    /**
+     * Drops all interned endpoint IDs.
+     */
+    void clear()
+    {
+        endpointIDs.clear();
+    }
+
+    /**
+     * The conference ID prefix and site ID derived from a MUC domain.
+     */
+    static class DomainIdentifiers
+    {
+        /**
+         * The conference prefix these identifiers were derived with.
+         */
+        private final String conferenceIDPrefix;
+
+        /**
+         * The beginning of the conference IDs, including the trailing '/'.
+         */
+        final String prefix;
+
+        /**
+         * The site ID, or '/' if there is none.
+         */
+        final String siteID;
+
+        /**
+         * Derives the identifiers of a domain.
+         */
+        private DomainIdentifiers(String conferenceIDPrefix, String domain)
+        {
+            this.conferenceIDPrefix = conferenceIDPrefix;
+
+            String siteID = "/";
+            StringBuilder prefixBuilder = new StringBuilder();
+
+            if (conferenceIDPrefix != null)
+            {
+                prefixBuilder.append(conferenceIDPrefix);
+                if(!conferenceIDPrefix.endsWith("/"))
+                {
+                    prefixBuilder.append("/");
+                }
+
+                // extract siteId/subdomain
+                if (domain.endsWith("." + conferenceIDPrefix))
+                {
+                    // strip `.conferenceIDPrefix`
+                    String mucDomain = domain.substring(
+                        0, domain.length() - conferenceIDPrefix.length() - 1);
+
+                    int dotIx = mucDomain.indexOf('.');
+                    if (dotIx > 0)
+                    {
+                        String siteId = mucDomain.substring(dotIx + 1);
+
+                        if (isNotBlank(siteId))
+                        {
+                            siteID = siteId;
+                            prefixBuilder.append(siteId).append("/");
+                        }
+                    }
+                }
+            }
+
+            this.prefix = prefixBuilder.toString();
+            this.siteID = siteID;
+        }
+    }
+}
@@ -0,0 +1,736 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import com.sun.net.httpserver.*;
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A {@link StatsSink} exposing the QoS values of the conferences in the
+ * Prometheus text format, served by an embedded HTTP server on
+ * <tt>/metrics</tt>.
+ * <p>
+ * Conference and endpoint IDs have unbounded cardinality, so the values are
+ * exported aggregated to bridge level, by direction and media type, and only
+ * the <tt>topK</tt> conferences with the highest packet loss get series of
+ * their own. Endpoints never get series. Scrapes encode the text straight into
+ * a buffer reused across scrapes.
+ * <p>
+ * The totals add the growth of every stream since its previous sample. The
+ * last counters of a conference's streams outlive the conference for a while,
+ * so that a conference restarting under the same ID with streams that kept
+ * counting does not add their counters again. A stream whose counters went
+ * down started over and adds all of them.
+ */
+public class PrometheusExporter
+    implements StatsSink, Closeable
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(PrometheusExporter.class.getName());
+
+    /**
+     * The content type of the Prometheus text format.
+     */
+    private static final String CONTENT_TYPE
+        = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The label values of the directions, indexed by direction.
+     */
+    private static final String[] DIRECTIONS = { "receive", "send" };
+
+    /**
+     * The label values of the media types, indexed by media type.
+     */
+    private static final String[] MEDIA_TYPES = { "audio", "video", "other" };
+
+    /**
+     * The number of direction and media type combinations.
+     */
+    private static final int SLOTS = DIRECTIONS.length * MEDIA_TYPES.length;
+
+    /**
+     * The number of stopped conferences whose stream counters are kept in
+     * case they restart.
+     */
+    static final int MAX_STOPPED_CONFERENCES = 1024;
+
+    /**
+     * The number of conferences exported with their own series.
+     */
+    private final int topK;
+
+    /**
+     * The latest summary of every conference.
+     */
+    private final Map<String, ConferenceSummary> conferences
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The bytes, packets and lost packets of all conferences since start, by
+     * direction and media type.
+     */
+    private final LongAdder[] bytesTotal = newAdders();
+    private final LongAdder[] packetsTotal = newAdders();
+    private final LongAdder[] packetsLostTotal = newAdders();
+
+    /**
+     * The last counters of the streams of the running conferences.
+     */
+    private final Map<String, StreamCounters> counters
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The last counters of the streams of the most recently stopped
+     * conferences, least recently stopped first.
+     */
+    private final Map<String, StreamCounters> stoppedCounters
+        = new LinkedHashMap<>(16, 0.75f, false)
+    {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, StreamCounters> eldest)
+        {
+            return size() > MAX_STOPPED_CONFERENCES;
+        }
+    };
+
+    /**
+     * The buffer the metrics are encoded into, reused across scrapes.
+     */
+    private final MetricsWriter writer = new MetricsWriter();
+
+    /**
+     * The HTTP server, or <tt>null</tt> if not started.
+     */
+    private HttpServer server = null;
+
+    /**
+     * Creates an exporter.
+     * @param topK the number of conferences with the highest packet loss
+     * exported with series of their own.
+     */
+    public PrometheusExporter(int topK)
+    {
+        this.topK = topK;
+    }
+
+    /**
+     * Starts serving the metrics on <tt>/metrics</tt>.
+     * @param address the address to listen on.
+     * @throws IOException if the server cannot be started.
+     */
+    public synchronized void start(InetSocketAddress address)
+        throws IOException
+    {
+        if (server != null)
+        {
+            return;
+        }
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(
+            new CustomizableThreadFactory("prometheus-exporter", true)));
+        server.start();
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+            server = null;
+        }
+    }
+
+    @Override
+    public void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats)
+    {
+        conferences.put(
+            conferenceID, new ConferenceSummary(conferenceID, endpointStats));
+
+        StreamCounters streamCounters = counters.get(conferenceID);
+        if (streamCounters == null)
+        {
+            synchronized (stoppedCounters)
+            {
+                streamCounters = stoppedCounters.remove(conferenceID);
+            }
+            if (streamCounters == null)
+            {
+                streamCounters = new StreamCounters();
+            }
+            StreamCounters existing
+                = counters.putIfAbsent(conferenceID, streamCounters);
+            if (existing != null)
+            {
+                streamCounters = existing;
+            }
+        }
+
+        synchronized (streamCounters)
+        {
+            for (EndpointStats stats : endpointStats)
+            {
+                String endpointId = stats.getEndpointId();
+                for (SsrcStats s : stats.getReceiveStats())
+                {
+                    streamCounters.update(endpointId, false, s);
+                }
+                for (SsrcStats s : stats.getSendStats())
+                {
+                    streamCounters.update(endpointId, true, s);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void conferenceStopped(String conferenceID)
+    {
+        conferences.remove(conferenceID);
+
+        StreamCounters streamCounters = counters.remove(conferenceID);
+        if (streamCounters != null)
+        {
+            synchronized (stoppedCounters)
+            {
+                stoppedCounters.put(conferenceID, streamCounters);
+            }
+        }
+    }
+
+    /**
+     * Serves a scrape.
+     */
+    private void handle(HttpExchange exchange)
+        throws IOException
+    {
+        try
+        {
+            if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            // the single server thread is the only writer of the buffer
+            writer.reset();
+            writeMetrics(writer);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, writer.size);
+            exchange.getResponseBody().write(writer.buf, 0, writer.size);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Failed to encode metrics", e);
+            throw e;
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Encodes all metrics.
+     */
+    void writeMetrics(MetricsWriter w)
+    {
+        // one pass for the bridge wide averages and the top K selection
+        double[] lossSum = new double[SLOTS];
+        double[] jitterSum = new double[SLOTS];
+        double[] rttSum = new double[SLOTS];
+        int[] streams = new int[SLOTS];
+        int[] jitterCount = new int[SLOTS];
+        int[] rttCount = new int[SLOTS];
+        double[] mosSum = new double[SLOTS];
+        int[] mosCount = new int[SLOTS];
+
+        PriorityQueue<ConferenceSummary> top = new PriorityQueue<>(
+            Math.max(1, topK),
+            Comparator.comparingDouble(ConferenceSummary::fractionLost));
+
+        for (ConferenceSummary c : conferences.values())
+        {
+            for (int i = 0; i < SLOTS; i++)
+            {
+                lossSum[i] += c.lossSum[i];
+                jitterSum[i] += c.jitterSum[i];
+                rttSum[i] += c.rttSum[i];
+                streams[i] += c.streams[i];
+                jitterCount[i] += c.jitterCount[i];
+                rttCount[i] += c.rttCount[i];
+                mosSum[i] += c.mosSum[i];
+                mosCount[i] += c.mosCount[i];
+            }
+
+            if (topK > 0)
+            {
+                if (top.size() < topK)
+                {
+                    top.add(c);
+                }
+                else if (top.peek().fractionLost() < c.fractionLost())
+                {
+                    top.poll();
+                    top.add(c);
+                }
+            }
+        }
+
+        w.header("jitsi_stats_conferences", "gauge",
+            "The number of conferences reporting stats.");
+        w.name("jitsi_stats_conferences").value(conferences.size());
+
+        writeCounters(w, "jitsi_stats_bytes_total",
+            "The bytes sent and received.", bytesTotal);
+        writeCounters(w, "jitsi_stats_packets_total",
+            "The packets sent and received.", packetsTotal);
+        writeCounters(w, "jitsi_stats_packets_lost_total",
+            "The packets lost.", packetsLostTotal);
+
+        w.header("jitsi_stats_streams", "gauge",
+            "The number of streams.");
+        for (int i = 0; i < SLOTS; i++)
+        {
+            slot(w.name("jitsi_stats_streams"), i).value(streams[i]);
+        }
+
+        writeAverages(w, "jitsi_stats_fraction_lost",
+            "The average fraction of lost packets per stream.",
+            lossSum, streams);
+        writeAverages(w, "jitsi_stats_jitter_ms",
+            "The average jitter per stream in milliseconds.",
+            jitterSum, jitterCount);
+        writeAverages(w, "jitsi_stats_rtt_ms",
+            "The average RTT per stream in milliseconds.",
+            rttSum, rttCount);
+        writeAverages(w, "jitsi_stats_mos",
+            "The average mean opinion score per scored stream.",
+            mosSum, mosCount);
+
+        if (top.isEmpty())
+        {
+            return;
+        }
+
+        w.header("jitsi_stats_conference_fraction_lost", "gauge",
+            "The fraction of lost packets of the conferences with the"
+                + " highest loss.");
+        for (ConferenceSummary c : top)
+        {
+            w.name("jitsi_stats_conference_fraction_lost")
+                .label('{', "conference", c.conferenceID).end()
+                .value(c.fractionLost());
+        }
+
+        w.header("jitsi_stats_conference_endpoints", "gauge",
+            "The number of endpoints of the conferences with the highest"
+                + " loss.");
+        for (ConferenceSummary c : top)
+        {
+            w.name("jitsi_stats_conference_endpoints")
+                .label('{', "conference", c.conferenceID).end()
+                .value(c.endpoints);
+        }
+    }
+
+    /**
+     * Encodes a counter by direction and media type.
+     */
+    private static void writeCounters(
+        MetricsWriter w, String name, String help, LongAdder[] values)
+    {
+        w.header(name, "counter", help);
+        for (int i = 0; i < SLOTS; i++)
+        {
+            slot(w.name(name), i).value(values[i].sum());
+        }
+    }
+
+    /**
+     * Encodes an average gauge by direction and media type, skipping slots
+     * with no samples.
+     */
+    private static void writeAverages(
+        MetricsWriter w, String name, String help, double[] sums, int[] counts)
+    {
+        w.header(name, "gauge", help);
+        for (int i = 0; i < SLOTS; i++)
+        {
+            if (counts[i] > 0)
+            {
+                slot(w.name(name), i).value(sums[i] / counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes the direction and media type labels of a slot.
+     */
+    private static MetricsWriter slot(MetricsWriter w, int slot)
+    {
+        return w.label('{', "direction", DIRECTIONS[slot / MEDIA_TYPES.length])
+            .label(',', "media", MEDIA_TYPES[slot % MEDIA_TYPES.length])
+            .end();
+    }
+
+    /**
+     * Returns the slot of a stream.
+     */
+    private static int slotOf(boolean send, String mediaType)
+    {
+        int media = MEDIA_TYPES.length - 1;
+        if (MEDIA_TYPES[0].equals(mediaType))
+        {
+            media = 0;
+        }
+        else if (MEDIA_TYPES[1].equals(mediaType))
+        {
+            media = 1;
+        }
+
+        return (send ? MEDIA_TYPES.length : 0) + media;
+    }
+
+    /**
+     * Creates an adder per slot.
+     */
+    private static LongAdder[] newAdders()
+    {
+        LongAdder[] adders = new LongAdder[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * The values of a conference as of its last reporting period, by direction
+     * and media type.
+     */
+    private static class ConferenceSummary
+    {
+        private final String conferenceID;
+        private final int endpoints;
+        private final double[] lossSum = new double[SLOTS];
+        private final double[] jitterSum = new double[SLOTS];
+        private final double[] rttSum = new double[SLOTS];
+        private final int[] streams = new int[SLOTS];
+        private final int[] jitterCount = new int[SLOTS];
+        private final int[] rttCount = new int[SLOTS];
+        private final double[] mosSum = new double[SLOTS];
+        private final int[] mosCount = new int[SLOTS];
+
+        /**
+         * The average fraction of lost packets of the received streams.
+         */
+        private final double fractionLost;
+
+        ConferenceSummary(String conferenceID, List<EndpointStats> stats)
+        {
+            this.conferenceID = conferenceID;
+            this.endpoints = stats.size();
+
+            for (EndpointStats endpointStats : stats)
+            {
+                for (SsrcStats s : endpointStats.getReceiveStats())
+                {
+                    add(slotOf(false, s.mediaType), s);
+                }
+                for (SsrcStats s : endpointStats.getSendStats())
+                {
+                    add(slotOf(true, s.mediaType), s);
+                }
+            }
+
+            double loss = 0;
+            int count = 0;
+            for (int i = 0; i < MEDIA_TYPES.length; i++)
+            {
+                loss += lossSum[i];
+                count += streams[i];
+            }
+            fractionLost = count == 0 ? 0 : loss / count;
+        }
+
+        private void add(int slot, SsrcStats s)
+        {
+            lossSum[slot] += s.fractionalPacketLoss;
+            streams[slot]++;
+
+            if (s.jitter_ms != null)
+            {
+                jitterSum[slot] += s.jitter_ms;
+                jitterCount[slot]++;
+            }
+            if (s.rtt_ms > 0)
+            {
+                rttSum[slot] += s.rtt_ms;
+                rttCount[slot]++;
+            }
+            if (!Double.isNaN(s.mos))
+            {
+                mosSum[slot] += s.mos;
+                mosCount[slot]++;
+            }
+        }
+
+        double fractionLost()
+        {
+            return fractionLost;
+        }
+    }
+
+    /**
+     * The last counters of the streams of a conference, adding their growth to
+     * the totals.
+     */
+    private class StreamCounters
+    {
+        private final Map<Stream, long[]> last = new HashMap<>();
+
+        void update(String endpointId, boolean send, SsrcStats s)
+        {
+            long[] previous = last.computeIfAbsent(
+                new Stream(endpointId, s.ssrc, send), k -> new long[3]);
+            int slot = slotOf(send, s.mediaType);
+
+            bytesTotal[slot].add(growth(previous[0], s.bytes));
+            packetsTotal[slot].add(growth(previous[1], s.packets));
+            packetsLostTotal[slot].add(growth(previous[2], s.packetsLost));
+
+            previous[0] = s.bytes;
+            previous[1] = s.packets;
+            previous[2] = s.packetsLost;
+        }
+
+        /**
+         * Returns the growth of a counter, all of it when it started over.
+         */
+        private long growth(long previous, long current)
+        {
+            return current >= previous ? current - previous : current;
+        }
+    }
+
+    /**
+     * Identifies a stream of a conference.
+     */
+    private static class Stream
+    {
+        private final String endpointId;
+        private final long ssrc;
+        private final boolean send;
+
+        Stream(String endpointId, long ssrc, boolean send)
+        {
+            this.endpointId = endpointId;
+            this.ssrc = ssrc;
+            this.send = send;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Stream))
+            {
+                return false;
+            }
+            Stream other = (Stream) o;
+            return ssrc == other.ssrc
+                && send == other.send
+                && Objects.equals(endpointId, other.endpointId);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(endpointId, ssrc, send);
+        }
+    }
+
+    /**
+     * Encodes the text format into a growable byte array without intermediate
+     * strings.
+     */
+    static class MetricsWriter
+    {
+        /**
+         * The encoded bytes.
+         */
+        private byte[] buf = new byte[16 * 1024];
+
+        /**
+         * The number of encoded bytes.
+         */
+        private int size = 0;
+
+        void reset()
+        {
+            size = 0;
+        }
+
+        MetricsWriter header(String name, String type, String help)
+        {
+            ascii("# HELP ").ascii(name).put(' ').ascii(help).put('\n');
+            return ascii("# TYPE ").ascii(name).put(' ').ascii(type).put('\n');
+        }
+
+        MetricsWriter name(String name)
+        {
+            return ascii(name);
+        }
+
+        MetricsWriter label(char separator, String name, String value)
+        {
+            put(separator).ascii(name).put('=').put('"');
+
+            for (int i = 0; i < value.length(); i++)
+            {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"')
+                {
+                    put('\\').put(c);
+                }
+                else if (c == '\n')
+                {
+                    put('\\').put('n');
+                }
+                else if (c < 0x80)
+                {
+                    put(c);
+                }
+                else
+                {
+                    int end = i + Character.charCount(value.codePointAt(i));
+                    for (byte b : value.substring(i, end)
+                        .getBytes(StandardCharsets.UTF_8))
+                    {
+                        putByte(b);
+                    }
+                    i = end - 1;
+                }
+            }
+
+            return put('"');
+        }
+
+        MetricsWriter end()
+        {
+            return put('}');
+        }
+
+        void value(long value)
+        {
+            put(' ');
+            if (value < 0)
+            {
+                put('-');
+            }
+            digits(Math.abs(value));
+            put('\n');
+        }
+
+        void value(double value)
+        {
+            // six decimals are plenty for loss, jitter and RTT
+            long micros = Math.round(value * 1_000_000);
+
+            put(' ');
+            if (micros < 0)
+            {
+                put('-');
+                micros = -micros;
+            }
+            digits(micros / 1_000_000);
+            put('.');
+            long fraction = micros % 1_000_000;
+            for (long d = 100_000; d > 0; d /= 10)
+            {
+                put((char) ('0' + fraction / d % 10));
+            }
+            put('\n');
+        }
+
+        private void digits(long value)
+        {
+            ensure(20);
+            int start = size;
+            do
+            {
+                buf[size++] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            while (value != 0);
+
+            // digits were written in reverse
+            for (int i = start, j = size - 1; i < j; i++, j--)
+            {
+                byte b = buf[i];
+                buf[i] = buf[j];
+                buf[j] = b;
+            }
+        }
+
+        private MetricsWriter ascii(String s)
+        {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++)
+            {
+                buf[size++] = (byte) s.charAt(i);
+            }
+            return this;
+        }
+
+        private MetricsWriter put(char c)
+        {
+            return putByte((byte) c);
+        }
+
+        private MetricsWriter putByte(byte b)
+        {
+            ensure(1);
+            buf[size++] = b;
+            return this;
+        }
+
+        private void ensure(int n)
+        {
+            if (size + n > buf.length)
+            {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.util.*;
+
+/**
+ * Estimates a mean opinion score (MOS) for every stream and endpoint of a
+ * conference on each reporting period, with a simplified ITU-T G.107
+ * E-model applied to the loss, jitter and RTT the streams already report.
+ * <p>
+ * The loss of a period is taken from the difference of the packet counters
+ * to the previous period when the stream counts lost packets, and from the
+ * fractional loss otherwise. The R-factor of every stream is smoothed over
+ * the periods, so a single bad period lowers the score without resetting it.
+ * Only a few numbers are kept per stream, and streams that are no longer
+ * reported are forgotten on the next period.
+ * <p>
+ * The model is meant for voice; for video streams the score is a measure of
+ * the network conditions rather than of the picture quality.
+ */
+public class QualityEstimator
+{
+    /**
+     * The R-factor of a perfect network with the default E-model values.
+     */
+    private static final double R_MAX = 93.2;
+
+    /**
+     * The one way delay added by packetization, the codec and the jitter
+     * buffer on top of the network, in milliseconds.
+     */
+    private static final double BASE_DELAY_MS = 20;
+
+    /**
+     * The packet loss robustness factor, the one of a codec with packet loss
+     * concealment.
+     */
+    private static final double BPL = 25.1;
+
+    /**
+     * The weight of the R-factor of the current period when smoothing.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * The streams of every endpoint, by endpoint ID. Guarded by this.
+     */
+    private final Map<String, List<StreamQuality>> streams = new HashMap<>();
+
+    /**
+     * The number of the current period, used to find the streams that were
+     * not reported. Guarded by this.
+     */
+    private int generation = 0;
+
+    /**
+     * Computes the MOS of a stream.
+     * @param loss the fraction of packets lost, from 0 to 1.
+     * @param jitterMs the jitter in milliseconds, or 0 if unknown.
+     * @param rttMs the RTT in milliseconds, or 0 if unknown.
+     * @return the MOS, from 1 to 4.5.
+     */
+    public static double mos(double loss, double jitterMs, double rttMs)
+    {
+        return toMos(rFactor(loss, jitterMs, rttMs));
+    }
+
+    /**
+     * Computes the R-factor of a stream.
+     */
+    private static double rFactor(double loss, double jitterMs, double rttMs)
+    {
+        // the jitter buffer typically holds twice the jitter
+        double delay = Math.max(0, rttMs) / 2
+            + 2 * Math.max(0, jitterMs)
+            + BASE_DELAY_MS;
+        double delayImpairment = 0.024 * delay;
+        if (delay > 177.3)
+        {
+            delayImpairment += 0.11 * (delay - 177.3);
+        }
+
+        double lossPercent = 100 * Math.min(1, Math.max(0, loss));
+        double lossImpairment = 95 * lossPercent / (lossPercent + BPL);
+
+        return R_MAX - delayImpairment - lossImpairment;
+    }
+
+    /**
+     * Converts an R-factor to a MOS.
+     */
+    private static double toMos(double r)
+    {
+        if (r <= 0)
+        {
+            return 1;
+        }
+        if (r >= 100)
+        {
+            return 4.5;
+        }
+        return 1 + 0.035 * r + 7e-6 * r * (r - 60) * (100 - r);
+    }
+
+    /**
+     * Sets the score of every stream and endpoint of a reporting period.
+     * @param allEndpointStats the stats of all endpoints of the period.
+     */
+    public synchronized void update(List<EndpointStats> allEndpointStats)
+    {
+        generation++;
+
+        for (EndpointStats endpointStats : allEndpointStats)
+        {
+            List<StreamQuality> endpointStreams = streams.computeIfAbsent(
+                endpointStats.getEndpointId(), k -> new ArrayList<>(4));
+
+            double mosSum = 0;
+            long mosWeight = 0;
+
+            for (SsrcStats stats : endpointStats.getReceiveStats())
+            {
+                long packets = update(endpointStreams, stats, false);
+                mosSum += stats.mos * packets;
+                mosWeight += packets;
+            }
+            for (SsrcStats stats : endpointStats.getSendStats())
+            {
+                long packets = update(endpointStreams, stats, true);
+                mosSum += stats.mos * packets;
+                mosWeight += packets;
+            }
+
+            endpointStats.setMos(
+                mosWeight > 0 ? mosSum / mosWeight : Double.NaN);
+        }
+
+        // forget the streams and endpoints that were not reported
+        Iterator<List<StreamQuality>> endpoints = streams.values().iterator();
+        while (endpoints.hasNext())
+        {
+            List<StreamQuality> endpointStreams = endpoints.next();
+            endpointStreams.removeIf(stream -> stream.generation != generation);
+            if (endpointStreams.isEmpty())
+            {
+                endpoints.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all streams.
+     */
+    public synchronized void clear()
+    {
+        streams.clear();
+    }
+
+    /**
+     * Scores a stream and sets its {@link SsrcStats#mos}.
+     * @return the weight of the stream in the score of the endpoint, the
+     * packets of the period but at least 1.
+     */
+    private long update(
+        List<StreamQuality> endpointStreams, SsrcStats stats, boolean send)
+    {
+        StreamQuality stream = null;
+        for (StreamQuality candidate : endpointStreams)
+        {
+            if (candidate.ssrc == stats.ssrc && candidate.send == send)
+            {
+                stream = candidate;
+                break;
+            }
+        }
+
+        long packets = stats.packets;
+        long packetsLost = stats.packetsLost;
+        long newPackets = packets;
+        double loss = stats.fractionalPacketLoss;
+
+        if (stream == null)
+        {
+            stream = new StreamQuality(stats.ssrc, send);
+            endpointStreams.add(stream);
+        }
+        else if (packets >= stream.packets && packetsLost >= stream.packetsLost)
+        {
+            newPackets = packets - stream.packets;
+            long newLost = packetsLost - stream.packetsLost;
+            if (packetsLost > 0 && newPackets + newLost > 0)
+            {
+                loss = (double) newLost / (newPackets + newLost);
+            }
+        }
+
+        double r = rFactor(
+            loss,
+            stats.jitter_ms == null ? 0 : stats.jitter_ms,
+            stats.rtt_ms > 0 ? stats.rtt_ms : 0);
+
+        stream.r = Double.isNaN(stream.r)
+            ? r : stream.r + SMOOTHING * (r - stream.r);
+        stream.packets = packets;
+        stream.packetsLost = packetsLost;
+        stream.generation = generation;
+
+        stats.mos = toMos(stream.r);
+        return Math.max(newPackets, 1);
+    }
+
+    /**
+     * The state kept for a stream between periods.
+     */
+    private static class StreamQuality
+    {
+        final long ssrc;
+        final boolean send;
+
+        /**
+         * The smoothed R-factor, <tt>NaN</tt> before the first period.
+         */
+        double r = Double.NaN;
+
+        /**
+         * The packet counters of the previous period.
+         */
+        long packets = 0;
+        long packetsLost = 0;
+
+        /**
+         * The period the stream was last reported in.
+         */
+        int generation;
+
+        StreamQuality(long ssrc, boolean send)
+        {
+            this.ssrc = ssrc;
+            this.send = send;
+        }
+    }
+}
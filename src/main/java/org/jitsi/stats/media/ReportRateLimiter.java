@@ -0,0 +1,286 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Limits the rate of the conference stats reports of a {@link StatsService},
+ * using a token bucket for the number of reports per second and one for the
+ * number of bytes per second. Each bucket holds at most the tokens of the
+ * longest reporting period seen, and at least one second worth.
+ * <p>
+ * To keep one big conference from starving the others, a single reporting
+ * period of a conference is granted at most its fair share of what the
+ * limits allow over that period, which is the rate times the period divided
+ * by the number of active conferences of the service. Reports held back this
+ * way are counted as shaped, reports refused because a bucket ran empty are
+ * counted as dropped. Granted reports that are not sent are given back with
+ * {@link #release(int, int)}.
+ */
+public class ReportRateLimiter
+{
+    /**
+     * The allowed reports per second, or 0 for no limit.
+     */
+    private double reportsPerSecond = 0;
+
+    /**
+     * The allowed bytes per second, or 0 for no limit.
+     */
+    private double bytesPerSecond = 0;
+
+    /**
+     * The available report tokens.
+     */
+    private double reportTokens = 0;
+
+    /**
+     * The available byte tokens.
+     */
+    private double byteTokens = 0;
+
+    /**
+     * The number of seconds of tokens the buckets hold, the longest
+     * reporting period seen but at least one second.
+     */
+    private double capacitySeconds = 1;
+
+    /**
+     * The time the buckets were last refilled, in nanoseconds.
+     */
+    private long lastRefill;
+
+    /**
+     * Whether a limit is configured. Read without locking so that unlimited
+     * services do not synchronize on every reporting period.
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * The number of conferences sharing the limits.
+     */
+    private final AtomicInteger activeConferences = new AtomicInteger();
+
+    /**
+     * The number of reports held back to keep the conferences fair.
+     */
+    private final AtomicLong shapedReports = new AtomicLong();
+
+    /**
+     * The number of reports refused because the limits were reached.
+     */
+    private final AtomicLong droppedReports = new AtomicLong();
+
+    /**
+     * The clock the buckets are refilled with.
+     */
+    private final StatsClock clock;
+
+    /**
+     * Creates a limiter without limits, using the system clock.
+     */
+    public ReportRateLimiter()
+    {
+        this(StatsClock.SYSTEM);
+    }
+
+    /**
+     * Creates a limiter without limits.
+     * @param clock the clock the buckets are refilled with.
+     */
+    ReportRateLimiter(StatsClock clock)
+    {
+        this.clock = clock;
+        this.lastRefill = clock.nanoTime();
+    }
+
+    /**
+     * Changes the limits. A value of zero or less disables the respective
+     * limit.
+     * @param reportsPerSecond the allowed reports per second.
+     * @param bytesPerSecond the allowed bytes per second.
+     */
+    public synchronized void setLimits(
+        double reportsPerSecond, double bytesPerSecond)
+    {
+        this.reportsPerSecond = Math.max(0, reportsPerSecond);
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.reportTokens = this.reportsPerSecond;
+        this.byteTokens = this.bytesPerSecond;
+        this.lastRefill = clock.nanoTime();
+        this.enabled = this.reportsPerSecond > 0 || this.bytesPerSecond > 0;
+    }
+
+    /**
+     * Returns the allowed reports per second, 0 if unlimited.
+     * @return the allowed reports per second.
+     */
+    public synchronized double getReportsPerSecond()
+    {
+        return reportsPerSecond;
+    }
+
+    /**
+     * Returns the allowed bytes per second, 0 if unlimited.
+     * @return the allowed bytes per second.
+     */
+    public synchronized double getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the number of reports held back to keep conferences fair.
+     * @return the number of shaped reports.
+     */
+    public long getShapedReports()
+    {
+        return shapedReports.get();
+    }
+
+    /**
+     * Returns the number of reports refused because the limits were reached.
+     * @return the number of dropped reports.
+     */
+    public long getDroppedReports()
+    {
+        return droppedReports.get();
+    }
+
+    /**
+     * Called when a conference starts sharing the limits.
+     */
+    void conferenceStarted()
+    {
+        activeConferences.incrementAndGet();
+    }
+
+    /**
+     * Called when a conference stops sharing the limits.
+     */
+    void conferenceStopped()
+    {
+        activeConferences.decrementAndGet();
+    }
+
+    /**
+     * Requests permission to send the reports of one reporting period of a
+     * conference.
+     * @param reports the number of reports the conference has.
+     * @param bytesPerReport the estimated size of a single report.
+     * @param period the reporting period of the conference, in milliseconds.
+     * @return the number of reports that may be sent.
+     */
+    int acquire(int reports, int bytesPerReport, long period)
+    {
+        if (!enabled || reports <= 0)
+        {
+            return reports;
+        }
+
+        int granted;
+        int shaped;
+
+        synchronized (this)
+        {
+            // a conference reports once per period, so its share is what
+            // the limits allow over a whole period
+            double periodSeconds = Math.max(1, period) / 1000d;
+            capacitySeconds = Math.max(capacitySeconds, periodSeconds);
+            refill();
+
+            int conferences = Math.max(1, activeConferences.get());
+            int share = Integer.MAX_VALUE;
+            int available = Integer.MAX_VALUE;
+
+            if (reportsPerSecond > 0)
+            {
+                share = Math.min(share, (int) Math.min(Integer.MAX_VALUE,
+                    Math.ceil(reportsPerSecond * periodSeconds / conferences)));
+                available = Math.min(available, (int) reportTokens);
+            }
+            if (bytesPerSecond > 0)
+            {
+                share = Math.min(share, (int) Math.min(Integer.MAX_VALUE,
+                    Math.ceil(bytesPerSecond * periodSeconds / conferences
+                        / bytesPerReport)));
+                available = Math.min(
+                    available, (int) (byteTokens / bytesPerReport));
+            }
+
+            int allowed = Math.min(reports, Math.max(1, share));
+            shaped = reports - allowed;
+            granted = Math.max(0, Math.min(allowed, available));
+
+            reportTokens -= granted;
+            byteTokens -= (double) granted * bytesPerReport;
+        }
+
+        if (shaped > 0)
+        {
+            shapedReports.addAndGet(shaped);
+        }
+        if (granted < reports - shaped)
+        {
+            droppedReports.addAndGet(reports - shaped - granted);
+        }
+
+        return granted;
+    }
+
+    /**
+     * Gives back the tokens of granted reports that were not sent, counting
+     * them as shaped.
+     * @param reports the number of granted reports that were not sent.
+     * @param bytesPerReport the estimated size of a single report, as passed
+     * to {@link #acquire(int, int, long)}.
+     */
+    void release(int reports, int bytesPerReport)
+    {
+        if (!enabled || reports <= 0)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            reportTokens = Math.min(
+                reportsPerSecond * capacitySeconds, reportTokens + reports);
+            byteTokens = Math.min(
+                bytesPerSecond * capacitySeconds,
+                byteTokens + (double) reports * bytesPerReport);
+        }
+        shapedReports.addAndGet(reports);
+    }
+
+    /**
+     * Adds the tokens accumulated since the last refill.
+     */
+    private void refill()
+    {
+        long now = clock.nanoTime();
+        double seconds = (now - lastRefill) / 1e9;
+        lastRefill = now;
+
+        reportTokens = Math.min(
+            reportsPerSecond * capacitySeconds,
+            reportTokens + seconds * reportsPerSecond);
+        byteTokens = Math.min(
+            bytesPerSecond * capacitySeconds,
+            byteTokens + seconds * bytesPerSecond);
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Traces the reports sent to callstats, one record per SSRC, for selected
+ * conferences, endpoints or a sample of the endpoints, so that a single call
+ * can be followed on a loaded bridge.
+ * <p>
+ * The reporting threads copy the values of a report into a preallocated ring
+ * of fixed size records, without allocating or formatting anything. A daemon
+ * thread formats the records and writes them to the logger of this class at
+ * info level. Records that do not fit in the ring are dropped and counted.
+ * <p>
+ * Tracing is off until enabled with
+ * {@link #enable(Collection, Collection, double)}; while off, checking
+ * whether an endpoint is traced costs a single volatile read and no thread
+ * runs. A report racing with {@link #disable()} may leave its records in
+ * the ring until tracing is enabled again.
+ */
+public class ReportTracer
+{
+    /**
+     * The logger the records are written to.
+     */
+    private final static Logger logger = new LoggerImpl(ReportTracer.class.getName());
+
+    /**
+     * The default number of records in the ring.
+     */
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The interval between writing the records, in milliseconds.
+     */
+    private static final long FLUSH_INTERVAL = 100;
+
+    /**
+     * The handle of the elements of {@link #published}.
+     */
+    private static final VarHandle PUBLISHED
+        = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * The filter selecting the traced endpoints, or <tt>null</tt> when
+     * tracing is off.
+     */
+    private volatile Filter filter = null;
+
+    /**
+     * The mask of the ring index, the capacity minus one.
+     */
+    private final int mask;
+
+    /**
+     * The sequence number of the next record to write.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * The sequence number of the next record to flush.
+     */
+    private final AtomicLong flushed = new AtomicLong();
+
+    /**
+     * The sequence number of the record each slot holds, plus one, set once
+     * the record is completely written.
+     */
+    private final long[] published;
+
+    /**
+     * The columns of the records.
+     */
+    private final long[] timestamps;
+    private final String[] conferenceIDs;
+    private final String[] localIDs;
+    private final String[] endpointIDs;
+    private final boolean[] sends;
+    private final long[] ssrcs;
+    private final String[] mediaTypes;
+    private final long[] bytes;
+    private final long[] packets;
+    private final long[] packetsLost;
+    private final double[] fractionalLoss;
+    private final double[] jitters;
+    private final int[] rtts;
+    private final double[] scores;
+
+    /**
+     * The number of records traced and dropped.
+     */
+    private final AtomicLong tracedRecords = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    /**
+     * The thread writing the records, started when tracing is enabled and
+     * stopped when it is disabled. Guarded by this.
+     */
+    private ScheduledExecutorService flusher = null;
+
+    /**
+     * The line being formatted, used by the flusher thread only. Also the
+     * lock of the flushes.
+     */
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Creates a tracer with the default capacity.
+     */
+    ReportTracer()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a tracer.
+     * @param capacity the number of records in the ring, rounded up to a
+     * power of two.
+     */
+    ReportTracer(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        published = new long[size];
+        timestamps = new long[size];
+        conferenceIDs = new String[size];
+        localIDs = new String[size];
+        endpointIDs = new String[size];
+        sends = new boolean[size];
+        ssrcs = new long[size];
+        mediaTypes = new String[size];
+        bytes = new long[size];
+        packets = new long[size];
+        packetsLost = new long[size];
+        fractionalLoss = new double[size];
+        jitters = new double[size];
+        rtts = new int[size];
+        scores = new double[size];
+    }
+
+    /**
+     * Enables tracing. An endpoint is traced when its conference and its ID
+     * are selected, and it falls in the sample; the sample is taken by
+     * endpoint so that a sampled endpoint is traced on every period.
+     * @param conferenceIDs the IDs of the traced conferences, or <tt>null</tt>
+     * or empty for all.
+     * @param endpointIDs the IDs of the traced endpoints, or <tt>null</tt> or
+     * empty for all.
+     * @param samplingRatio the fraction of the selected endpoints to trace,
+     * from 0 to 1; 0 disables tracing.
+     */
+    public synchronized void enable(
+        Collection<String> conferenceIDs,
+        Collection<String> endpointIDs,
+        double samplingRatio)
+    {
+        if (samplingRatio <= 0)
+        {
+            disable();
+            return;
+        }
+
+        if (flusher == null)
+        {
+            flusher = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("stats-report-tracer", true));
+            flusher.scheduleWithFixedDelay(
+                this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL,
+                TimeUnit.MILLISECONDS);
+        }
+
+        Filter filter
+            = new Filter(conferenceIDs, endpointIDs, samplingRatio);
+        this.filter = filter;
+        logger.info("Report tracing enabled: " + filter);
+    }
+
+    /**
+     * Disables tracing and stops the thread writing the records, once it
+     * wrote the records already traced.
+     */
+    public synchronized void disable()
+    {
+        if (filter != null)
+        {
+            filter = null;
+            logger.info("Report tracing disabled");
+        }
+
+        if (flusher != null)
+        {
+            // the periodic flush is cancelled by the shutdown, a last one
+            // writes what was traced until now
+            flusher.execute(this::flush);
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+
+    /**
+     * Returns whether tracing is enabled.
+     * @return whether tracing is enabled.
+     */
+    public boolean isEnabled()
+    {
+        return filter != null;
+    }
+
+    /**
+     * Returns the number of records traced.
+     * @return the number of records.
+     */
+    public long getTracedRecords()
+    {
+        return tracedRecords.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the ring was full.
+     * @return the number of records.
+     */
+    public long getDroppedRecords()
+    {
+        return droppedRecords.get();
+    }
+
+    /**
+     * Returns whether the reports of an endpoint are traced, checked once
+     * per endpoint and period.
+     * @param conferenceID the conference ID.
+     * @param endpointID the endpoint ID.
+     * @return whether to call {@link #trace} for the streams of the endpoint.
+     */
+    boolean isTraced(String conferenceID, String endpointID)
+    {
+        Filter filter = this.filter;
+        return filter != null && filter.matches(conferenceID, endpointID);
+    }
+
+    /**
+     * Copies the values of a report into the ring.
+     * @param timestamp the time of the report, in milliseconds since the
+     * epoch.
+     * @param conferenceID the conference ID.
+     * @param localID the ID of the reporting side.
+     * @param endpointID the ID of the remote endpoint.
+     * @param send whether the stream is sent to the endpoint.
+     * @param stats the reported stats.
+     */
+    void trace(
+        long timestamp,
+        String conferenceID,
+        String localID,
+        String endpointID,
+        boolean send,
+        SsrcStats stats)
+    {
+        long sequence;
+        do
+        {
+            sequence = next.get();
+            if (sequence - flushed.get() > mask)
+            {
+                droppedRecords.incrementAndGet();
+                return;
+            }
+        }
+        while (!next.compareAndSet(sequence, sequence + 1));
+
+        int i = (int) sequence & mask;
+        timestamps[i] = timestamp;
+        conferenceIDs[i] = conferenceID;
+        localIDs[i] = localID;
+        endpointIDs[i] = endpointID;
+        sends[i] = send;
+        ssrcs[i] = stats.ssrc;
+        mediaTypes[i] = stats.mediaType;
+        bytes[i] = stats.bytes;
+        packets[i] = stats.packets;
+        packetsLost[i] = stats.packetsLost;
+        fractionalLoss[i] = stats.fractionalPacketLoss;
+        jitters[i] = stats.jitter_ms == null ? Double.NaN : stats.jitter_ms;
+        rtts[i] = stats.rtt_ms;
+        scores[i] = stats.mos;
+        PUBLISHED.setRelease(published, i, sequence + 1);
+
+        tracedRecords.incrementAndGet();
+    }
+
+    /**
+     * Writes the published records, in order, up to the first one still
+     * being written. Synchronized for the last flush of a stopped thread that
+     * may overlap the first ones of the next.
+     */
+    private void flush()
+    {
+        synchronized (line)
+        {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked()
+    {
+        long sequence = flushed.get();
+
+        while (true)
+        {
+            int i = (int) sequence & mask;
+            if ((long) PUBLISHED.getAcquire(published, i) != sequence + 1)
+            {
+                break;
+            }
+
+            line.setLength(0);
+            line.append(timestamps[i])
+                .append(' ').append(conferenceIDs[i])
+                .append(' ').append(localIDs[i])
+                .append(sends[i] ? " -> " : " <- ").append(endpointIDs[i])
+                .append(" ssrc=").append(ssrcs[i])
+                .append(" mediaType=").append(mediaTypes[i])
+                .append(" bytes=").append(bytes[i])
+                .append(" packets=").append(packets[i])
+                .append(" packetsLost=").append(packetsLost[i])
+                .append(" fractionalPacketLoss=").append(fractionalLoss[i])
+                .append(" jitter_ms=").append(jitters[i])
+                .append(" rtt_ms=").append(rtts[i])
+                .append(" mos=").append(scores[i]);
+
+            // release the references before handing the slot back
+            conferenceIDs[i] = null;
+            localIDs[i] = null;
+            endpointIDs[i] = null;
+            mediaTypes[i] = null;
+
+            sequence++;
+            flushed.set(sequence);
+
+            logger.info(line.toString());
+        }
+    }
+
+    /**
+     * The immutable selection of the traced endpoints.
+     */
+    private static class Filter
+    {
+        /**
+         * The traced conferences, or <tt>null</tt> for all.
+         */
+        private final Set<String> conferenceIDs;
+
+        /**
+         * The traced endpoints, or <tt>null</tt> for all.
+         */
+        private final Set<String> endpointIDs;
+
+        /**
+         * The endpoints whose hash is below this value are sampled.
+         */
+        private final long sampleThreshold;
+
+        private final double samplingRatio;
+
+        Filter(
+            Collection<String> conferenceIDs,
+            Collection<String> endpointIDs,
+            double samplingRatio)
+        {
+            this.conferenceIDs = conferenceIDs == null || conferenceIDs.isEmpty()
+                ? null : new HashSet<>(conferenceIDs);
+            this.endpointIDs = endpointIDs == null || endpointIDs.isEmpty()
+                ? null : new HashSet<>(endpointIDs);
+            this.samplingRatio = Math.min(1, samplingRatio);
+            this.sampleThreshold = (long) (this.samplingRatio * (1L << 32));
+        }
+
+        boolean matches(String conferenceID, String endpointID)
+        {
+            if (conferenceIDs != null && !conferenceIDs.contains(conferenceID))
+            {
+                return false;
+            }
+            if (endpointIDs != null && !endpointIDs.contains(endpointID))
+            {
+                return false;
+            }
+            if (samplingRatio >= 1)
+            {
+                return true;
+            }
+
+            // spread the string hashes, similar IDs have similar hashes
+            int hash = (31 * conferenceID.hashCode() + endpointID.hashCode())
+                * 0x9e3779b9;
+            return (hash & 0xffffffffL) < sampleThreshold;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "conferences=" + (conferenceIDs == null ? "all" : conferenceIDs)
+                + ", endpoints=" + (endpointIDs == null ? "all" : endpointIDs)
+                + ", samplingRatio=" + samplingRatio;
+        }
+    }
+}
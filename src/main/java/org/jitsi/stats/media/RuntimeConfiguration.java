@@ -0,0 +1,499 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.apache.commons.lang3.StringUtils.*;
+
+/**
+ * Applies the reporting settings of a properties file to all services and
+ * conferences while they run, and again whenever the file changes, so that
+ * the reporting of an overloaded node can be reduced without a restart.
+ * <p>
+ * The supported properties are:
+ * <pre>
+ * org.jitsi.stats.period                     reporting interval in ms
+ * org.jitsi.stats.reportsPerSecond           reports per second per service
+ * org.jitsi.stats.bytesPerSecond             bytes per second per service
+ * org.jitsi.stats.idleTimeout                ms after which idle conferences
+ *                                            are stopped
+ * org.jitsi.stats.memoryBudget               bytes all conferences may use
+ * org.jitsi.stats.disabledSinks              comma separated simple class
+ *                                            names of the sinks to disable
+ * org.jitsi.stats.trace.conferences          comma separated IDs of the
+ *                                            conferences to trace
+ * org.jitsi.stats.trace.endpoints            comma separated IDs of the
+ *                                            endpoints to trace
+ * org.jitsi.stats.trace.samplingRatio        fraction of the endpoints to
+ *                                            trace, 0 to stop tracing
+ * </pre>
+ * Tracing is enabled on the {@link ReportTracer} when any of its properties
+ * is set, tracing all selected endpoints if no sampling ratio is set, and
+ * disabled again when none is set anymore.
+ * A property that is not set, or no longer set, leaves the setting at its
+ * default: the value it had before this configuration first applied to it,
+ * and for the period the interval every conference was created with. Numbers
+ * must not be negative, and the period must be positive. A file that fails to parse
+ * or holds an invalid value is ignored as a whole, so a half written file
+ * never applies part of its settings.
+ */
+public class RuntimeConfiguration
+    implements Closeable
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(RuntimeConfiguration.class.getName());
+
+    /**
+     * The prefix of the properties.
+     */
+    private static final String PREFIX = "org.jitsi.stats.";
+
+    /**
+     * The time to wait for the writes to a changed file to settle, in
+     * milliseconds.
+     */
+    private static final long SETTLE_DELAY = 200;
+
+    /**
+     * The properties file.
+     */
+    private final Path file;
+
+    /**
+     * The factory whose services and conferences are configured.
+     */
+    private final StatsServiceFactory factory;
+
+    /**
+     * The settings applied last, or <tt>null</tt> before the file was read.
+     */
+    private volatile Settings settings = null;
+
+    /**
+     * The idle timeout and memory budget of the registry when this
+     * configuration was created.
+     */
+    private final long defaultIdleTimeout;
+    private final long defaultMemoryBudget;
+
+    /**
+     * The settings of every service before this configuration first applied
+     * to it. Guarded by itself.
+     */
+    private final Map<StatsService, ServiceDefaults> serviceDefaults
+        = new WeakHashMap<>();
+
+    /**
+     * Whether this configuration enabled tracing. Guarded by this.
+     */
+    private boolean tracing = false;
+
+    /**
+     * The thread watching the file.
+     */
+    private final ExecutorService watcher = Executors.newSingleThreadExecutor(
+        new CustomizableThreadFactory("stats-runtime-configuration", true));
+
+    /**
+     * The watch service, or <tt>null</tt> if not started.
+     */
+    private WatchService watchService = null;
+
+    /**
+     * Creates a configuration read from <tt>file</tt>.
+     * @param file the properties file.
+     */
+    public RuntimeConfiguration(Path file)
+    {
+        this(file, StatsServiceFactory.getInstance());
+    }
+
+    RuntimeConfiguration(Path file, StatsServiceFactory factory)
+    {
+        this.file = file.toAbsolutePath();
+        this.factory = factory;
+
+        ConferenceRegistry registry = factory.getConferenceRegistry();
+        defaultIdleTimeout = registry.getIdleTimeout();
+        defaultMemoryBudget = registry.getMemoryBudget();
+    }
+
+    /**
+     * Reads and applies the file, then watches it for changes. New services
+     * get the settings when they are created.
+     * @throws IOException if the directory of the file cannot be watched.
+     */
+    public synchronized void start()
+        throws IOException
+    {
+        if (watchService != null)
+        {
+            return;
+        }
+
+        watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(
+            watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+
+        reload();
+        factory.setRuntimeConfiguration(this);
+
+        WatchService watchService = this.watchService;
+        watcher.execute(() -> watch(watchService));
+    }
+
+    /**
+     * Stops watching the file. The applied settings stay in effect.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (watchService == null)
+        {
+            return;
+        }
+
+        factory.setRuntimeConfiguration(null);
+        watcher.shutdownNow();
+        try
+        {
+            watchService.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug(() -> "Failed to close watch service: "
+                + e.getMessage());
+        }
+        watchService = null;
+    }
+
+    /**
+     * Reads the file and applies it to all services and conferences.
+     * @return whether the file was read and applied.
+     */
+    public synchronized boolean reload()
+    {
+        Settings settings;
+        try
+        {
+            settings = Settings.read(file);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            logger.error("Ignoring runtime configuration " + file + ": "
+                + e.getMessage());
+            return false;
+        }
+
+        this.settings = settings;
+
+        for (StatsService statsService : factory.getStatsServices())
+        {
+            apply(settings, statsService);
+        }
+
+        ConferenceRegistry registry = factory.getConferenceRegistry();
+        registry.setPeriod(settings.period != null ? settings.period : 0);
+        registry.setIdleTimeout(settings.idleTimeout != null
+            ? settings.idleTimeout : defaultIdleTimeout);
+        registry.setMemoryBudget(settings.memoryBudget != null
+            ? settings.memoryBudget : defaultMemoryBudget);
+
+        if (settings.traceConferences != null
+            || settings.traceEndpoints != null
+            || settings.traceSamplingRatio != null)
+        {
+            factory.getReportTracer().enable(
+                settings.traceConferences,
+                settings.traceEndpoints,
+                settings.traceSamplingRatio != null
+                    ? settings.traceSamplingRatio : 1);
+            tracing = true;
+        }
+        else if (tracing)
+        {
+            factory.getReportTracer().disable();
+            tracing = false;
+        }
+
+        logger.info("Applied runtime configuration " + file + ": " + settings);
+        return true;
+    }
+
+    /**
+     * Applies the current settings to a new service.
+     * @param statsService the service.
+     */
+    void apply(StatsService statsService)
+    {
+        Settings settings = this.settings;
+        if (settings != null)
+        {
+            apply(settings, statsService);
+        }
+    }
+
+    private void apply(Settings settings, StatsService statsService)
+    {
+        ReportRateLimiter rateLimiter = statsService.getRateLimiter();
+        ServiceDefaults defaults;
+        synchronized (serviceDefaults)
+        {
+            defaults = serviceDefaults.computeIfAbsent(
+                statsService, ServiceDefaults::new);
+        }
+
+        double reportsPerSecond = settings.reportsPerSecond != null
+            ? settings.reportsPerSecond : defaults.reportsPerSecond;
+        double bytesPerSecond = settings.bytesPerSecond != null
+            ? settings.bytesPerSecond : defaults.bytesPerSecond;
+        // setting the limits refills the buckets, only do it on a change
+        if (reportsPerSecond != rateLimiter.getReportsPerSecond()
+            || bytesPerSecond != rateLimiter.getBytesPerSecond())
+        {
+            rateLimiter.setLimits(reportsPerSecond, bytesPerSecond);
+        }
+
+        statsService.setDisabledSinks(settings.disabledSinks != null
+            ? settings.disabledSinks : defaults.disabledSinks);
+    }
+
+    /**
+     * Reloads the file whenever it changes, until the watch service is
+     * closed.
+     */
+    private void watch(WatchService watchService)
+    {
+        Path fileName = file.getFileName();
+
+        try
+        {
+            while (true)
+            {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+
+                do
+                {
+                    for (WatchEvent<?> event : key.pollEvents())
+                    {
+                        if (fileName.equals(event.context()))
+                        {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+
+                    // editors write in several steps, wait for the last one
+                    key = changed
+                        ? watchService.poll(
+                            SETTLE_DELAY, TimeUnit.MILLISECONDS)
+                        : null;
+                }
+                while (key != null);
+
+                if (changed)
+                {
+                    try
+                    {
+                        reload();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // keep watching, the next change may fix the file
+                        logger.error("Failed to apply runtime configuration "
+                            + file, e);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e)
+        {
+            // closed
+        }
+    }
+
+    /**
+     * The settings of a service before the configuration first applied to it.
+     */
+    private static class ServiceDefaults
+    {
+        final double reportsPerSecond;
+        final double bytesPerSecond;
+        final Set<String> disabledSinks;
+
+        ServiceDefaults(StatsService statsService)
+        {
+            ReportRateLimiter rateLimiter = statsService.getRateLimiter();
+            reportsPerSecond = rateLimiter.getReportsPerSecond();
+            bytesPerSecond = rateLimiter.getBytesPerSecond();
+            disabledSinks = statsService.getDisabledSinks();
+        }
+    }
+
+    /**
+     * The settings read from the file, <tt>null</tt> when not set.
+     */
+    private static class Settings
+    {
+        Long period;
+        Double reportsPerSecond;
+        Double bytesPerSecond;
+        Long idleTimeout;
+        Long memoryBudget;
+        List<String> disabledSinks;
+        List<String> traceConferences;
+        List<String> traceEndpoints;
+        Double traceSamplingRatio;
+
+        static Settings read(Path file)
+            throws IOException
+        {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(file))
+            {
+                properties.load(reader);
+            }
+
+            Settings settings = new Settings();
+            settings.period = getLong(properties, "period");
+            if (settings.period != null && settings.period <= 0)
+            {
+                throw new IllegalArgumentException("period must be positive");
+            }
+            settings.reportsPerSecond = requireNonNegative(
+                getDouble(properties, "reportsPerSecond"), "reportsPerSecond");
+            settings.bytesPerSecond = requireNonNegative(
+                getDouble(properties, "bytesPerSecond"), "bytesPerSecond");
+            settings.idleTimeout = requireNonNegative(
+                getLong(properties, "idleTimeout"), "idleTimeout");
+            settings.memoryBudget = requireNonNegative(
+                getLong(properties, "memoryBudget"), "memoryBudget");
+
+            settings.disabledSinks = getList(properties, "disabledSinks");
+
+            settings.traceConferences
+                = getList(properties, "trace.conferences");
+            settings.traceEndpoints = getList(properties, "trace.endpoints");
+            settings.traceSamplingRatio
+                = getDouble(properties, "trace.samplingRatio");
+            if (settings.traceSamplingRatio != null
+                && !(settings.traceSamplingRatio >= 0
+                    && settings.traceSamplingRatio <= 1))
+            {
+                throw new IllegalArgumentException(
+                    "trace.samplingRatio must be between 0 and 1");
+            }
+
+            return settings;
+        }
+
+        /**
+         * Checks that a value, if set, is a number of zero or more.
+         */
+        private static <N extends Number> N requireNonNegative(
+            N value, String name)
+        {
+            if (value != null
+                && !(value.doubleValue() >= 0))
+            {
+                throw new IllegalArgumentException(
+                    name + " must not be negative: " + value);
+            }
+            return value;
+        }
+
+        private static List<String> getList(Properties properties, String name)
+        {
+            String value = properties.getProperty(PREFIX + name);
+            if (value == null)
+            {
+                return null;
+            }
+
+            List<String> list = new ArrayList<>();
+            for (String element : split(value, ','))
+            {
+                if (isNotBlank(element))
+                {
+                    list.add(element.trim());
+                }
+            }
+            return list;
+        }
+
+        private static Long getLong(Properties properties, String name)
+        {
+            String value = properties.getProperty(PREFIX + name);
+            if (isBlank(value))
+            {
+                return null;
+            }
+            try
+            {
+                return Long.valueOf(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(
+                    "invalid " + name + ": " + value);
+            }
+        }
+
+        private static Double getDouble(Properties properties, String name)
+        {
+            String value = properties.getProperty(PREFIX + name);
+            if (isBlank(value))
+            {
+                return null;
+            }
+            try
+            {
+                return Double.valueOf(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(
+                    "invalid " + name + ": " + value);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "period=" + period
+                + ", reportsPerSecond=" + reportsPerSecond
+                + ", bytesPerSecond=" + bytesPerSecond
+                + ", idleTimeout=" + idleTimeout
+                + ", memoryBudget=" + memoryBudget
+                + ", disabledSinks=" + disabledSinks
+                + ", traceConferences=" + traceConferences
+                + ", traceEndpoints=" + traceEndpoints
+                + ", traceSamplingRatio=" + traceSamplingRatio;
+        }
+    }
+}
@@ -60,6 +60,12 @@ public class SsrcStats
      */
     public String mediaType;
 
+    /**
+     * The mean opinion score estimated by {@link QualityEstimator}, or
+     * <tt>NaN</tt> if not estimated.
+     */
+    public double mos = Double.NaN;
+
     @Override
     public String toString()
     {
@@ -71,6 +77,7 @@ public class SsrcStats
                 .append(", fractionalPacketLoss=").append(fractionalPacketLoss)
                 .append(", jitter_ms=").append(jitter_ms)
                 .append(", rtt_ms=").append(rtt_ms)
+                .append(", mos=").append(mos)
                 .toString();
     }
 }
@@ -0,0 +1,556 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.util.*;
+
+/**
+ * Collapses the SSRCs of an endpoint into one {@link SsrcStats} per group
+ * before they are reported. By default all streams of an endpoint with the same
+ * direction and media type form a group, so a simulcast sender with RTX is
+ * reported as a single video stream instead of up to six. A
+ * {@link GroupResolver} supplied by the producer can instead map RTX, FEC and
+ * simulcast layer SSRCs to their primary SSRC.
+ * <p>
+ * Counters are summed. When a stream leaves a group its last counters stay in
+ * the sums, and when it comes back, like a simulcast layer that is toggled,
+ * it continues from them. A stream whose counters go back, e.g. because its
+ * sender restarted, is counted on top of its previous counters. So the
+ * counters of a group never go back. A group is reported with the primary
+ * SSRC given by the resolver, or else with the SSRC of the first stream seen
+ * in the group for as long as the group exists.
+ * <p>
+ * Jitter and RTT are loss-weighted averages: every stream weighs by the
+ * packets it was expected to carry, received and lost, so that a lossy stream
+ * weighs as much as its traffic and not less because of its losses. The
+ * fractional loss is recomputed from the summed packet counts.
+ * <p>
+ * An aggregator keeps the state of the groups of the endpoints it sees, so
+ * every conference uses its own aggregator. Groups that are not seen for
+ * {@link #GROUP_TIMEOUT} calls of {@link #aggregate(List)} are forgotten.
+ */
+public class SsrcStatsAggregator
+{
+    /**
+     * The number of calls of {@link #aggregate(List)} a group is kept for
+     * while it is not seen, so that an endpoint that briefly stops sending
+     * does not restart its counters.
+     */
+    static final int GROUP_TIMEOUT = 30;
+
+    /**
+     * The maximum number of streams whose counters are kept separately in a
+     * group. Beyond it, the counters of the streams not seen the longest are
+     * merged and those streams count again from zero if they come back.
+     */
+    static final int MAX_MEMBERS = 32;
+
+    /**
+     * The resolver used to group SSRCs, or <tt>null</tt> to group by media
+     * type only.
+     */
+    private final GroupResolver groupResolver;
+
+    /**
+     * The state of the groups of the endpoints. Guarded by this.
+     */
+    private final Map<GroupKey, GroupState> groups = new HashMap<>();
+
+    /**
+     * The number of the current call of {@link #aggregate(List)}, used to find
+     * the groups and streams that were not seen. Guarded by this.
+     */
+    private int generation = 0;
+
+    /**
+     * Creates an aggregator grouping streams by endpoint, direction and media
+     * type.
+     */
+    public SsrcStatsAggregator()
+    {
+        this(null);
+    }
+
+    /**
+     * Creates an aggregator grouping streams by endpoint, direction, media type
+     * and the primary SSRC returned by <tt>groupResolver</tt>.
+     * @param groupResolver the resolver to use, or <tt>null</tt> to group by
+     * media type only.
+     */
+    public SsrcStatsAggregator(GroupResolver groupResolver)
+    {
+        this.groupResolver = groupResolver;
+    }
+
+    /**
+     * Aggregates the stats of all endpoints of a reporting period.
+     * @param endpointStats the per SSRC stats.
+     * @return new <tt>EndpointStats</tt> instances holding one
+     * <tt>SsrcStats</tt> per group.
+     */
+    public synchronized List<EndpointStats> aggregate(
+        List<EndpointStats> endpointStats)
+    {
+        generation++;
+
+        List<EndpointStats> result = new ArrayList<>(endpointStats.size());
+        for (EndpointStats stats : endpointStats)
+        {
+            result.add(aggregate(stats));
+        }
+
+        groups.values().removeIf(
+            group -> generation - group.generation >= GROUP_TIMEOUT);
+
+        return result;
+    }
+
+    /**
+     * Aggregates the stats of a single endpoint.
+     * @param endpointStats the per SSRC stats of the endpoint.
+     * @return a new <tt>EndpointStats</tt> holding one <tt>SsrcStats</tt> per
+     * group.
+     */
+    private EndpointStats aggregate(EndpointStats endpointStats)
+    {
+        String endpointId = endpointStats.getEndpointId();
+        EndpointStats result = new EndpointStats(endpointId);
+
+        for (SsrcStats stats
+            : aggregate(endpointId, endpointStats.getReceiveStats(), false))
+        {
+            result.addReceiveStats(stats);
+        }
+        for (SsrcStats stats
+            : aggregate(endpointId, endpointStats.getSendStats(), true))
+        {
+            result.addSendStats(stats);
+        }
+
+        return result;
+    }
+
+    /**
+     * Aggregates the streams of a single endpoint and direction.
+     * @param endpointId the endpoint id.
+     * @param streams the streams to aggregate.
+     * @param send whether the streams are sent to the endpoint.
+     * @return the aggregated streams.
+     */
+    private Collection<SsrcStats> aggregate(
+        String endpointId, List<SsrcStats> streams, boolean send)
+    {
+        if (streams.isEmpty())
+        {
+            return streams;
+        }
+
+        Map<GroupKey, Group> current = new LinkedHashMap<>();
+
+        for (SsrcStats stats : streams)
+        {
+            long primarySsrc = groupResolver == null
+                ? -1 : groupResolver.getPrimarySsrc(endpointId, stats, send);
+
+            GroupKey key
+                = new GroupKey(endpointId, send, stats.mediaType, primarySsrc);
+            Group group = current.get(key);
+
+            if (group == null)
+            {
+                GroupState state = groups.get(key);
+                if (state == null)
+                {
+                    state = new GroupState(
+                        primarySsrc != -1 ? primarySsrc : stats.ssrc);
+                    groups.put(key, state);
+                }
+                group = new Group(state);
+                current.put(key, group);
+            }
+
+            group.add(stats);
+        }
+
+        List<SsrcStats> result = new ArrayList<>(current.size());
+        for (Group group : current.values())
+        {
+            result.add(group.build(generation));
+        }
+
+        return result;
+    }
+
+    /**
+     * Maps the SSRCs of a producer to the primary SSRC they belong to.
+     */
+    public interface GroupResolver
+    {
+        /**
+         * Returns the primary SSRC of <tt>stats</tt>.
+         * @param endpointId the endpoint the stream belongs to.
+         * @param stats the stream stats.
+         * @param send whether the stream is sent to the endpoint.
+         * @return the primary SSRC, <tt>stats.ssrc</tt> for primary streams or
+         * -1 to group the stream by media type only.
+         */
+        long getPrimarySsrc(String endpointId, SsrcStats stats, boolean send);
+    }
+
+    /**
+     * The key identifying a group of streams of an endpoint and direction.
+     */
+    private static class GroupKey
+    {
+        private final String endpointId;
+        private final boolean send;
+
+        /**
+         * The media type of the group.
+         */
+        private final String mediaType;
+
+        /**
+         * The primary SSRC of the group, or -1.
+         */
+        private final long primarySsrc;
+
+        GroupKey(
+            String endpointId, boolean send, String mediaType, long primarySsrc)
+        {
+            this.endpointId = endpointId;
+            this.send = send;
+            this.mediaType = mediaType;
+            this.primarySsrc = primarySsrc;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof GroupKey))
+            {
+                return false;
+            }
+
+            GroupKey other = (GroupKey) o;
+            return primarySsrc == other.primarySsrc
+                && send == other.send
+                && Objects.equals(mediaType, other.mediaType)
+                && Objects.equals(endpointId, other.endpointId);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = Objects.hashCode(endpointId);
+            hash = 31 * hash + Boolean.hashCode(send);
+            hash = 31 * hash + Objects.hashCode(mediaType);
+            return 31 * hash + Long.hashCode(primarySsrc);
+        }
+    }
+
+    /**
+     * The state of a group kept between reporting periods.
+     */
+    private static class GroupState
+    {
+        /**
+         * The SSRC the group is reported with.
+         */
+        final long ssrc;
+
+        /**
+         * The counters of the streams of the group, including the ones that
+         * were not seen in the current period.
+         */
+        final List<Member> members = new ArrayList<>(4);
+
+        /**
+         * The counters of the streams merged when there were more than
+         * {@link #MAX_MEMBERS}.
+         */
+        long departedBytes = 0;
+        long departedPackets = 0;
+        long departedPacketsLost = 0;
+
+        /**
+         * The call of {@link #aggregate(List)} the group was last seen in.
+         */
+        int generation;
+
+        GroupState(long ssrc)
+        {
+            this.ssrc = ssrc;
+        }
+    }
+
+    /**
+     * The counters of a stream of a group.
+     */
+    private static class Member
+    {
+        final long ssrc;
+
+        /**
+         * The last counters reported by the stream.
+         */
+        long bytes;
+        long packets;
+        long packetsLost;
+
+        /**
+         * The counters of the stream before they last went back.
+         */
+        long baseBytes;
+        long basePackets;
+        long basePacketsLost;
+
+        int generation;
+
+        Member(long ssrc)
+        {
+            this.ssrc = ssrc;
+        }
+
+        /**
+         * Records the counters of this period.
+         */
+        void update(SsrcStats stats, int generation)
+        {
+            if (stats.bytes < bytes
+                || stats.packets < packets
+                || stats.packetsLost < packetsLost)
+            {
+                // the stream restarted, keep what it counted before
+                baseBytes += bytes;
+                basePackets += packets;
+                basePacketsLost += packetsLost;
+            }
+
+            bytes = stats.bytes;
+            packets = stats.packets;
+            packetsLost = stats.packetsLost;
+            this.generation = generation;
+        }
+
+        boolean hasBase()
+        {
+            return baseBytes != 0 || basePackets != 0 || basePacketsLost != 0;
+        }
+    }
+
+    /**
+     * Accumulates the streams of one group in a reporting period.
+     */
+    private static class Group
+    {
+        /**
+         * The state of the group.
+         */
+        private final GroupState state;
+
+        /**
+         * The stats being built.
+         */
+        private final SsrcStats result = new SsrcStats();
+
+        /**
+         * The streams added.
+         */
+        private final List<SsrcStats> streams = new ArrayList<>(4);
+
+        /**
+         * The weighted sum of the jitter values.
+         */
+        private double jitterSum = 0;
+
+        /**
+         * The weight of the jitter sum.
+         */
+        private long jitterWeight = 0;
+
+        /**
+         * The weighted sum of the RTT values.
+         */
+        private double rttSum = 0;
+
+        /**
+         * The weight of the RTT sum.
+         */
+        private long rttWeight = 0;
+
+        /**
+         * The weighted sum of the fractional loss values, used when the
+         * streams report no packet counts.
+         */
+        private double lossSum = 0;
+
+        /**
+         * The weight of the fractional loss sum.
+         */
+        private long lossWeight = 0;
+
+        Group(GroupState state)
+        {
+            this.state = state;
+            result.ssrc = state.ssrc;
+        }
+
+        /**
+         * Adds a stream to this group.
+         * @param stats the stream stats.
+         */
+        void add(SsrcStats stats)
+        {
+            streams.add(stats);
+            result.mediaType = stats.mediaType;
+
+            // streams with no packets still count, so that idle groups keep
+            // their quality values
+            long weight = Math.max(stats.packets + stats.packetsLost, 1);
+
+            lossSum += stats.fractionalPacketLoss * weight;
+            lossWeight += weight;
+
+            if (stats.jitter_ms != null)
+            {
+                jitterSum += stats.jitter_ms * weight;
+                jitterWeight += weight;
+            }
+
+            if (stats.rtt_ms > 0)
+            {
+                rttSum += (double) stats.rtt_ms * weight;
+                rttWeight += weight;
+            }
+        }
+
+        /**
+         * Returns the aggregated stats of the group and updates its state.
+         * @param generation the current call of {@link #aggregate(List)}.
+         */
+        SsrcStats build(int generation)
+        {
+            updateMembers(generation);
+
+            if (streams.size() == 1
+                && state.members.size() == 1
+                && streams.get(0).ssrc == state.ssrc
+                && !state.members.get(0).hasBase()
+                && state.departedBytes == 0
+                && state.departedPackets == 0
+                && state.departedPacketsLost == 0)
+            {
+                // nothing to aggregate
+                return streams.get(0);
+            }
+
+            result.bytes = state.departedBytes;
+            result.packets = state.departedPackets;
+            result.packetsLost = state.departedPacketsLost;
+            for (Member member : state.members)
+            {
+                result.bytes += member.baseBytes + member.bytes;
+                result.packets += member.basePackets + member.packets;
+                result.packetsLost
+                    += member.basePacketsLost + member.packetsLost;
+            }
+
+            long expected = result.packets + result.packetsLost;
+            if (result.packetsLost > 0 && expected > 0)
+            {
+                result.fractionalPacketLoss
+                    = (double) result.packetsLost / expected;
+            }
+            else if (lossWeight > 0)
+            {
+                result.fractionalPacketLoss = lossSum / lossWeight;
+            }
+
+            if (jitterWeight > 0)
+            {
+                result.jitter_ms = jitterSum / jitterWeight;
+            }
+
+            if (rttWeight > 0)
+            {
+                result.rtt_ms = (int) Math.round(rttSum / rttWeight);
+            }
+
+            return result;
+        }
+
+        /**
+         * Records the counters of the streams of this period, and merges the
+         * counters of the streams not seen the longest when there are too
+         * many.
+         */
+        private void updateMembers(int generation)
+        {
+            state.generation = generation;
+            markSeen(generation);
+
+            while (state.members.size() > MAX_MEMBERS)
+            {
+                Member oldest = state.members.get(0);
+                for (Member member : state.members)
+                {
+                    if (member.generation < oldest.generation)
+                    {
+                        oldest = member;
+                    }
+                }
+                if (oldest.generation == generation)
+                {
+                    // all of them are current
+                    break;
+                }
+
+                state.departedBytes += oldest.baseBytes + oldest.bytes;
+                state.departedPackets += oldest.basePackets + oldest.packets;
+                state.departedPacketsLost
+                    += oldest.basePacketsLost + oldest.packetsLost;
+                state.members.remove(oldest);
+            }
+        }
+
+        /**
+         * Marks the streams added to this group as seen.
+         */
+        private void markSeen(int generation)
+        {
+            for (SsrcStats stats : streams)
+            {
+                Member member = null;
+                for (Member candidate : state.members)
+                {
+                    if (candidate.ssrc == stats.ssrc)
+                    {
+                        member = candidate;
+                        break;
+                    }
+                }
+                if (member == null)
+                {
+                    member = new Member(stats.ssrc);
+                    state.members.add(member);
+                }
+
+                member.update(stats, generation);
+            }
+        }
+    }
+}
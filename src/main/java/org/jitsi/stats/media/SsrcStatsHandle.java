@@ -0,0 +1,230 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.lang.invoke.*;
+
+/**
+ * The counters of a single SSRC, updated in place by the producer of the
+ * statistics instead of building {@link SsrcStats} on every reporting period.
+ * Handles are obtained with
+ * {@link AbstractStatsPeriodicRunnable#registerSsrc(String, long, String, boolean)}.
+ * <p>
+ * A handle must be updated by a single thread at a time. Updates are plain
+ * release stores without locks or atomic read-modify-write instructions; the
+ * reporting thread reads the latest values when the period elapses.
+ */
+public class SsrcStatsHandle
+{
+    private static final VarHandle BYTES;
+    private static final VarHandle PACKETS;
+    private static final VarHandle PACKETS_LOST;
+    private static final VarHandle FRACTIONAL_PACKET_LOSS;
+    private static final VarHandle JITTER;
+    private static final VarHandle RTT;
+
+    static
+    {
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BYTES = lookup.findVarHandle(
+                SsrcStatsHandle.class, "bytes", long.class);
+            PACKETS = lookup.findVarHandle(
+                SsrcStatsHandle.class, "packets", long.class);
+            PACKETS_LOST = lookup.findVarHandle(
+                SsrcStatsHandle.class, "packetsLost", long.class);
+            FRACTIONAL_PACKET_LOSS = lookup.findVarHandle(
+                SsrcStatsHandle.class, "fractionalPacketLoss", double.class);
+            JITTER = lookup.findVarHandle(
+                SsrcStatsHandle.class, "jitter", double.class);
+            RTT = lookup.findVarHandle(
+                SsrcStatsHandle.class, "rtt", int.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The ID of the endpoint the stream belongs to.
+     */
+    private final String endpointId;
+
+    /**
+     * Whether the stream is sent to the endpoint.
+     */
+    private final boolean send;
+
+    /**
+     * The stats passed to the reporting code, refreshed from the counters on
+     * every period. Only accessed by the reporting thread.
+     */
+    private final SsrcStats stats = new SsrcStats();
+
+    /**
+     * The counters, written by the producer thread.
+     */
+    @SuppressWarnings("unused")
+    private long bytes = 0;
+    @SuppressWarnings("unused")
+    private long packets = 0;
+    @SuppressWarnings("unused")
+    private long packetsLost = 0;
+    @SuppressWarnings("unused")
+    private double fractionalPacketLoss = 0d;
+    @SuppressWarnings("unused")
+    private double jitter = Double.NaN;
+    @SuppressWarnings("unused")
+    private int rtt = -1;
+
+    /**
+     * Creates a handle.
+     * @param endpointId the endpoint the stream belongs to.
+     * @param ssrc the SSRC of the stream.
+     * @param mediaType the media type of the stream.
+     * @param send whether the stream is sent to the endpoint.
+     */
+    SsrcStatsHandle(String endpointId, long ssrc, String mediaType, boolean send)
+    {
+        this.endpointId = endpointId;
+        this.send = send;
+        stats.ssrc = ssrc;
+        stats.mediaType = mediaType;
+    }
+
+    /**
+     * Returns the ID of the endpoint the stream belongs to.
+     * @return the endpoint ID.
+     */
+    public String getEndpointId()
+    {
+        return endpointId;
+    }
+
+    /**
+     * Returns the SSRC of the stream.
+     * @return the SSRC.
+     */
+    public long getSsrc()
+    {
+        return stats.ssrc;
+    }
+
+    /**
+     * Returns whether the stream is sent to the endpoint.
+     * @return whether the stream is sent to the endpoint.
+     */
+    public boolean isSend()
+    {
+        return send;
+    }
+
+    /**
+     * Counts a packet sent or received.
+     * @param size the size of the packet in bytes.
+     */
+    public void addPacket(int size)
+    {
+        BYTES.setRelease(this, (long) BYTES.getOpaque(this) + size);
+        PACKETS.setRelease(this, (long) PACKETS.getOpaque(this) + 1);
+    }
+
+    /**
+     * Sets the cumulative byte and packet counters, for producers that already
+     * keep them.
+     * @param bytes the number of bytes sent or received.
+     * @param packets the number of packets sent or received.
+     */
+    public void setCounters(long bytes, long packets)
+    {
+        BYTES.setRelease(this, bytes);
+        PACKETS.setRelease(this, packets);
+    }
+
+    /**
+     * Sets the number of packets lost.
+     * @param packetsLost the number of packets lost.
+     */
+    public void setPacketsLost(long packetsLost)
+    {
+        PACKETS_LOST.setRelease(this, packetsLost);
+    }
+
+    /**
+     * Sets the fraction of lost packets.
+     * @param fractionalPacketLoss the fraction of lost packets.
+     */
+    public void setFractionalPacketLoss(double fractionalPacketLoss)
+    {
+        FRACTIONAL_PACKET_LOSS.setRelease(this, fractionalPacketLoss);
+    }
+
+    /**
+     * Sets the jitter.
+     * @param jitterMs the jitter in milliseconds, or <tt>NaN</tt> if unknown.
+     */
+    public void setJitter(double jitterMs)
+    {
+        JITTER.setRelease(this, jitterMs);
+    }
+
+    /**
+     * Sets the RTT.
+     * @param rttMs the RTT in milliseconds, or -1 if unknown.
+     */
+    public void setRtt(int rttMs)
+    {
+        RTT.setRelease(this, rttMs);
+    }
+
+    /**
+     * Refreshes the stats passed to the reporting code from the counters.
+     * @return the refreshed stats.
+     */
+    SsrcStats read()
+    {
+        stats.bytes = (long) BYTES.getAcquire(this);
+        stats.packets = (long) PACKETS.getAcquire(this);
+        stats.packetsLost = (long) PACKETS_LOST.getAcquire(this);
+        stats.fractionalPacketLoss
+            = (double) FRACTIONAL_PACKET_LOSS.getAcquire(this);
+        stats.rtt_ms = (int) RTT.getAcquire(this);
+
+        double jitterMs = (double) JITTER.getAcquire(this);
+        if (Double.isNaN(jitterMs))
+        {
+            stats.jitter_ms = null;
+        }
+        else if (stats.jitter_ms == null || stats.jitter_ms != jitterMs)
+        {
+            // only box when the value changes
+            stats.jitter_ms = jitterMs;
+        }
+
+        return stats;
+    }
+
+    /**
+     * Returns the stats passed to the reporting code, as last refreshed.
+     * @return the stats.
+     */
+    SsrcStats getStats()
+    {
+        return stats;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+
+import java.util.concurrent.*;
+
+/**
+ * The source of time and delayed execution of the library. The default
+ * {@link #SYSTEM} clock uses the system time; {@link VirtualTimeScheduler}
+ * replaces it to simulate long periods of reporting in a short time.
+ * <p>
+ * The clock is set with {@link StatsServiceFactory#setClock(StatsClock)}
+ * before creating services and conferences, which keep the clock they were
+ * created with.
+ */
+public abstract class StatsClock
+{
+    /**
+     * The clock using the system time.
+     */
+    public static final StatsClock SYSTEM = new SystemClock();
+
+    /**
+     * Returns the current time.
+     * @return the time in milliseconds since the epoch.
+     */
+    public abstract long millis();
+
+    /**
+     * Returns the value of a monotonic time source, only meaningful as the
+     * difference of two values.
+     * @return the time in nanoseconds.
+     */
+    public abstract long nanoTime();
+
+    /**
+     * Runs a task once after a delay.
+     * @param task the task.
+     * @param delay the delay.
+     * @param unit the unit of the delay.
+     * @return the future of the task, to cancel it.
+     */
+    public abstract ScheduledFuture<?> schedule(
+        Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * The clock using the system time and a shared pool of daemon threads.
+     */
+    private static class SystemClock
+        extends StatsClock
+    {
+        @Override
+        public long millis()
+        {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime()
+        {
+            return System.nanoTime();
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(
+            Runnable task, long delay, TimeUnit unit)
+        {
+            return SchedulerHolder.SCHEDULER.schedule(task, delay, unit);
+        }
+    }
+
+    /**
+     * Holds the threads of the system clock, created on first use.
+     */
+    private static class SchedulerHolder
+    {
+        static final ScheduledExecutorService SCHEDULER
+            = Executors.newScheduledThreadPool(
+                4, new CustomizableThreadFactory("stats-scheduler", true));
+    }
+}
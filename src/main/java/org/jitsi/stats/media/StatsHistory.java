@@ -0,0 +1,576 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link StatsSink} keeping the most recent per SSRC samples of every
+ * conference in memory, so they can be inspected locally when the remote
+ * backend is slow or unavailable.
+ * <p>
+ * Every conference gets a fixed size ring of samples stored as primitive
+ * arrays. The number of conferences kept is bounded by a global memory budget;
+ * when it is exceeded the conference updated least recently is evicted.
+ * Conferences are also evicted when they are stopped.
+ * <p>
+ * The endpoint IDs and media types of the samples are stored as indexes in a
+ * dictionary of the conference. An entry is dropped, and its index reused,
+ * once the last sample referencing it is overwritten, so endpoint churn does
+ * not grow the dictionary.
+ */
+public class StatsHistory
+    implements StatsSink
+{
+    /**
+     * The approximate number of bytes used by a single sample.
+     */
+    static final int BYTES_PER_SAMPLE = 8 + 2 + 2 + 1 + 8 + 8 + 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * The flag marking a sample of a stream sent to the endpoint.
+     */
+    private static final byte FLAG_SEND = 1;
+
+    /**
+     * The maximum number of samples kept per conference, such that the
+     * dictionary entries referenced by a ring fit in a <tt>short</tt>.
+     */
+    static final int MAX_SAMPLES_PER_CONFERENCE = Short.MAX_VALUE / 2;
+
+    /**
+     * The number of samples kept per conference.
+     */
+    private final int samplesPerConference;
+
+    /**
+     * The maximum number of conferences kept, derived from the memory budget.
+     */
+    private final int maxConferences;
+
+    /**
+     * The history of every conference by conference ID.
+     */
+    private final Map<String, ConferenceHistory> conferences
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new history.
+     * @param samplesPerConference the number of per SSRC samples kept for
+     * every conference, at most {@link #MAX_SAMPLES_PER_CONFERENCE}.
+     * @param memoryBudget the maximum number of bytes used by all rings.
+     */
+    public StatsHistory(int samplesPerConference, long memoryBudget)
+    {
+        if (samplesPerConference <= 0
+            || samplesPerConference > MAX_SAMPLES_PER_CONFERENCE)
+        {
+            throw new IllegalArgumentException(
+                "samplesPerConference: " + samplesPerConference);
+        }
+
+        this.samplesPerConference = samplesPerConference;
+        this.maxConferences = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+            memoryBudget / ((long) samplesPerConference * BYTES_PER_SAMPLE)));
+    }
+
+    @Override
+    public void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats)
+    {
+        ConferenceHistory history = conferences.get(conferenceID);
+
+        if (history == null)
+        {
+            history = createHistory(conferenceID, timestamp);
+        }
+
+        history.add(timestamp, endpointStats);
+    }
+
+    @Override
+    public void conferenceStopped(String conferenceID)
+    {
+        conferences.remove(conferenceID);
+    }
+
+    /**
+     * Creates the history of a conference, evicting the least recently updated
+     * conferences if the memory budget is exceeded.
+     * @param conferenceID the conference ID.
+     * @param timestamp the timestamp of the first samples.
+     * @return the history of the conference.
+     */
+    private synchronized ConferenceHistory createHistory(
+        String conferenceID, long timestamp)
+    {
+        ConferenceHistory history = conferences.get(conferenceID);
+        if (history != null)
+        {
+            return history;
+        }
+
+        while (conferences.size() >= maxConferences)
+        {
+            String oldest = null;
+            long oldestTimestamp = Long.MAX_VALUE;
+
+            for (Map.Entry<String, ConferenceHistory> e
+                : conferences.entrySet())
+            {
+                long lastTimestamp = e.getValue().lastTimestamp;
+                if (lastTimestamp < oldestTimestamp)
+                {
+                    oldest = e.getKey();
+                    oldestTimestamp = lastTimestamp;
+                }
+            }
+
+            if (oldest == null)
+            {
+                break;
+            }
+            conferences.remove(oldest);
+        }
+
+        history = new ConferenceHistory(samplesPerConference, timestamp);
+        conferences.put(conferenceID, history);
+
+        return history;
+    }
+
+    /**
+     * Returns the IDs of the conferences with history.
+     * @return the conference IDs.
+     */
+    public Set<String> getConferenceIDs()
+    {
+        return Collections.unmodifiableSet(conferences.keySet());
+    }
+
+    /**
+     * Visits the samples of a conference collected in the time range
+     * [<tt>from</tt>, <tt>to</tt>), in the order they were collected. The
+     * samples are read in place; the {@link Sample} passed to the visitor is
+     * only valid during the call and the ring is locked while visiting, so the
+     * visitor must not block.
+     *
+     * @param conferenceID the conference ID.
+     * @param endpointID the endpoint to return samples for, or <tt>null</tt> for
+     * all endpoints.
+     * @param from the start of the range, in milliseconds since the epoch.
+     * @param to the end of the range, in milliseconds since the epoch.
+     * @param visitor the visitor.
+     * @return the number of visited samples.
+     */
+    public int query(
+        String conferenceID,
+        String endpointID,
+        long from,
+        long to,
+        SampleVisitor visitor)
+    {
+        ConferenceHistory history = conferences.get(conferenceID);
+
+        if (history == null)
+        {
+            return 0;
+        }
+
+        return history.query(endpointID, from, to, visitor);
+    }
+
+    /**
+     * Receives the samples returned by a query.
+     */
+    public interface SampleVisitor
+    {
+        /**
+         * Visits a sample.
+         * @param sample the sample, only valid during this call.
+         */
+        void visit(Sample sample);
+    }
+
+    /**
+     * A read only view of a sample stored in a ring.
+     */
+    public static class Sample
+    {
+        /**
+         * The history the sample is read from.
+         */
+        private final ConferenceHistory history;
+
+        /**
+         * The index of the sample in the ring.
+         */
+        private int index;
+
+        private Sample(ConferenceHistory history)
+        {
+            this.history = history;
+        }
+
+        /**
+         * The time the sample was collected, in milliseconds since the epoch.
+         */
+        public long getTimestamp()
+        {
+            return history.timestamps[index];
+        }
+
+        /**
+         * The ID of the endpoint.
+         */
+        public String getEndpointId()
+        {
+            return history.strings.get(history.endpoints[index]);
+        }
+
+        /**
+         * The media type of the stream.
+         */
+        public String getMediaType()
+        {
+            return history.strings.get(history.mediaTypes[index]);
+        }
+
+        /**
+         * Whether the stream is sent to the endpoint.
+         */
+        public boolean isSend()
+        {
+            return (history.flags[index] & FLAG_SEND) != 0;
+        }
+
+        /**
+         * The SSRC of the stream.
+         */
+        public long getSsrc()
+        {
+            return history.ssrcs[index];
+        }
+
+        /**
+         * Number of bytes sent or received.
+         */
+        public long getBytes()
+        {
+            return history.bytes[index];
+        }
+
+        /**
+         * Number of packets sent or received.
+         */
+        public long getPackets()
+        {
+            return history.packets[index];
+        }
+
+        /**
+         * Number of packets lost.
+         */
+        public long getPacketsLost()
+        {
+            return history.packetsLost[index];
+        }
+
+        /**
+         * The fraction of lost packets.
+         */
+        public double getFractionalPacketLoss()
+        {
+            return history.fractionalPacketLoss[index];
+        }
+
+        /**
+         * The jitter in milliseconds, or <tt>NaN</tt> if unknown.
+         */
+        public double getJitter()
+        {
+            return history.jitter[index];
+        }
+
+        /**
+         * The RTT in milliseconds, or -1 if unknown.
+         */
+        public int getRtt()
+        {
+            return history.rtt[index];
+        }
+    }
+
+    /**
+     * The ring of samples of a single conference.
+     */
+    private static class ConferenceHistory
+    {
+        /**
+         * The collection time of every sample.
+         */
+        private final long[] timestamps;
+
+        /**
+         * The dictionary index of the endpoint ID of every sample.
+         */
+        private final short[] endpoints;
+
+        /**
+         * The dictionary index of the media type of every sample.
+         */
+        private final short[] mediaTypes;
+
+        /**
+         * The flags of every sample.
+         */
+        private final byte[] flags;
+
+        /**
+         * The values of the {@link SsrcStats} fields of every sample.
+         */
+        private final long[] ssrcs;
+        private final long[] bytes;
+        private final long[] packets;
+        private final long[] packetsLost;
+        private final float[] fractionalPacketLoss;
+        private final float[] jitter;
+        private final int[] rtt;
+
+        /**
+         * The endpoint IDs and media types referenced by the samples, with
+         * <tt>null</tt> at free indexes.
+         */
+        private final List<String> strings = new ArrayList<>();
+
+        /**
+         * The index of every string in {@link #strings}.
+         */
+        private final Map<String, Short> stringIndexes = new HashMap<>();
+
+        /**
+         * The number of samples in the ring referencing every index of
+         * {@link #strings}.
+         */
+        private int[] references = new int[16];
+
+        /**
+         * The free indexes of {@link #strings}.
+         */
+        private final Deque<Short> freeIndexes = new ArrayDeque<>();
+
+        /**
+         * The index the next sample is written at.
+         */
+        private int head = 0;
+
+        /**
+         * The number of samples in the ring.
+         */
+        private int size = 0;
+
+        /**
+         * The timestamp of the last added samples.
+         */
+        private volatile long lastTimestamp;
+
+        ConferenceHistory(int capacity, long timestamp)
+        {
+            lastTimestamp = timestamp;
+            timestamps = new long[capacity];
+            endpoints = new short[capacity];
+            mediaTypes = new short[capacity];
+            flags = new byte[capacity];
+            ssrcs = new long[capacity];
+            bytes = new long[capacity];
+            packets = new long[capacity];
+            packetsLost = new long[capacity];
+            fractionalPacketLoss = new float[capacity];
+            jitter = new float[capacity];
+            rtt = new int[capacity];
+        }
+
+        /**
+         * Adds the samples of a reporting period.
+         */
+        synchronized void add(long timestamp, List<EndpointStats> endpointStats)
+        {
+            for (EndpointStats stats : endpointStats)
+            {
+                String endpoint = stats.getEndpointId();
+
+                for (SsrcStats ssrcStats : stats.getReceiveStats())
+                {
+                    add(timestamp, endpoint, (byte) 0, ssrcStats);
+                }
+                for (SsrcStats ssrcStats : stats.getSendStats())
+                {
+                    add(timestamp, endpoint, FLAG_SEND, ssrcStats);
+                }
+            }
+
+            lastTimestamp = timestamp;
+        }
+
+        /**
+         * Adds a single sample, overwriting the oldest one if the ring is
+         * full.
+         */
+        private void add(
+            long timestamp, String endpoint, byte flag, SsrcStats stats)
+        {
+            int i = head;
+
+            // release the overwritten sample before looking up the strings,
+            // which may reuse its indexes
+            if (size == timestamps.length)
+            {
+                release(endpoints[i]);
+                release(mediaTypes[i]);
+            }
+
+            timestamps[i] = timestamp;
+            endpoints[i] = acquire(endpoint);
+            mediaTypes[i] = acquire(stats.mediaType);
+            flags[i] = flag;
+            ssrcs[i] = stats.ssrc;
+            bytes[i] = stats.bytes;
+            packets[i] = stats.packets;
+            packetsLost[i] = stats.packetsLost;
+            fractionalPacketLoss[i] = (float) stats.fractionalPacketLoss;
+            jitter[i] = stats.jitter_ms == null
+                ? Float.NaN : stats.jitter_ms.floatValue();
+            rtt[i] = stats.rtt_ms;
+
+            head = (i + 1) % timestamps.length;
+            if (size < timestamps.length)
+            {
+                size++;
+            }
+        }
+
+        /**
+         * Returns the dictionary index of <tt>s</tt>, adding it if needed, and
+         * counts a reference to it.
+         */
+        private short acquire(String s)
+        {
+            Short index = stringIndexes.get(s);
+
+            if (index == null)
+            {
+                index = freeIndexes.poll();
+                if (index == null)
+                {
+                    index = (short) strings.size();
+                    strings.add(s);
+                    if (index == references.length)
+                    {
+                        references
+                            = Arrays.copyOf(references, index * 2);
+                    }
+                }
+                else
+                {
+                    strings.set(index, s);
+                }
+                stringIndexes.put(s, index);
+            }
+
+            references[index]++;
+            return index;
+        }
+
+        /**
+         * Drops a reference to a dictionary index, freeing the index when no
+         * sample references it anymore.
+         */
+        private void release(short index)
+        {
+            if (--references[index] == 0)
+            {
+                stringIndexes.remove(strings.get(index));
+                strings.set(index, null);
+                freeIndexes.push(index);
+            }
+        }
+
+        /**
+         * Returns the ring index of the <tt>n</tt>-th oldest sample.
+         */
+        private int physical(int n)
+        {
+            int capacity = timestamps.length;
+            return (head - size + n + capacity) % capacity;
+        }
+
+        /**
+         * Visits the samples in the passed time range.
+         */
+        synchronized int query(
+            String endpointID, long from, long to, SampleVisitor visitor)
+        {
+            // samples are added in time order, find the first one in range
+            int low = 0, high = size;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (timestamps[physical(mid)] < from)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+
+            Short endpoint = null;
+            if (endpointID != null)
+            {
+                endpoint = stringIndexes.get(endpointID);
+                if (endpoint == null)
+                {
+                    return 0;
+                }
+            }
+
+            Sample sample = new Sample(this);
+            int count = 0;
+
+            for (int n = low; n < size; n++)
+            {
+                int i = physical(n);
+
+                if (timestamps[i] >= to)
+                {
+                    break;
+                }
+                if (endpoint != null && endpoints[i] != endpoint)
+                {
+                    continue;
+                }
+
+                sample.index = i;
+                visitor.visit(sample);
+                count++;
+            }
+
+            return count;
+        }
+    }
+}
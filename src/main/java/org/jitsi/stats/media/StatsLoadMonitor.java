@@ -0,0 +1,374 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Derives the load level of the stats pipeline of a {@link StatsService} from
+ * how late the reporting periods run, how long sending a report takes and how
+ * full the queues are, so that producers can collect less often or in less
+ * detail when the pipeline cannot keep up.
+ * <p>
+ * Every signal is smoothed with an exponentially weighted moving average and
+ * compared to a degraded and a shedding threshold; the load level is the
+ * worst level of all signals. The levels are kept in a single atomic word
+ * updated by compare and set, so recording a value takes no lock, and
+ * reading the level is a single volatile read.
+ * <p>
+ * Listeners are notified on a shared daemon thread, not on the reporting
+ * threads, one change at a time and in order: every change starts from the
+ * level of the previous one. Changes that follow each other faster than the
+ * listeners run may be merged into one.
+ */
+public class StatsLoadMonitor
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(StatsLoadMonitor.class.getName());
+
+    /**
+     * The weight of a new value in the moving averages.
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * The bits of a level in {@link #state}.
+     */
+    private static final int LEVEL_BITS = 2;
+    private static final long LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+
+    /**
+     * The position of the sequence number in {@link #state}, above the level
+     * of the monitor and the levels of the signals.
+     */
+    private static final int SEQUENCE_SHIFT = 4 * LEVEL_BITS;
+
+    /**
+     * The load levels, by ordinal.
+     */
+    private static final LoadLevel[] LEVELS = LoadLevel.values();
+
+    /**
+     * The load levels of the stats pipeline.
+     */
+    public enum LoadLevel
+    {
+        /**
+         * The pipeline keeps up.
+         */
+        NORMAL,
+
+        /**
+         * The pipeline is falling behind, producers should reduce the detail
+         * or frequency of the stats.
+         */
+        DEGRADED,
+
+        /**
+         * The pipeline is dropping stats, producers should collect only what
+         * is essential.
+         */
+        SHEDDING
+    }
+
+    /**
+     * Notified when the load level changes.
+     */
+    public interface LoadListener
+    {
+        /**
+         * The load level changed.
+         * @param oldLevel the previous level.
+         * @param newLevel the new level.
+         */
+        void loadLevelChanged(LoadLevel oldLevel, LoadLevel newLevel);
+    }
+
+    /**
+     * How late the reporting periods run, in milliseconds.
+     */
+    private final Signal tickLag = new Signal(1, 500, 2000);
+
+    /**
+     * How long sending a single report takes, in microseconds.
+     */
+    private final Signal sendLatency = new Signal(2, 2000, 10000);
+
+    /**
+     * How full the queues are, between 0 and 1.
+     */
+    private final Signal queueUtilization = new Signal(3, 0.5, 0.9);
+
+    /**
+     * The load level of the monitor in the lowest bits, followed by the
+     * levels of the signals, and a sequence number incremented on every
+     * update, so that an update computed from an older average fails.
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * The level the listeners were last notified of. Used by the notifier
+     * thread only.
+     */
+    private LoadLevel notifiedLevel = LoadLevel.NORMAL;
+
+    /**
+     * The listeners notified on load level changes.
+     */
+    private final List<LoadListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Returns the current load level.
+     * @return the load level.
+     */
+    public LoadLevel getLoadLevel()
+    {
+        return LEVELS[(int) (state.get() & LEVEL_MASK)];
+    }
+
+    /**
+     * Adds a listener notified when the load level changes.
+     * @param listener the listener.
+     */
+    public void addListener(LoadListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener the listener.
+     */
+    public void removeListener(LoadListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sets the thresholds of the delay of the reporting periods.
+     * @param degradedMs the delay in milliseconds above which the pipeline is
+     * degraded.
+     * @param sheddingMs the delay in milliseconds above which the pipeline is
+     * shedding.
+     */
+    public void setTickLagThresholds(long degradedMs, long sheddingMs)
+    {
+        tickLag.setThresholds(degradedMs, sheddingMs);
+    }
+
+    /**
+     * Sets the thresholds of the time it takes to send a report.
+     * @param degradedMicros the latency in microseconds above which the
+     * pipeline is degraded.
+     * @param sheddingMicros the latency in microseconds above which the
+     * pipeline is shedding.
+     */
+    public void setSendLatencyThresholds(
+        long degradedMicros, long sheddingMicros)
+    {
+        sendLatency.setThresholds(degradedMicros, sheddingMicros);
+    }
+
+    /**
+     * Sets the thresholds of the queue utilization.
+     * @param degraded the utilization above which the pipeline is degraded.
+     * @param shedding the utilization above which the pipeline is shedding.
+     */
+    public void setQueueUtilizationThresholds(double degraded, double shedding)
+    {
+        queueUtilization.setThresholds(degraded, shedding);
+    }
+
+    /**
+     * Records how late a reporting period ran.
+     * @param lagMs the delay in milliseconds.
+     */
+    void recordTickLag(long lagMs)
+    {
+        update(tickLag, Math.max(0, lagMs));
+    }
+
+    /**
+     * Records how long sending reports took.
+     * @param nanos the time it took, in nanoseconds.
+     * @param reports the number of reports sent.
+     */
+    void recordSendLatency(long nanos, int reports)
+    {
+        if (reports > 0)
+        {
+            update(sendLatency, nanos / 1000d / reports);
+        }
+    }
+
+    /**
+     * Records the fill level of a queue of the pipeline. Reports refused by
+     * the rate limiter count as a full queue.
+     * @param depth the number of queued items.
+     * @param capacity the capacity of the queue.
+     */
+    public void recordQueueDepth(int depth, int capacity)
+    {
+        if (capacity > 0)
+        {
+            update(queueUtilization, Math.min(1d, (double) depth / capacity));
+        }
+    }
+
+    /**
+     * Records a value of a signal, recomputes the load level and has the
+     * listeners notified if it changed.
+     */
+    private void update(Signal signal, double value)
+    {
+        signal.record(value);
+
+        long current, next;
+        do
+        {
+            // Read the state before the average: an update of the average
+            // after this read also updates the state, so the compare and
+            // set below fails and the newer average is read again.
+            current = state.get();
+            long levels = current & ((1L << SEQUENCE_SHIFT) - 1);
+            levels &= ~(LEVEL_MASK << signal.shift);
+            levels |= (long) signal.level().ordinal() << signal.shift;
+
+            long level = Math.max(
+                (levels >> tickLag.shift) & LEVEL_MASK,
+                Math.max(
+                    (levels >> sendLatency.shift) & LEVEL_MASK,
+                    (levels >> queueUtilization.shift) & LEVEL_MASK));
+            levels = (levels & ~LEVEL_MASK) | level;
+
+            next = ((current >>> SEQUENCE_SHIFT) + 1) << SEQUENCE_SHIFT
+                | levels;
+        }
+        while (!state.compareAndSet(current, next));
+
+        if (((current ^ next) & LEVEL_MASK) != 0)
+        {
+            Notifier.EXECUTOR.execute(this::notifyListeners);
+        }
+    }
+
+    /**
+     * Notifies the listeners of a change of the load level, on the notifier
+     * thread.
+     */
+    private void notifyListeners()
+    {
+        LoadLevel oldLevel = notifiedLevel;
+        LoadLevel newLevel = getLoadLevel();
+        if (oldLevel == newLevel)
+        {
+            // merged with a change back
+            return;
+        }
+        notifiedLevel = newLevel;
+
+        logger.info("Stats load level changed " + oldLevel + " -> " + newLevel);
+
+        for (LoadListener listener : listeners)
+        {
+            try
+            {
+                listener.loadLevelChanged(oldLevel, newLevel);
+            }
+            catch (Exception e)
+            {
+                logger.error("Load listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Holds the thread notifying the listeners of all monitors, started with
+     * the first change.
+     */
+    private static class Notifier
+    {
+        static final ExecutorService EXECUTOR
+            = Executors.newSingleThreadExecutor(
+                new CustomizableThreadFactory("stats-load-listeners", true));
+    }
+
+    /**
+     * A smoothed load signal with its thresholds.
+     */
+    private static class Signal
+    {
+        /**
+         * The position of the level of this signal in {@link #state}.
+         */
+        final int shift;
+
+        /**
+         * The bits of the moving average.
+         */
+        private final AtomicLong average
+            = new AtomicLong(Double.doubleToLongBits(0));
+
+        /**
+         * The thresholds of the degraded and shedding levels.
+         */
+        private volatile double degraded;
+        private volatile double shedding;
+
+        Signal(int index, double degraded, double shedding)
+        {
+            this.shift = index * LEVEL_BITS;
+            setThresholds(degraded, shedding);
+        }
+
+        void setThresholds(double degraded, double shedding)
+        {
+            this.degraded = degraded;
+            this.shedding = shedding;
+        }
+
+        void record(double value)
+        {
+            long bits, newBits;
+            do
+            {
+                bits = average.get();
+                double current = Double.longBitsToDouble(bits);
+                newBits = Double.doubleToLongBits(
+                    current + ALPHA * (value - current));
+            }
+            while (!average.compareAndSet(bits, newBits));
+        }
+
+        LoadLevel level()
+        {
+            double value = Double.longBitsToDouble(average.get());
+
+            if (value > shedding)
+            {
+                return LoadLevel.SHEDDING;
+            }
+            return value > degraded ? LoadLevel.DEGRADED : LoadLevel.NORMAL;
+        }
+    }
+}
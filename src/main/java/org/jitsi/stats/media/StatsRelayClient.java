@@ -0,0 +1,409 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A {@link StatsSink} forwarding the stats of the conferences of this process
+ * to a {@link StatsRelayServer} on the same host, which reports them upstream
+ * through a single connection for all processes.
+ * <p>
+ * The stats are encoded on the calling thread and queued; a daemon thread
+ * writes them to the server, connecting again when the connection is lost.
+ * Stats that do not fit in the queue or are lost with a connection are
+ * dropped, the next period replaces them. Start and stop frames are queued in
+ * order with the stats and have room of their own in the queue. When even that
+ * is full, they are dropped too and the client reconnects once the queue has
+ * room: the server forgets the conferences of a closed connection, and after
+ * connecting the started conferences are announced again, which also lets a
+ * restarted server pick them up.
+ */
+public class StatsRelayClient
+    implements StatsSink, Closeable
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(StatsRelayClient.class.getName());
+
+    /**
+     * The default number of stats frames waiting to be written.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The delay before connecting again after a failure, in milliseconds.
+     */
+    private static final long RECONNECT_DELAY = 1000;
+
+    /**
+     * The maximum time to write the queued frames when closing, in
+     * milliseconds.
+     */
+    private static final long DRAIN_TIMEOUT = 2000;
+
+    /**
+     * The address of the relay server.
+     */
+    private final InetSocketAddress serverAddress;
+
+    /**
+     * The frames waiting to be written, with room for as many start and stop
+     * frames as stats frames.
+     */
+    private final BlockingQueue<byte[]> queue;
+
+    /**
+     * The number of stats frames waiting to be written above which stats
+     * frames are dropped.
+     */
+    private final int queueCapacity;
+
+    /**
+     * The number of stats frames waiting to be written.
+     */
+    private final AtomicInteger queuedStats = new AtomicInteger();
+
+    /**
+     * The started conferences, by conference ID.
+     */
+    private final Map<String, StartedConference> conferences
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The thread writing the frames.
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+        new CustomizableThreadFactory("stats-relay-client", true));
+
+    /**
+     * The number of frames written.
+     */
+    private final AtomicLong sentFrames = new AtomicLong();
+
+    /**
+     * The number of frames dropped.
+     */
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    /**
+     * Whether a start or stop frame was dropped, so that the server has to be
+     * told the started conferences again.
+     */
+    private volatile boolean resync = false;
+
+    /**
+     * Whether this client was closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The connection to the server, used by the writer thread only.
+     */
+    private Socket socket;
+
+    /**
+     * The stream of the connection, used by the writer thread only.
+     */
+    private OutputStream out;
+
+    /**
+     * Creates a client of the relay server at <tt>serverAddress</tt>.
+     * @param serverAddress the address of the relay server, normally a
+     * loopback address.
+     */
+    public StatsRelayClient(InetSocketAddress serverAddress)
+    {
+        this(serverAddress, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a client of the relay server at <tt>serverAddress</tt>.
+     * @param serverAddress the address of the relay server, normally a
+     * loopback address.
+     * @param queueCapacity the number of stats frames waiting to be written
+     * above which stats frames are dropped.
+     */
+    public StatsRelayClient(InetSocketAddress serverAddress, int queueCapacity)
+    {
+        this.serverAddress = serverAddress;
+        this.queueCapacity = queueCapacity;
+        this.queue = new LinkedBlockingQueue<>(2 * queueCapacity);
+        writer.execute(this::write);
+    }
+
+    /**
+     * Returns the number of frames written to the server.
+     * @return the number of frames.
+     */
+    public long getSentFrames()
+    {
+        return sentFrames.get();
+    }
+
+    /**
+     * Returns the number of frames dropped because the queue was full or the
+     * connection was lost.
+     * @return the number of frames.
+     */
+    public long getDroppedFrames()
+    {
+        return droppedFrames.get();
+    }
+
+    @Override
+    public void conferenceStarted(
+        String conferenceID, String siteID, String initiatorID)
+    {
+        conferences.put(
+            conferenceID, new StartedConference(siteID, initiatorID));
+        enqueue(StatsRelayCodec.encodeStart(conferenceID, initiatorID, siteID));
+    }
+
+    @Override
+    public void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats)
+    {
+        if (queuedStats.incrementAndGet() > queueCapacity)
+        {
+            queuedStats.decrementAndGet();
+            droppedFrames.incrementAndGet();
+            return;
+        }
+        // the origin is unknown when this sink was added after the start
+        StartedConference conference = conferences.get(conferenceID);
+        enqueue(StatsRelayCodec.encodeStats(
+            conferenceID,
+            conference != null ? conference.originID : "",
+            timestamp,
+            endpointStats));
+    }
+
+    @Override
+    public void conferenceStopped(String conferenceID)
+    {
+        StartedConference conference = conferences.remove(conferenceID);
+        if (conference != null)
+        {
+            enqueue(StatsRelayCodec.encodeStop(
+                conferenceID, conference.originID));
+        }
+    }
+
+    /**
+     * Writes the queued frames, waiting for at most two seconds, then stops
+     * the writer thread and closes the connection. Frames that could not be
+     * written in time are dropped.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        writer.shutdown();
+        try
+        {
+            if (!writer.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+                writer.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            writer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a frame, dropping it if this client was closed or the queue is
+     * full.
+     */
+    private void enqueue(byte[] frame)
+    {
+        if (closed || !queue.offer(frame))
+        {
+            dequeued(frame);
+            droppedFrames.incrementAndGet();
+            if (!closed
+                && StatsRelayCodec.getType(frame) != StatsRelayCodec.STATS)
+            {
+                resync = true;
+            }
+        }
+    }
+
+    /**
+     * Accounts for a frame leaving the queue.
+     */
+    private void dequeued(byte[] frame)
+    {
+        if (StatsRelayCodec.getType(frame) == StatsRelayCodec.STATS)
+        {
+            queuedStats.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the queued frames until this client is closed and the queue is
+     * empty.
+     */
+    private void write()
+    {
+        boolean connectFailed = false;
+
+        try
+        {
+            while (!closed || !queue.isEmpty())
+            {
+                byte[] frame = queue.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+                if (frame == null)
+                {
+                    continue;
+                }
+                dequeued(frame);
+
+                if (resync)
+                {
+                    // connecting again announces the started conferences
+                    resync = false;
+                    disconnect();
+                }
+
+                if (out == null)
+                {
+                    try
+                    {
+                        connect();
+                        connectFailed = false;
+                    }
+                    catch (IOException e)
+                    {
+                        // log once per outage
+                        if (!connectFailed)
+                        {
+                            logger.warn("Failed to connect to stats relay "
+                                + serverAddress + ": " + e.getMessage());
+                            connectFailed = true;
+                        }
+                        disconnect();
+                        droppedFrames.incrementAndGet();
+                        Thread.sleep(RECONNECT_DELAY);
+                        continue;
+                    }
+                }
+
+                try
+                {
+                    out.write(frame);
+                    sentFrames.incrementAndGet();
+                    if (queue.isEmpty())
+                    {
+                        out.flush();
+                    }
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Lost connection to stats relay "
+                        + serverAddress + ": " + e.getMessage());
+                    disconnect();
+                    droppedFrames.incrementAndGet();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            disconnect();
+        }
+    }
+
+    /**
+     * Connects to the server and announces the started conferences.
+     */
+    private void connect()
+        throws IOException
+    {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(serverAddress);
+        out = new BufferedOutputStream(socket.getOutputStream());
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(StatsRelayCodec.MAGIC);
+        data.writeByte(StatsRelayCodec.VERSION);
+
+        for (Map.Entry<String, StartedConference> entry
+            : conferences.entrySet())
+        {
+            StartedConference conference = entry.getValue();
+            out.write(StatsRelayCodec.encodeStart(
+                entry.getKey(), conference.originID, conference.siteID));
+        }
+
+        logger.info("Connected to stats relay " + serverAddress);
+    }
+
+    /**
+     * Closes the connection, if any.
+     */
+    private void disconnect()
+    {
+        out = null;
+        if (socket != null)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug(() -> "Failed to close stats relay connection: "
+                    + e.getMessage());
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * The identifiers of a started conference.
+     */
+    private static class StartedConference
+    {
+        final String siteID;
+
+        /**
+         * The initiator ID of the conference in this process.
+         */
+        final String originID;
+
+        StartedConference(String siteID, String originID)
+        {
+            this.siteID = siteID;
+            this.originID = originID;
+        }
+    }
+}
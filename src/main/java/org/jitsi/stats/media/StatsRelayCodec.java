@@ -0,0 +1,371 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Encodes and decodes the frames exchanged between a {@link StatsRelayClient}
+ * and a {@link StatsRelayServer}.
+ * <p>
+ * A connection starts with the magic <tt>JSTR</tt> and a version byte, followed
+ * by frames made of a 4 byte big endian length and a payload starting with the
+ * frame type:
+ * <pre>
+ * START  conferenceID originID siteID
+ * STATS  conferenceID originID timestamp endpointCount endpoint*
+ * STOP   conferenceID originID
+ *
+ * endpoint = endpointID receiveCount sendCount ssrcStats*
+ * ssrcStats = ssrc mediaType bytes packets packetsLost fractionalPacketLoss
+ *             jitter rtt
+ * </pre>
+ * The origin ID is the initiator ID of the conference in the client process.
+ * Counts are unsigned varints; the timestamp, SSRC, counters and RTT are
+ * zig-zag varints; the fractional loss and jitter are big endian floats, an
+ * unknown jitter is sent as NaN. A string is a varint: 0 for a new string,
+ * followed by its UTF-8 length and bytes, or the number of a string that
+ * appeared earlier in the frame, counted from 1. Media types and endpoint IDs
+ * repeated within a frame are therefore sent once.
+ */
+class StatsRelayCodec
+{
+    /**
+     * The magic starting every connection.
+     */
+    static final int MAGIC = 0x4A535452;
+
+    /**
+     * The version of the protocol.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * The frame types.
+     */
+    static final int START = 1;
+    static final int STATS = 2;
+    static final int STOP = 3;
+
+    /**
+     * The maximum length of a frame accepted by the server.
+     */
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The estimated encoded size of the stats of a stream.
+     */
+    private static final int ESTIMATED_SSRC_SIZE = 24;
+
+    /**
+     * Encodes a START frame.
+     */
+    static byte[] encodeStart(
+        String conferenceID, String originID, String siteID)
+    {
+        FrameOutput out = new FrameOutput(64);
+        out.write(START);
+        out.writeString(conferenceID);
+        out.writeString(originID);
+        out.writeString(siteID);
+        return out.toFrame();
+    }
+
+    /**
+     * Encodes a STATS frame.
+     */
+    static byte[] encodeStats(
+        String conferenceID,
+        String originID,
+        long timestamp,
+        List<EndpointStats> endpointStats)
+    {
+        FrameOutput out = new FrameOutput(
+            64 + endpointStats.size() * 4 * ESTIMATED_SSRC_SIZE);
+
+        out.write(STATS);
+        out.writeString(conferenceID);
+        out.writeString(originID);
+        out.writeSigned(timestamp);
+        out.writeVarint(endpointStats.size());
+
+        for (EndpointStats endpoint : endpointStats)
+        {
+            out.writeString(endpoint.getEndpointId());
+            out.writeVarint(endpoint.getReceiveStats().size());
+            out.writeVarint(endpoint.getSendStats().size());
+
+            for (SsrcStats stats : endpoint.getReceiveStats())
+            {
+                writeSsrcStats(out, stats);
+            }
+            for (SsrcStats stats : endpoint.getSendStats())
+            {
+                writeSsrcStats(out, stats);
+            }
+        }
+
+        return out.toFrame();
+    }
+
+    /**
+     * Encodes a STOP frame.
+     */
+    static byte[] encodeStop(String conferenceID, String originID)
+    {
+        FrameOutput out = new FrameOutput(64);
+        out.write(STOP);
+        out.writeString(conferenceID);
+        out.writeString(originID);
+        return out.toFrame();
+    }
+
+    /**
+     * Returns the type of an encoded frame.
+     */
+    static int getType(byte[] frame)
+    {
+        return frame[4];
+    }
+
+    /**
+     * Reads the stats of the endpoints of a STATS frame, after the type,
+     * conference ID, origin ID and timestamp.
+     */
+    static List<EndpointStats> readEndpointStats(FrameInput in)
+        throws IOException
+    {
+        int endpoints = in.readCount();
+        List<EndpointStats> endpointStats = new ArrayList<>(endpoints);
+
+        for (int i = 0; i < endpoints; i++)
+        {
+            EndpointStats endpoint = new EndpointStats(in.readString());
+            int receive = in.readCount();
+            int send = in.readCount();
+
+            for (int j = 0; j < receive; j++)
+            {
+                endpoint.addReceiveStats(readSsrcStats(in));
+            }
+            for (int j = 0; j < send; j++)
+            {
+                endpoint.addSendStats(readSsrcStats(in));
+            }
+            endpointStats.add(endpoint);
+        }
+
+        return endpointStats;
+    }
+
+    private static void writeSsrcStats(FrameOutput out, SsrcStats stats)
+    {
+        out.writeSigned(stats.ssrc);
+        out.writeString(stats.mediaType == null ? "" : stats.mediaType);
+        out.writeSigned(stats.bytes);
+        out.writeSigned(stats.packets);
+        out.writeSigned(stats.packetsLost);
+        out.writeFloat((float) stats.fractionalPacketLoss);
+        out.writeFloat(stats.jitter_ms == null
+            ? Float.NaN : stats.jitter_ms.floatValue());
+        out.writeSigned(stats.rtt_ms);
+    }
+
+    private static SsrcStats readSsrcStats(FrameInput in)
+        throws IOException
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = in.readSigned();
+        String mediaType = in.readString();
+        stats.mediaType = mediaType.isEmpty() ? null : mediaType;
+        stats.bytes = in.readSigned();
+        stats.packets = in.readSigned();
+        stats.packetsLost = in.readSigned();
+        stats.fractionalPacketLoss = in.readFloat();
+        float jitter = in.readFloat();
+        stats.jitter_ms = Float.isNaN(jitter) ? null : (double) jitter;
+        stats.rtt_ms = (int) in.readSigned();
+        return stats;
+    }
+
+    /**
+     * Builds a frame, leaving room for its length.
+     */
+    private static class FrameOutput
+        extends ByteArrayOutputStream
+    {
+        /**
+         * The numbers of the strings written to the frame.
+         */
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        FrameOutput(int size)
+        {
+            super(size + 4);
+            count = 4;
+        }
+
+        void writeVarint(long value)
+        {
+            while ((value & ~0x7FL) != 0)
+            {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeSigned(long value)
+        {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeFloat(float value)
+        {
+            int bits = Float.floatToIntBits(value);
+            write(bits >>> 24);
+            write(bits >>> 16);
+            write(bits >>> 8);
+            write(bits);
+        }
+
+        void writeString(String s)
+        {
+            Integer number = strings.get(s);
+            if (number != null)
+            {
+                writeVarint(number);
+                return;
+            }
+
+            strings.put(s, strings.size() + 1);
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(0);
+            writeVarint(utf8.length);
+            write(utf8, 0, utf8.length);
+        }
+
+        byte[] toFrame()
+        {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return toByteArray();
+        }
+    }
+
+    /**
+     * Reads the payload of a frame.
+     */
+    static class FrameInput
+    {
+        private final byte[] buf;
+        private int position;
+        private final int end;
+
+        /**
+         * The strings read from the frame, in order.
+         */
+        private final List<String> strings = new ArrayList<>();
+
+        FrameInput(byte[] buf, int length)
+        {
+            this.buf = buf;
+            this.end = length;
+        }
+
+        int readByte()
+            throws IOException
+        {
+            if (position >= end)
+            {
+                throw new EOFException("Truncated stats relay frame");
+            }
+            return buf[position++] & 0xFF;
+        }
+
+        long readVarint()
+            throws IOException
+        {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid varint in stats relay frame");
+        }
+
+        long readSigned()
+            throws IOException
+        {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Reads a count, which must fit in the rest of the frame.
+         */
+        int readCount()
+            throws IOException
+        {
+            long count = readVarint();
+            if (count > end - position)
+            {
+                throw new IOException("Invalid count in stats relay frame");
+            }
+            return (int) count;
+        }
+
+        float readFloat()
+            throws IOException
+        {
+            int bits = readByte() << 24
+                | readByte() << 16
+                | readByte() << 8
+                | readByte();
+            return Float.intBitsToFloat(bits);
+        }
+
+        String readString()
+            throws IOException
+        {
+            long number = readVarint();
+            if (number == 0)
+            {
+                int length = readCount();
+                String s = new String(
+                    buf, position, length, StandardCharsets.UTF_8);
+                position += length;
+                strings.add(s);
+                return s;
+            }
+            if (number > strings.size())
+            {
+                throw new IOException("Invalid string in stats relay frame");
+            }
+            return strings.get((int) number - 1);
+        }
+    }
+}
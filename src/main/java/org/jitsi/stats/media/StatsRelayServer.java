@@ -0,0 +1,545 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Receives the stats of the bridge processes of a host from their
+ * {@link StatsRelayClient}s and reports them upstream through a single
+ * {@link StatsService}.
+ * <p>
+ * Every relayed conference is reported by its own
+ * {@link AbstractStatsPeriodicRunnable}, so the rate limits, sinks and
+ * registry of the service apply as for local conferences. A conference is
+ * relayed per origin, the initiator ID of the conference in the process that
+ * sent it, and reported upstream with that initiator ID, so callstats sees
+ * the same initiators as without the relay. A period reports the latest stats
+ * of every endpoint received since the previous period. A conference reported
+ * by several connections of the same origin is stopped when the last of them
+ * stops it or disconnects. A conference stopped by the registry, e.g. for
+ * being idle, is started again when stats for it arrive.
+ */
+public class StatsRelayServer
+    implements Closeable
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(StatsRelayServer.class.getName());
+
+    /**
+     * The service the relayed stats are reported through.
+     */
+    private final StatsService statsService;
+
+    /**
+     * The initiator ID the relayed conferences of unknown origin are reported
+     * with.
+     */
+    private final String initiatorID;
+
+    /**
+     * The reporting interval of the relayed conferences.
+     */
+    private final long period;
+
+    /**
+     * Runs the relayed conferences.
+     */
+    private final RecurringRunnableExecutor executor
+        = new RecurringRunnableExecutor(StatsRelayServer.class.getSimpleName());
+
+    /**
+     * Runs the accepting and the connections.
+     */
+    private final ExecutorService connectionExecutor
+        = Executors.newCachedThreadPool(
+            new CustomizableThreadFactory("stats-relay-server", true));
+
+    /**
+     * The relayed conferences, by conference ID and origin. Changes are
+     * guarded by itself.
+     */
+    private final Map<ConferenceKey, RelayedConference> conferences
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The open connections.
+     */
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The number of frames received.
+     */
+    private final AtomicLong receivedFrames = new AtomicLong();
+
+    /**
+     * The socket accepting connections.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Creates a server.
+     * @param statsService the service to report the relayed stats through.
+     * @param initiatorID the initiator ID to report the relayed conferences
+     * with when the client does not know their origin, which happens when it
+     * was added as a sink after the conference started.
+     * @param period the reporting interval of the relayed conferences.
+     */
+    public StatsRelayServer(
+        StatsService statsService, String initiatorID, long period)
+    {
+        this.statsService = statsService;
+        this.initiatorID = initiatorID;
+        this.period = period;
+    }
+
+    /**
+     * Starts accepting connections.
+     * @param address the address to listen on, normally a loopback address.
+     * @throws IOException if the address cannot be bound.
+     */
+    public synchronized void start(InetSocketAddress address)
+        throws IOException
+    {
+        if (serverSocket != null)
+        {
+            throw new IllegalStateException("Already started");
+        }
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+
+        ServerSocket serverSocket = this.serverSocket;
+        connectionExecutor.execute(() -> accept(serverSocket));
+
+        logger.info("Stats relay listening on " + address);
+    }
+
+    /**
+     * Returns the local address the server listens on.
+     * @return the address, or <tt>null</tt> if not started.
+     */
+    public synchronized InetSocketAddress getAddress()
+    {
+        return serverSocket == null
+            ? null : (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Returns the number of relayed conferences.
+     * @return the number of conferences.
+     */
+    public int getConferenceCount()
+    {
+        return conferences.size();
+    }
+
+    /**
+     * Returns the number of connected clients.
+     * @return the number of connections.
+     */
+    public int getConnectionCount()
+    {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of frames received from all clients.
+     * @return the number of frames.
+     */
+    public long getReceivedFrames()
+    {
+        return receivedFrames.get();
+    }
+
+    /**
+     * Stops accepting connections, closes the connections and stops all
+     * relayed conferences.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (serverSocket != null)
+            {
+                closeQuietly(serverSocket);
+            }
+        }
+
+        for (Socket connection : connections)
+        {
+            closeQuietly(connection);
+        }
+        connectionExecutor.shutdownNow();
+
+        synchronized (conferences)
+        {
+            for (RelayedConference conference
+                : new ArrayList<>(conferences.values()))
+            {
+                stop(conference);
+            }
+            conferences.clear();
+        }
+        executor.close();
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     */
+    private void accept(ServerSocket serverSocket)
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                Socket connection = serverSocket.accept();
+                connections.add(connection);
+                connectionExecutor.execute(() -> serve(connection));
+            }
+            catch (RejectedExecutionException e)
+            {
+                return;
+            }
+            catch (IOException e)
+            {
+                if (!serverSocket.isClosed())
+                {
+                    logger.error("Failed to accept stats relay connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the frames of a connection until it is closed.
+     */
+    private void serve(Socket connection)
+    {
+        // the conferences started by this connection
+        Map<ConferenceKey, RelayedConference> started = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(connection.getInputStream())))
+        {
+            if (in.readInt() != StatsRelayCodec.MAGIC
+                || in.readUnsignedByte() != StatsRelayCodec.VERSION)
+            {
+                logger.warn("Unsupported stats relay client "
+                    + connection.getRemoteSocketAddress());
+                return;
+            }
+
+            byte[] frame = new byte[256];
+            while (true)
+            {
+                int length = in.readInt();
+                if (length <= 0 || length > StatsRelayCodec.MAX_FRAME_LENGTH)
+                {
+                    logger.warn("Invalid stats relay frame length " + length);
+                    return;
+                }
+                if (length > frame.length)
+                {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                receivedFrames.incrementAndGet();
+
+                handle(new StatsRelayCodec.FrameInput(frame, length), started);
+            }
+        }
+        catch (EOFException e)
+        {
+            // the client disconnected
+        }
+        catch (IOException e)
+        {
+            if (!connection.isClosed())
+            {
+                logger.warn("Stats relay connection "
+                    + connection.getRemoteSocketAddress() + " failed: "
+                    + e.getMessage());
+            }
+        }
+        finally
+        {
+            connections.remove(connection);
+            closeQuietly(connection);
+            for (RelayedConference conference : started.values())
+            {
+                release(conference);
+            }
+        }
+    }
+
+    /**
+     * Handles a frame.
+     */
+    private void handle(
+            StatsRelayCodec.FrameInput frame,
+            Map<ConferenceKey, RelayedConference> started)
+        throws IOException
+    {
+        int type = frame.readByte();
+        if (type != StatsRelayCodec.START
+            && type != StatsRelayCodec.STATS
+            && type != StatsRelayCodec.STOP)
+        {
+            // unknown frames are skipped, for newer clients
+            return;
+        }
+
+        ConferenceKey key
+            = new ConferenceKey(frame.readString(), frame.readString());
+        RelayedConference conference = started.get(key);
+
+        switch (type)
+        {
+        case StatsRelayCodec.START:
+            String siteID = frame.readString();
+            if (conference == null)
+            {
+                started.put(key, acquire(key, siteID));
+            }
+            break;
+        case StatsRelayCodec.STATS:
+            frame.readSigned();
+            List<EndpointStats> endpointStats
+                = StatsRelayCodec.readEndpointStats(frame);
+            if (conference == null || conference.isStopped())
+            {
+                // the client started the conference before it was added as
+                // a sink, or the registry stopped the conference
+                if (conference != null)
+                {
+                    release(conference);
+                }
+                conference = acquire(key, "/");
+                started.put(key, conference);
+            }
+            conference.update(endpointStats);
+            break;
+        case StatsRelayCodec.STOP:
+            if (conference != null)
+            {
+                started.remove(key);
+                release(conference);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Adds a connection reporting a conference, starting the conference when
+     * it is the first one.
+     * @return the conference.
+     */
+    private RelayedConference acquire(ConferenceKey key, String siteID)
+    {
+        synchronized (conferences)
+        {
+            RelayedConference conference = conferences.get(key);
+            if (conference == null)
+            {
+                conference = new RelayedConference(key, siteID);
+                conferences.put(key, conference);
+                conference.start();
+                conference.registerWith(executor);
+            }
+            conference.clients++;
+            return conference;
+        }
+    }
+
+    /**
+     * Removes a connection reporting a conference, stopping the conference
+     * when it was the last one.
+     */
+    private void release(RelayedConference conference)
+    {
+        synchronized (conferences)
+        {
+            if (--conference.clients <= 0)
+            {
+                stop(conference);
+            }
+        }
+    }
+
+    /**
+     * Stops reporting a relayed conference, which also removes it from the
+     * conferences.
+     */
+    private void stop(RelayedConference conference)
+    {
+        try
+        {
+            conference.stop();
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to stop relayed conference "
+                + conference.getConferenceID(), e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug(() -> "Failed to close: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Identifies a relayed conference.
+     */
+    private static class ConferenceKey
+    {
+        final String conferenceID;
+
+        /**
+         * The initiator ID of the conference in the process that sent it, or
+         * empty if unknown.
+         */
+        final String originID;
+
+        ConferenceKey(String conferenceID, String originID)
+        {
+            this.conferenceID = conferenceID;
+            this.originID = originID;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof ConferenceKey))
+            {
+                return false;
+            }
+            ConferenceKey other = (ConferenceKey) o;
+            return conferenceID.equals(other.conferenceID)
+                && originID.equals(other.originID);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * conferenceID.hashCode() + originID.hashCode();
+        }
+    }
+
+    /**
+     * A conference of an origin, reported by one or more clients.
+     */
+    private class RelayedConference
+        extends AbstractStatsPeriodicRunnable<StatsRelayServer>
+    {
+        private final ConferenceKey key;
+
+        /**
+         * The latest stats of every endpoint since the previous period, by
+         * endpoint ID. Guarded by this.
+         */
+        private Map<String, EndpointStats> latest = new HashMap<>();
+
+        /**
+         * The number of clients reporting this conference, guarded by the
+         * conferences of the server.
+         */
+        private int clients = 0;
+
+        RelayedConference(ConferenceKey key, String siteID)
+        {
+            super(
+                StatsRelayServer.this,
+                period,
+                statsService,
+                key.conferenceID,
+                siteID,
+                key.originID.isEmpty() ? initiatorID : key.originID);
+            this.key = key;
+        }
+
+        /**
+         * Returns whether this conference was stopped, by its clients or by
+         * the registry.
+         */
+        boolean isStopped()
+        {
+            LifecycleState state = getLifecycleState();
+            return state == LifecycleState.TERMINATING
+                || state == LifecycleState.TERMINATED;
+        }
+
+        @Override
+        public void stop()
+        {
+            super.stop();
+            // also when stopped by the registry, so that new stats start the
+            // conference again instead of going to a stopped one
+            synchronized (conferences)
+            {
+                conferences.remove(key, this);
+            }
+        }
+
+        /**
+         * Stores the stats received from a client.
+         * @param endpointStats the stats.
+         */
+        synchronized void update(List<EndpointStats> endpointStats)
+        {
+            for (EndpointStats endpoint : endpointStats)
+            {
+                latest.put(endpoint.getEndpointId(), endpoint);
+            }
+        }
+
+        @Override
+        protected List<EndpointStats> getEndpointStats()
+        {
+            Map<String, EndpointStats> latest;
+            synchronized (this)
+            {
+                if (this.latest.isEmpty())
+                {
+                    return Collections.emptyList();
+                }
+                latest = this.latest;
+                this.latest = new HashMap<>();
+            }
+
+            return new ArrayList<>(latest.values());
+        }
+    }
+}
@@ -16,6 +16,10 @@
 package org.jitsi.stats.media;
 
 import io.callstats.sdk.*;
+import org.jitsi.utils.logging2.*;
+
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Statistics service that is created and returned to this lib consumers.
@@ -24,20 +28,31 @@ import io.callstats.sdk.*;
  */
 public class StatsService
 {
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(StatsService.class.getName());
+
     /**
      * The id of the service, corresponds to callstats app_id.
      */
     private final int id;
 
     /**
-     * Callstats instance initialized for this service.
+     * Callstats instance initialized for this service, also across retries
+     * of the initialization, or <tt>null</tt> in relay mode.
      */
     private final CallStats callStats;
 
     /**
      * Whether callstats was initialized.
      */
-    private boolean initialized = false;
+    private volatile boolean initialized = false;
+
+    /**
+     * The health state of this service.
+     */
+    private volatile HealthState healthState = HealthState.INITIALIZING;
 
     /**
      * isClient will be reporting client connection (jigasi)
@@ -45,6 +60,45 @@ public class StatsService
      */
     private boolean isClient = false;
 
+    /**
+     * The local sinks receiving the stats of the conferences of this service.
+     */
+    private final List<StatsSink> sinks = new CopyOnWriteArrayList<>();
+
+    /**
+     * The simple class names of the sinks that are disabled.
+     */
+    private volatile Set<String> disabledSinks = Collections.emptySet();
+
+    /**
+     * The sinks that are not disabled, replaced whenever the sinks or the
+     * disabled sinks change.
+     */
+    private volatile List<StatsSink> activeSinks = Collections.emptyList();
+
+    /**
+     * The clock of this service and its conferences.
+     */
+    private final StatsClock clock
+        = StatsServiceFactory.getInstance().getClock();
+
+    /**
+     * The tracer of the reports of this service and its conferences, the one
+     * of the factory that created it.
+     */
+    private final ReportTracer reportTracer
+        = StatsServiceFactory.getInstance().getReportTracer();
+
+    /**
+     * The limiter of the conference stats reports of this service.
+     */
+    private final ReportRateLimiter rateLimiter = new ReportRateLimiter(clock);
+
+    /**
+     * The load level of the stats pipeline of this service.
+     */
+    private final StatsLoadMonitor loadMonitor = new StatsLoadMonitor();
+
     /**
      * Constructs new <tt>StatsService</tt>.
      * @param id the id.
@@ -87,6 +141,42 @@ public class StatsService
         return callStats;
     }
 
+    /**
+     * Returns the clock of this service and its conferences.
+     * @return the clock.
+     */
+    StatsClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Returns the tracer of the reports of this service and its conferences.
+     * @return the tracer.
+     */
+    ReportTracer getReportTracer()
+    {
+        return reportTracer;
+    }
+
+    /**
+     * Returns the health state of this service.
+     * @return the health state.
+     */
+    public HealthState getHealthState()
+    {
+        return healthState;
+    }
+
+    /**
+     * Changes the health state.
+     * @param healthState the new state.
+     */
+    void setHealthState(HealthState healthState)
+    {
+        this.healthState = healthState;
+    }
+
     /**
      * Returns the isClient flag.
      * @return boolean.
@@ -97,11 +187,48 @@ public class StatsService
     }
 
     /**
-     * Send bridge statistics to callstats.
+     * Returns the limiter of the conference stats reports of this service,
+     * used to configure the limits and read the shaped and dropped counts.
+     * @return the rate limiter.
+     */
+    public ReportRateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    /**
+     * Returns the monitor of the load of the stats pipeline of this service,
+     * which producers can use to reduce the stats they collect.
+     * @return the load monitor.
+     */
+    public StatsLoadMonitor getLoadMonitor()
+    {
+        return loadMonitor;
+    }
+
+    /**
+     * Send bridge statistics to callstats and the local sinks.
      * @param stats the bridge statistics.
      */
     public void sendBridgeStatusUpdate(BridgeStatistics stats)
     {
+        List<StatsSink> sinks = this.activeSinks;
+        if (!sinks.isEmpty())
+        {
+            long now = clock.millis();
+            for (StatsSink sink : sinks)
+            {
+                try
+                {
+                    sink.bridgeStatistics(now, stats);
+                }
+                catch (Exception e)
+                {
+                    logger.error("Stats sink failed for bridge statistics", e);
+                }
+            }
+        }
+
         // Queuing is not implemented by CallStats at the time of this writing.
         if (callStats != null && callStats.isInitialized())
         {
@@ -125,5 +252,190 @@ public class StatsService
     void setInitialized(boolean initialized)
     {
         this.initialized = initialized;
+        if (initialized)
+        {
+            this.healthState = HealthState.READY;
+        }
+    }
+
+    /**
+     * The health states of a service.
+     * <pre>
+     * INITIALIZING -> READY
+     *              -> RETRYING -> INITIALIZING
+     *              -> FAILED
+     * any          -> STOPPED
+     * </pre>
+     */
+    public enum HealthState
+    {
+        /**
+         * Callstats is being initialized.
+         */
+        INITIALIZING,
+
+        /**
+         * Callstats is initialized and stats are reported.
+         */
+        READY,
+
+        /**
+         * An initialization attempt failed or timed out and another one is
+         * scheduled.
+         */
+        RETRYING,
+
+        /**
+         * All initialization attempts failed.
+         */
+        FAILED,
+
+        /**
+         * The service was stopped.
+         */
+        STOPPED
+    }
+
+    /**
+     * Adds a local sink that will receive the stats of all conferences using
+     * this service.
+     * @param sink the sink to add.
+     */
+    public void addSink(StatsSink sink)
+    {
+        sinks.add(sink);
+        updateActiveSinks();
+    }
+
+    /**
+     * Removes a sink previously added with {@link #addSink(StatsSink)}.
+     * @param sink the sink to remove.
+     */
+    public void removeSink(StatsSink sink)
+    {
+        sinks.remove(sink);
+        updateActiveSinks();
+    }
+
+    /**
+     * Returns the sinks added to this service, including the disabled ones.
+     * @return a copy of the sinks.
+     */
+    List<StatsSink> getSinks()
+    {
+        return new ArrayList<>(sinks);
+    }
+
+    /**
+     * Returns the simple class names of the disabled sinks.
+     * @return the names.
+     */
+    public Set<String> getDisabledSinks()
+    {
+        return disabledSinks;
+    }
+
+    /**
+     * Disables the sinks of the given classes. Disabled sinks stay added but
+     * receive nothing until they are enabled again.
+     * @param simpleClassNames the simple class names of the sinks to disable,
+     * replacing the previously disabled ones.
+     */
+    public void setDisabledSinks(Collection<String> simpleClassNames)
+    {
+        disabledSinks = Collections.unmodifiableSet(
+            new HashSet<>(simpleClassNames));
+        updateActiveSinks();
+    }
+
+    /**
+     * Rebuilds the list of the sinks that are not disabled.
+     */
+    private synchronized void updateActiveSinks()
+    {
+        Set<String> disabledSinks = this.disabledSinks;
+        List<StatsSink> activeSinks = new ArrayList<>(sinks.size());
+
+        for (StatsSink sink : sinks)
+        {
+            if (!disabledSinks.contains(sink.getClass().getSimpleName()))
+            {
+                activeSinks.add(sink);
+            }
+        }
+        this.activeSinks = Collections.unmodifiableList(activeSinks);
+    }
+
+    /**
+     * Whether there are local sinks added to this service.
+     * @return whether there are local sinks.
+     */
+    boolean hasSinks()
+    {
+        return !activeSinks.isEmpty();
+    }
+
+    /**
+     * Notifies all sinks that a conference has started.
+     * @param conferenceID the conference ID.
+     * @param siteID the site ID of the initiator.
+     * @param initiatorID the ID of the initiator.
+     */
+    void conferenceStarted(
+        String conferenceID, String siteID, String initiatorID)
+    {
+        for (StatsSink sink : activeSinks)
+        {
+            try
+            {
+                sink.conferenceStarted(conferenceID, siteID, initiatorID);
+            }
+            catch (Exception e)
+            {
+                logger.error("Stats sink failed for " + conferenceID, e);
+            }
+        }
+    }
+
+    /**
+     * Passes the stats of a conference to all sinks.
+     * @param conferenceID the conference ID.
+     * @param timestamp the time the stats were collected.
+     * @param endpointStats the stats of all endpoints.
+     */
+    void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats)
+    {
+        for (StatsSink sink : activeSinks)
+        {
+            try
+            {
+                sink.conferenceStats(conferenceID, timestamp, endpointStats);
+            }
+            catch (Exception e)
+            {
+                logger.error("Stats sink failed for " + conferenceID, e);
+            }
+        }
+    }
+
+    /**
+     * Notifies all sinks that a conference has stopped, including the disabled
+     * ones so that they release what they keep for it.
+     * @param conferenceID the conference ID.
+     */
+    void conferenceStopped(String conferenceID)
+    {
+        for (StatsSink sink : sinks)
+        {
+            try
+            {
+                sink.conferenceStopped(conferenceID);
+            }
+            catch (Exception e)
+            {
+                logger.error("Stats sink failed for " + conferenceID, e);
+            }
+        }
     }
 }
@@ -19,10 +19,16 @@ import io.callstats.sdk.*;
 import io.callstats.sdk.data.*;
 import io.callstats.sdk.internal.*;
 import io.callstats.sdk.listeners.*;
+import org.jitsi.utils.concurrent.*;
 import org.jitsi.utils.logging2.*;
 import org.jitsi.utils.version.*;
 
+import java.io.*;
+import java.net.*;
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
  * The factory responsible for creating <tt>StatsService</tt> maintain their instances.
@@ -42,16 +48,73 @@ public class StatsServiceFactory
      */
     private static StatsServiceFactory factoryInstance;
 
+    /**
+     * The delay before the first retry of a failed initialization, doubled on
+     * every further retry.
+     */
+    private static final long INITIAL_RETRY_DELAY_MS = 1000;
+
+    /**
+     * The maximum delay between initialization retries.
+     */
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+
+    /**
+     * The maximum number of threads terminating conferences and closing
+     * sinks at shutdown.
+     */
+    private static final int SHUTDOWN_THREADS = 16;
+
     /**
      * All StatsService instances created and started to initialize.
      */
-    private Map<Integer, StatsService> callStatsInstances = new HashMap<>();
+    private final Map<Integer, StatsService> callStatsInstances
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The pending asynchronous initializations by service id.
+     */
+    private final Map<Integer, CompletableFuture<StatsService>> pendingInits
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The relay clients of the services created in relay mode, by service id.
+     */
+    private final Map<Integer, StatsRelayClient> relayClients
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The runtime configuration applied to the services, or <tt>null</tt>.
+     */
+    private volatile RuntimeConfiguration runtimeConfiguration = null;
+
+    /**
+     * The clock of the services and conferences created from now on, which
+     * also runs the asynchronous initializations and their deadlines.
+     */
+    private volatile StatsClock clock = StatsClock.SYSTEM;
+
+    /**
+     * Creates the callstats instances of the services.
+     */
+    private volatile Supplier<CallStats> callStatsSupplier = CallStats::new;
+
+    /**
+     * The registry of all started conferences.
+     */
+    private final ConferenceRegistry conferenceRegistry
+        = new ConferenceRegistry(clock);
+
+    /**
+     * The tracer of the reports of all conferences.
+     */
+    private final ReportTracer reportTracer = new ReportTracer();
 
     /**
      * Returns the single instance of this <tt>StatsServiceFactory</tt>.
      * @return the factory instance.
      */
-    public static StatsServiceFactory getInstance()
+    public static synchronized StatsServiceFactory getInstance()
     {
         if (factoryInstance == null)
         {
@@ -61,6 +124,92 @@ public class StatsServiceFactory
         return factoryInstance;
     }
 
+    /**
+     * Returns the registry of all started conferences. Register it with a
+     * <tt>RecurringRunnableExecutor</tt> to have idle conferences stopped.
+     * @return the conference registry.
+     */
+    public ConferenceRegistry getConferenceRegistry()
+    {
+        return conferenceRegistry;
+    }
+
+    /**
+     * Returns the tracer of the reports sent by all conferences, to enable
+     * tracing at runtime.
+     * @return the report tracer.
+     */
+    public ReportTracer getReportTracer()
+    {
+        return reportTracer;
+    }
+
+    /**
+     * Returns the clock of the library.
+     * @return the clock.
+     */
+    public StatsClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Changes the clock of the library, e.g. to a
+     * {@link VirtualTimeScheduler} for simulations. Services and conferences
+     * keep the clock they were created with, so the clock is set before
+     * creating them; the checks of the {@link ConferenceRegistry} move to the
+     * new clock.
+     * @param clock the clock.
+     */
+    public void setClock(StatsClock clock)
+    {
+        this.clock = clock;
+        conferenceRegistry.setClock(clock);
+    }
+
+    /**
+     * Returns the created services.
+     * @return a copy of the created services.
+     */
+    public List<StatsService> getStatsServices()
+    {
+        return new ArrayList<>(callStatsInstances.values());
+    }
+
+    /**
+     * Sets the runtime configuration applied to the services created from
+     * now on.
+     * @param runtimeConfiguration the configuration, or <tt>null</tt>.
+     */
+    void setRuntimeConfiguration(RuntimeConfiguration runtimeConfiguration)
+    {
+        this.runtimeConfiguration = runtimeConfiguration;
+    }
+
+    /**
+     * Changes how the callstats instances of the services created from now on
+     * are created, e.g. to not connect in tests.
+     * @param callStatsSupplier creates a callstats instance.
+     */
+    void setCallStatsSupplier(Supplier<CallStats> callStatsSupplier)
+    {
+        this.callStatsSupplier = callStatsSupplier;
+    }
+
+    /**
+     * Applies the runtime configuration to a new service and adds it to the
+     * created services.
+     */
+    private void addStatsService(StatsService statsService)
+    {
+        RuntimeConfiguration runtimeConfiguration = this.runtimeConfiguration;
+        if (runtimeConfiguration != null)
+        {
+            runtimeConfiguration.apply(statsService);
+        }
+        callStatsInstances.put(statsService.getId(), statsService);
+    }
+
     /**
      * Creates <tt>StatsService</tt> and when ready notify via <tt>callback</tt>.
      *
@@ -102,16 +251,14 @@ public class StatsServiceFactory
             }
         }
 
-        ServerInfo serverInfo = createServerInfo(version, isClient);
-
-        final CallStats callStats = new CallStats();
+        final CallStats callStats = callStatsSupplier.get();
 
         // The method CallStats.initialize() will (likely) return asynchronously
         // so it may be better to make the new CallStats instance available to
         // the rest of the statistics service before the method in question
         // returns even if it may fail.
         StatsService statsService = new StatsService(id, callStats, isClient);
-        callStatsInstances.put(id, statsService);
+        addStatsService(statsService);
 
         CallStatsInitListener callStatsInitListener =
             new CallStatsInitListener()
@@ -122,6 +269,12 @@ public class StatsServiceFactory
                 @Override
                 public void onError(CallStatsErrors error, String errMsg)
                 {
+                    if (!statsService.isInitialized())
+                    {
+                        statsService.setHealthState(
+                            StatsService.HealthState.FAILED);
+                    }
+
                     if (callback != null)
                     {
                         callback.error(error.getReason(), errMsg);
@@ -143,7 +296,7 @@ public class StatsServiceFactory
                     {
                         return;
                     }
-                    statsService.setInitialized(true);
+                    initialized(statsService);
 
                     if (logger.isDebugEnabled())
                     {
@@ -154,6 +307,101 @@ public class StatsServiceFactory
                 }
             };
 
+        initialize(
+            callStats,
+            version,
+            id,
+            appSecret,
+            keyId,
+            keyPath,
+            initiatorID,
+            isClient,
+            callStatsInitListener);
+
+        return statsService;
+    }
+
+    /**
+     * Creates a <tt>StatsService</tt> without blocking the caller. Several
+     * services can be initialized in parallel. An initialization attempt that
+     * fails or does not complete within <tt>initTimeout</tt> is retried with
+     * the same callstats instance after an exponentially growing delay; once
+     * <tt>maxRetries</tt> retries failed, the service is removed and the
+     * returned future completes exceptionally. The progress is visible through
+     * {@link StatsService#getHealthState()}.
+     *
+     * @param version the version to use.
+     * @param id The callstats AppID.
+     * @param appSecret Shared Secret for authentication on Callstats.io
+     * @param keyId ID of the key that was used to generate token.
+     * @param keyPath The path to private key file.
+     * @param initiatorID The initiator id to report to callstats.io.
+     * @param isClient The initiator will be reporting client connection (jigasi)
+     * not server one (jvb).
+     * @param initTimeout the deadline of a single initialization attempt.
+     * @param maxRetries the number of retries after the first attempt.
+     * @return a future completed with the initialized service.
+     */
+    public CompletableFuture<StatsService> createStatsServiceAsync(
+        Version version,
+        int id,
+        String appSecret,
+        String keyId,
+        String keyPath,
+        String initiatorID,
+        boolean isClient,
+        Duration initTimeout,
+        int maxRetries)
+    {
+        if ((keyId == null || keyPath == null) && appSecret == null)
+        {
+            logger.warn("appSecret missing. Skipping callstats init");
+            return CompletableFuture.failedFuture(
+                new IllegalArgumentException("appSecret missing"));
+        }
+
+        CompletableFuture<StatsService> future = new CompletableFuture<>();
+        StatsService statsService;
+
+        synchronized (this)
+        {
+            statsService = callStatsInstances.get(id);
+            if (statsService != null)
+            {
+                CompletableFuture<StatsService> pending = pendingInits.get(id);
+                return pending != null
+                    ? pending : CompletableFuture.completedFuture(statsService);
+            }
+
+            statsService = new StatsService(id, callStatsSupplier.get(), isClient);
+            addStatsService(statsService);
+            pendingInits.put(id, future);
+        }
+
+        InitAttempt attempt = new InitAttempt(
+            statsService, future, version, appSecret, keyId, keyPath,
+            initiatorID, isClient, initTimeout, maxRetries);
+        attempt.clock.schedule(attempt::start, 0, TimeUnit.MILLISECONDS);
+
+        return future;
+    }
+
+    /**
+     * Starts the initialization of a callstats instance.
+     */
+    private void initialize(
+        CallStats callStats,
+        Version version,
+        int id,
+        String appSecret,
+        String keyId,
+        String keyPath,
+        String initiatorID,
+        boolean isClient,
+        CallStatsInitListener callStatsInitListener)
+    {
+        ServerInfo serverInfo = createServerInfo(version, isClient);
+
         if(keyId != null && keyPath != null)
         {
             callStats.initialize(
@@ -173,6 +421,52 @@ public class StatsServiceFactory
                 serverInfo,
                 callStatsInitListener);
         }
+    }
+
+    /**
+     * Marks a service initialized and sends the setup events of its
+     * conferences started while it was not.
+     */
+    private void initialized(StatsService statsService)
+    {
+        statsService.setInitialized(true);
+
+        for (AbstractStatsPeriodicRunnable<?> conference
+            : conferenceRegistry.getConferences())
+        {
+            if (conference.getStatsService() == statsService)
+            {
+                conference.setUpDeferred();
+            }
+        }
+    }
+
+    /**
+     * Creates a <tt>StatsService</tt> in relay mode, which does not connect to
+     * callstats but forwards the stats of its conferences to the
+     * {@link StatsRelayServer} of the host.
+     *
+     * @param id The callstats AppID.
+     * @param relayAddress the address of the relay server.
+     * @param isClient The initiator will be reporting client connection (jigasi)
+     * not server one (jvb).
+     * @return returns the created service.
+     */
+    public synchronized StatsService createRelayStatsService(
+        int id,
+        InetSocketAddress relayAddress,
+        boolean isClient)
+    {
+        if (callStatsInstances.containsKey(id))
+            return callStatsInstances.get(id);
+
+        StatsService statsService = new StatsService(id, null, isClient);
+        StatsRelayClient relayClient = new StatsRelayClient(relayAddress);
+        statsService.addSink(relayClient);
+        statsService.setHealthState(StatsService.HealthState.READY);
+
+        relayClients.put(id, relayClient);
+        addStatsService(statsService);
 
         return statsService;
     }
@@ -183,7 +477,220 @@ public class StatsServiceFactory
      */
     public void stopStatsService(int id)
     {
-        callStatsInstances.remove(id);
+        StatsService statsService = callStatsInstances.remove(id);
+
+        if (statsService != null)
+        {
+            statsService.setHealthState(StatsService.HealthState.STOPPED);
+        }
+
+        StatsRelayClient relayClient = relayClients.remove(id);
+        if (relayClient != null)
+        {
+            if (statsService != null)
+            {
+                statsService.removeSink(relayClient);
+            }
+            relayClient.close();
+        }
+
+        CompletableFuture<StatsService> pending = pendingInits.remove(id);
+        if (pending != null)
+        {
+            pending.cancel(false);
+        }
+    }
+
+    /**
+     * Shuts down all services within <tt>deadline</tt>. The pending
+     * initializations are cancelled; every started conference reports its
+     * current stats one last time and is terminated; then the sinks are
+     * flushed and closed, concurrently, and the services stopped. Conferences
+     * and sinks that do not complete in time are abandoned and listed in the
+     * returned report.
+     * <p>
+     * The conferences of a service are terminated one after the other, the
+     * methods of its callstats instance being synchronized; only the
+     * conferences of different services are terminated concurrently.
+     *
+     * @param deadline the time the shutdown may take.
+     * @return what was terminated and what was lost.
+     */
+    public ShutdownReport shutdown(Duration deadline)
+    {
+        long start = System.nanoTime();
+        long end = start + deadline.toNanos();
+        ShutdownReport report = new ShutdownReport();
+
+        for (CompletableFuture<StatsService> pending : pendingInits.values())
+        {
+            if (pending.cancel(false))
+            {
+                report.cancelledInitializations++;
+            }
+        }
+        pendingInits.clear();
+
+        List<AbstractStatsPeriodicRunnable<?>> conferences
+            = conferenceRegistry.getConferences();
+        Set<StatsSink> sinks
+            = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<StatsService> statsServices = getStatsServices();
+        for (StatsService statsService : statsServices)
+        {
+            sinks.addAll(statsService.getSinks());
+        }
+
+        Map<StatsService, List<AbstractStatsPeriodicRunnable<?>>> byService
+            = new IdentityHashMap<>();
+        for (AbstractStatsPeriodicRunnable<?> conference : conferences)
+        {
+            byService.computeIfAbsent(
+                    conference.getStatsService(), k -> new ArrayList<>())
+                .add(conference);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(
+                SHUTDOWN_THREADS, Math.max(byService.size(), sinks.size()))),
+            new CustomizableThreadFactory("stats-shutdown", true));
+
+        try
+        {
+            // the outcome of every conference, absent if it was not reached
+            // in time
+            Map<AbstractStatsPeriodicRunnable<?>, Boolean> terminated
+                = new ConcurrentHashMap<>();
+            List<Callable<Void>> terminations = new ArrayList<>();
+            for (List<AbstractStatsPeriodicRunnable<?>> serviceConferences
+                : byService.values())
+            {
+                terminations.add(() -> {
+                    for (AbstractStatsPeriodicRunnable<?> conference
+                        : serviceConferences)
+                    {
+                        try
+                        {
+                            conference.terminate();
+                            // one cut short by the deadline timed out
+                            if (System.nanoTime() - end < 0)
+                            {
+                                terminated.put(conference, true);
+                            }
+                        }
+                        catch (Exception e)
+                        {
+                            logger.error("Failed to terminate "
+                                + conference.getConferenceID(), e);
+                            terminated.put(conference, false);
+                        }
+                    }
+                    return null;
+                });
+            }
+
+            executor.invokeAll(
+                terminations, end - System.nanoTime(), TimeUnit.NANOSECONDS);
+            for (AbstractStatsPeriodicRunnable<?> conference : conferences)
+            {
+                Boolean outcome = terminated.get(conference);
+
+                if (outcome == null)
+                {
+                    report.timedOutConferences.add(
+                        conference.getConferenceID());
+                }
+                else if (outcome)
+                {
+                    report.terminatedConferences++;
+                }
+                else
+                {
+                    report.failedConferences.add(conference.getConferenceID());
+                }
+            }
+
+            List<StatsSink> sinkList = new ArrayList<>(sinks);
+            List<Callable<Void>> closings = new ArrayList<>();
+            for (StatsSink sink : sinkList)
+            {
+                closings.add(() -> {
+                    if (sink instanceof Closeable)
+                    {
+                        ((Closeable) sink).close();
+                    }
+                    else if (sink instanceof Flushable)
+                    {
+                        ((Flushable) sink).flush();
+                    }
+                    return null;
+                });
+            }
+
+            List<Future<Void>> results = executor.invokeAll(
+                closings,
+                Math.max(0, end - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+            for (int i = 0; i < results.size(); i++)
+            {
+                if (outcome(results.get(i)) == 0)
+                {
+                    report.closedSinks++;
+                }
+                else
+                {
+                    report.failedSinks.add(
+                        sinkList.get(i).getClass().getSimpleName());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        for (StatsService statsService : statsServices)
+        {
+            stopStatsService(statsService.getId());
+        }
+
+        report.elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        if (report.isComplete())
+        {
+            logger.info("Stats shut down: " + report);
+        }
+        else
+        {
+            logger.warn("Stats shut down incompletely: " + report);
+        }
+        return report;
+    }
+
+    /**
+     * Returns 0 if a task completed, -1 if it was cancelled at the deadline
+     * and 1 if it failed.
+     */
+    private static int outcome(Future<Void> result)
+    {
+        if (result.isCancelled())
+        {
+            return -1;
+        }
+        try
+        {
+            result.get();
+            return 0;
+        }
+        catch (ExecutionException | InterruptedException e)
+        {
+            logger.error("Shutdown task failed", e.getCause());
+            return 1;
+        }
     }
 
     /**
@@ -218,6 +725,287 @@ public class StatsServiceFactory
         return serverInfo;
     }
 
+    /**
+     * The asynchronous initialization of a service, including its retries.
+     */
+    private class InitAttempt
+        implements CallStatsInitListener
+    {
+        private final StatsService statsService;
+        private final CompletableFuture<StatsService> future;
+        private final Version version;
+        private final String appSecret;
+        private final String keyId;
+        private final String keyPath;
+        private final String initiatorID;
+        private final boolean isClient;
+        private final Duration initTimeout;
+        private final int maxRetries;
+
+        /**
+         * The clock running the attempts and their deadlines.
+         */
+        private final StatsClock clock = StatsServiceFactory.this.clock;
+
+        /**
+         * The number of attempts made so far.
+         */
+        private int attempts = 0;
+
+        /**
+         * Whether an attempt is waiting for its outcome, failures reported
+         * while waiting for a retry are late failures of a previous attempt.
+         */
+        private boolean inProgress = false;
+
+        /**
+         * The deadline of the current attempt.
+         */
+        private ScheduledFuture<?> deadline;
+
+        InitAttempt(
+            StatsService statsService,
+            CompletableFuture<StatsService> future,
+            Version version,
+            String appSecret,
+            String keyId,
+            String keyPath,
+            String initiatorID,
+            boolean isClient,
+            Duration initTimeout,
+            int maxRetries)
+        {
+            this.statsService = statsService;
+            this.future = future;
+            this.version = version;
+            this.appSecret = appSecret;
+            this.keyId = keyId;
+            this.keyPath = keyPath;
+            this.initiatorID = initiatorID;
+            this.isClient = isClient;
+            this.initTimeout = initTimeout;
+            this.maxRetries = maxRetries;
+        }
+
+        /**
+         * Starts a new attempt. Every attempt initializes the same callstats
+         * instance, which replaces the state of the previous attempt.
+         */
+        synchronized void start()
+        {
+            if (future.isDone() || statsService.isInitialized())
+            {
+                return;
+            }
+
+            int attempt = ++attempts;
+            inProgress = true;
+            statsService.setHealthState(StatsService.HealthState.INITIALIZING);
+
+            deadline = clock.schedule(
+                () -> failed(attempt, "timeout",
+                    "not initialized within " + initTimeout),
+                initTimeout.toMillis(),
+                TimeUnit.MILLISECONDS);
+
+            try
+            {
+                initialize(
+                    statsService.getCallStats(),
+                    version,
+                    statsService.getId(),
+                    appSecret,
+                    keyId,
+                    keyPath,
+                    initiatorID,
+                    isClient,
+                    this);
+            }
+            catch (Exception e)
+            {
+                failed(attempt, "exception", e.toString());
+            }
+        }
+
+        @Override
+        public synchronized void onError(
+            CallStatsErrors error, String errMsg)
+        {
+            // callstats calls the listener of its latest initialization, so
+            // the error is taken for the one of the current attempt
+            failed(attempts, error.getReason(), errMsg);
+        }
+
+        @Override
+        public void onInitialized(String msg)
+        {
+            synchronized (this)
+            {
+                // callstats re-initializes every few hours, which is not
+                // news once we are done
+                if (future.isDone() || statsService.isInitialized())
+                {
+                    return;
+                }
+                inProgress = false;
+                deadline.cancel(false);
+            }
+
+            initialized(statsService);
+            pendingInits.remove(statsService.getId(), future);
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("callstats.io Java library initialized successfully with message: " + msg);
+            }
+
+            future.complete(statsService);
+        }
+
+        /**
+         * Handles a failed attempt, retrying if allowed.
+         * @param attempt the number of the failed attempt.
+         * @param reason the reason of the failure.
+         * @param message the error message.
+         */
+        private synchronized void failed(
+            int attempt, String reason, String message)
+        {
+            // ignore late failures of previous attempts
+            if (attempt != attempts
+                || !inProgress
+                || future.isDone()
+                || statsService.isInitialized())
+            {
+                return;
+            }
+            inProgress = false;
+            deadline.cancel(false);
+
+            logger.warn("callstats.io initialization of "
+                + statsService.getId() + " failed (attempt " + attempts
+                + "): " + reason + ", " + message);
+
+            if (attempts > maxRetries)
+            {
+                statsService.setHealthState(StatsService.HealthState.FAILED);
+                callStatsInstances.remove(statsService.getId(), statsService);
+                pendingInits.remove(statsService.getId(), future);
+                future.completeExceptionally(
+                    new IllegalStateException(reason + ": " + message));
+                return;
+            }
+
+            statsService.setHealthState(StatsService.HealthState.RETRYING);
+
+            long delay = Math.min(MAX_RETRY_DELAY_MS,
+                INITIAL_RETRY_DELAY_MS << Math.min(attempts - 1, 16));
+            clock.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * What {@link #shutdown(Duration)} terminated and what was lost.
+     */
+    public static class ShutdownReport
+    {
+        private int cancelledInitializations = 0;
+        private int terminatedConferences = 0;
+        private final List<String> timedOutConferences = new ArrayList<>();
+        private final List<String> failedConferences = new ArrayList<>();
+        private int closedSinks = 0;
+        private final List<String> failedSinks = new ArrayList<>();
+        private Duration elapsed = Duration.ZERO;
+
+        /**
+         * Whether everything was terminated in time.
+         * @return whether nothing was lost.
+         */
+        public boolean isComplete()
+        {
+            return timedOutConferences.isEmpty()
+                && failedConferences.isEmpty()
+                && failedSinks.isEmpty();
+        }
+
+        /**
+         * Returns the number of service initializations that were cancelled.
+         * @return the number of initializations.
+         */
+        public int getCancelledInitializations()
+        {
+            return cancelledInitializations;
+        }
+
+        /**
+         * Returns the number of conferences that were terminated.
+         * @return the number of conferences.
+         */
+        public int getTerminatedConferences()
+        {
+            return terminatedConferences;
+        }
+
+        /**
+         * Returns the IDs of the conferences not terminated before the
+         * deadline.
+         * @return the conference IDs.
+         */
+        public List<String> getTimedOutConferences()
+        {
+            return timedOutConferences;
+        }
+
+        /**
+         * Returns the IDs of the conferences that failed to terminate.
+         * @return the conference IDs.
+         */
+        public List<String> getFailedConferences()
+        {
+            return failedConferences;
+        }
+
+        /**
+         * Returns the number of sinks that were flushed or closed.
+         * @return the number of sinks.
+         */
+        public int getClosedSinks()
+        {
+            return closedSinks;
+        }
+
+        /**
+         * Returns the class names of the sinks that failed to flush or close,
+         * or did not before the deadline.
+         * @return the class names of the sinks.
+         */
+        public List<String> getFailedSinks()
+        {
+            return failedSinks;
+        }
+
+        /**
+         * Returns the time the shutdown took.
+         * @return the duration.
+         */
+        public Duration getElapsed()
+        {
+            return elapsed;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "terminated " + terminatedConferences + " conferences"
+                + ", timed out " + timedOutConferences
+                + ", failed " + failedConferences
+                + ", closed " + closedSinks + " sinks"
+                + ", failed sinks " + failedSinks
+                + ", cancelled " + cancelledInitializations
+                + " initializations in " + elapsed.toMillis() + " ms";
+        }
+    }
+
     /**
      * Init callback interface.
      */
@@ -0,0 +1,76 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.util.*;
+
+/**
+ * A local consumer of the statistics handled by a {@link StatsService}. Sinks
+ * receive the same data that is reported to callstats, whether callstats is
+ * reachable or not.
+ * <p>
+ * Sinks are invoked on the thread running the conference's
+ * {@link AbstractStatsPeriodicRunnable} and must not block it.
+ */
+public interface StatsSink
+{
+    /**
+     * Called when a conference is started, before any stats are received
+     * for it.
+     *
+     * @param conferenceID the conference ID as reported to callstats.
+     * @param siteID the site ID of the initiator, or '/' if there is none.
+     * @param initiatorID the ID of the initiator reporting the conference.
+     */
+    default void conferenceStarted(
+        String conferenceID, String siteID, String initiatorID)
+    {
+    }
+
+    /**
+     * Called on every reporting period of a conference.
+     *
+     * @param conferenceID the conference ID as reported to callstats.
+     * @param timestamp the time the stats were collected, in milliseconds since
+     * the epoch.
+     * @param endpointStats the stats of all endpoints. The instances belong to
+     * the producer and must not be kept after this method returns.
+     */
+    void conferenceStats(
+        String conferenceID, long timestamp, List<EndpointStats> endpointStats);
+
+    /**
+     * Called when bridge statistics are sent through the service.
+     *
+     * @param timestamp the time the statistics were sent, in milliseconds
+     * since the epoch.
+     * @param stats the bridge statistics. The instance belongs to the caller
+     * and must not be kept after this method returns.
+     */
+    default void bridgeStatistics(long timestamp, BridgeStatistics stats)
+    {
+    }
+
+    /**
+     * Called when a conference is stopped and no more stats will be
+     * received for it.
+     *
+     * @param conferenceID the conference ID as reported to callstats.
+     */
+    default void conferenceStopped(String conferenceID)
+    {
+    }
+}
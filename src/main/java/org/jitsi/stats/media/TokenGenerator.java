@@ -44,6 +44,17 @@ public class TokenGenerator
      */
     private static final Logger logger = new LoggerImpl(TokenGenerator.class.getName());
 
+    /**
+     * How long a token is valid before and after it was generated.
+     */
+    private static final long TOKEN_VALIDITY_MS = 10 * 60 * 1000;
+
+    /**
+     * The clock the validity of the tokens is based on.
+     */
+    private final StatsClock clock
+        = StatsServiceFactory.getInstance().getClock();
+
     /**
      * The callstats.io appID.
      */
@@ -93,8 +104,11 @@ public class TokenGenerator
             claims.setClaim("appID", this.appId);
             claims.setClaim("keyID", this.keyId);
             claims.setClaim("userID", this.userId);
-            claims.setExpirationTimeMinutesInTheFuture(10);
-            claims.setNotBeforeMinutesInThePast(10);
+            long now = clock.millis();
+            claims.setExpirationTime(
+                NumericDate.fromMilliseconds(now + TOKEN_VALIDITY_MS));
+            claims.setNotBefore(
+                NumericDate.fromMilliseconds(now - TOKEN_VALIDITY_MS));
 
             JsonWebSignature jws = new JsonWebSignature();
 
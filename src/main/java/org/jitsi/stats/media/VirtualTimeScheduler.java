@@ -0,0 +1,390 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link StatsClock} whose time only moves when it is advanced, running the
+ * tasks and recurring runnables that are due on the thread advancing it.
+ * <p>
+ * Tasks run in the order of their due time, and tasks due at the same time in
+ * the order they were scheduled, so a simulation is deterministic. Periodic
+ * runnables are run every {@link PeriodicRunnable#getPeriod()} of virtual
+ * time, which lets a day of reporting of many conferences run in seconds:
+ * <pre>
+ * VirtualTimeScheduler scheduler = new VirtualTimeScheduler(0);
+ * StatsServiceFactory.getInstance().setClock(scheduler);
+ * // create the services and conferences, register the conferences
+ * scheduler.registerRecurringRunnable(conference);
+ * scheduler.advance(Duration.ofDays(1));
+ * </pre>
+ * Work done on other threads, like the requests of the callstats SDK, still
+ * happens in real time.
+ */
+public class VirtualTimeScheduler
+    extends StatsClock
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger = new LoggerImpl(VirtualTimeScheduler.class.getName());
+
+    /**
+     * The time of the start of the simulation, in milliseconds since the
+     * epoch.
+     */
+    private final long startMillis;
+
+    /**
+     * The virtual time elapsed since the start, in nanoseconds. Guarded by
+     * this, written only while advancing.
+     */
+    private volatile long elapsedNanos = 0;
+
+    /**
+     * The pending tasks, by due time and sequence. Guarded by this.
+     */
+    private final PriorityQueue<VirtualTask> tasks = new PriorityQueue<>();
+
+    /**
+     * The tasks running the registered runnables. Guarded by this.
+     */
+    private final Map<RecurringRunnable, VirtualTask> recurring
+        = new IdentityHashMap<>();
+
+    /**
+     * The sequence number of the next scheduled task. Guarded by this.
+     */
+    private long sequence = 0;
+
+    /**
+     * The number of tasks run.
+     */
+    private long executedTasks = 0;
+
+    /**
+     * Creates a scheduler.
+     * @param startMillis the time of the start of the simulation, in
+     * milliseconds since the epoch.
+     */
+    public VirtualTimeScheduler(long startMillis)
+    {
+        this.startMillis = startMillis;
+    }
+
+    @Override
+    public long millis()
+    {
+        return startMillis + elapsedNanos / 1_000_000;
+    }
+
+    @Override
+    public long nanoTime()
+    {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the number of tasks and runnables run so far.
+     * @return the number of tasks.
+     */
+    public synchronized long getExecutedTasks()
+    {
+        return executedTasks;
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(
+        Runnable task, long delay, TimeUnit unit)
+    {
+        VirtualTask virtualTask = new VirtualTask(
+            task, elapsedNanos + Math.max(0, unit.toNanos(delay)), sequence++);
+        tasks.add(virtualTask);
+        return virtualTask;
+    }
+
+    /**
+     * Runs a runnable repeatedly, every period for a {@link PeriodicRunnable},
+     * or when {@link RecurringRunnable#getTimeUntilNextRun()} says otherwise.
+     * @param runnable the runnable.
+     * @return whether it was not registered yet.
+     */
+    public synchronized boolean registerRecurringRunnable(
+        RecurringRunnable runnable)
+    {
+        if (recurring.containsKey(runnable))
+        {
+            return false;
+        }
+
+        VirtualTask task = new VirtualTask(
+            runnable, elapsedNanos + nextDelay(runnable), sequence++);
+        recurring.put(runnable, task);
+        tasks.add(task);
+        return true;
+    }
+
+    /**
+     * Stops running a runnable.
+     * @param runnable the runnable.
+     * @return whether it was registered.
+     */
+    public synchronized boolean deRegisterRecurringRunnable(
+        RecurringRunnable runnable)
+    {
+        VirtualTask task = recurring.remove(runnable);
+        if (task == null)
+        {
+            return false;
+        }
+        task.cancel(false);
+        return true;
+    }
+
+    /**
+     * Advances the time by <tt>duration</tt>, running the tasks that become
+     * due on the calling thread.
+     * @param duration the virtual time to advance by.
+     */
+    public void advance(Duration duration)
+    {
+        long target;
+        synchronized (this)
+        {
+            target = elapsedNanos + duration.toNanos();
+        }
+
+        while (true)
+        {
+            VirtualTask task;
+            synchronized (this)
+            {
+                task = tasks.peek();
+                if (task == null || task.dueNanos > target)
+                {
+                    elapsedNanos = target;
+                    return;
+                }
+                tasks.poll();
+                if (task.isCancelled())
+                {
+                    continue;
+                }
+                elapsedNanos = Math.max(elapsedNanos, task.dueNanos);
+                executedTasks++;
+            }
+
+            // run without the lock, tasks may schedule or use other threads
+            Exception failure = null;
+            try
+            {
+                task.task.run();
+            }
+            catch (Exception e)
+            {
+                logger.error("Virtual task failed", e);
+                failure = e;
+            }
+
+            synchronized (this)
+            {
+                if (task.task instanceof RecurringRunnable
+                    && recurring.get(task.task) == task)
+                {
+                    RecurringRunnable runnable = (RecurringRunnable) task.task;
+                    VirtualTask next = new VirtualTask(
+                        runnable,
+                        elapsedNanos + nextDelay(runnable),
+                        sequence++);
+                    recurring.put(runnable, next);
+                    tasks.add(next);
+                }
+                else
+                {
+                    task.done = true;
+                    task.failure = failure;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the delay before the next run of a runnable, at least one
+     * millisecond so that time always moves.
+     */
+    private static long nextDelay(RecurringRunnable runnable)
+    {
+        long delayMs = runnable instanceof PeriodicRunnable
+            ? ((PeriodicRunnable) runnable).getPeriod()
+            : runnable.getTimeUntilNextRun();
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(1, delayMs));
+    }
+
+    /**
+     * A task due at a virtual time.
+     */
+    private class VirtualTask
+        implements ScheduledFuture<Object>
+    {
+        final Runnable task;
+        final long dueNanos;
+        final long sequence;
+
+        /**
+         * Whether the task ran or was cancelled. Guarded by the scheduler.
+         */
+        private boolean done = false;
+        private boolean cancelled = false;
+
+        /**
+         * The exception the task threw, if any. Guarded by the scheduler.
+         */
+        private Exception failure = null;
+
+        VirtualTask(Runnable task, long dueNanos, long sequence)
+        {
+            this.task = task;
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(dueNanos - elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o)
+        {
+            if (o instanceof VirtualTask)
+            {
+                VirtualTask other = (VirtualTask) o;
+                int byTime = Long.compare(dueNanos, other.dueNanos);
+                return byTime != 0
+                    ? byTime : Long.compare(sequence, other.sequence);
+            }
+            return Long.compare(
+                getDelay(TimeUnit.NANOSECONDS),
+                o.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            synchronized (VirtualTimeScheduler.this)
+            {
+                if (done)
+                {
+                    return false;
+                }
+                done = true;
+                cancelled = true;
+                VirtualTimeScheduler.this.notifyAll();
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            synchronized (VirtualTimeScheduler.this)
+            {
+                return cancelled;
+            }
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            synchronized (VirtualTimeScheduler.this)
+            {
+                return done;
+            }
+        }
+
+        /**
+         * Waits until the task ran or was cancelled. The task only runs when
+         * another thread advances the time.
+         * @return <tt>null</tt>, tasks have no result.
+         */
+        @Override
+        public Object get()
+            throws InterruptedException, ExecutionException
+        {
+            synchronized (VirtualTimeScheduler.this)
+            {
+                while (!done)
+                {
+                    VirtualTimeScheduler.this.wait();
+                }
+                return result();
+            }
+        }
+
+        /**
+         * Waits, for at most <tt>timeout</tt> of real time, until the task ran
+         * or was cancelled. The task only runs when another thread advances
+         * the time.
+         * @return <tt>null</tt>, tasks have no result.
+         */
+        @Override
+        public Object get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (VirtualTimeScheduler.this)
+            {
+                while (!done)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                    {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(
+                        VirtualTimeScheduler.this, remaining);
+                }
+                return result();
+            }
+        }
+
+        /**
+         * Returns the outcome of a done task. Called with the scheduler lock
+         * held.
+         */
+        private Object result()
+            throws ExecutionException
+        {
+            if (cancelled)
+            {
+                throw new CancellationException();
+            }
+            if (failure != null)
+            {
+                throw new ExecutionException(failure);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives conferences through a {@link VirtualTimeScheduler} against a
+ * {@link FakeCallStats}.
+ */
+public class AbstractStatsPeriodicRunnableTest
+{
+    private static final long PERIOD = 1000;
+
+    private VirtualTimeScheduler scheduler;
+
+    private FakeCallStats callStats;
+
+    private StatsService statsService;
+
+    private final List<AbstractStatsPeriodicRunnable<?>> conferences
+        = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp()
+    {
+        scheduler = new VirtualTimeScheduler(1_000_000L);
+        StatsServiceFactory.getInstance().setClock(scheduler);
+
+        callStats = new FakeCallStats();
+        statsService = new StatsService(1, callStats, false);
+        statsService.setInitialized(true);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        for (AbstractStatsPeriodicRunnable<?> conference : conferences)
+        {
+            conference.stop();
+        }
+        StatsServiceFactory.getInstance().setClock(StatsClock.SYSTEM);
+    }
+
+    private TestConference startConference(String conferenceID)
+    {
+        TestConference conference
+            = new TestConference(statsService, conferenceID, PERIOD);
+        conferences.add(conference);
+        conference.registerWith(scheduler);
+        conference.start();
+        return conference;
+    }
+
+    private static void register(
+        AbstractStatsPeriodicRunnable<?> conference,
+        String endpointId,
+        int streams,
+        long firstSsrc)
+    {
+        for (int i = 0; i < streams; i++)
+        {
+            conference.registerSsrc(endpointId, firstSsrc + i, "audio", false)
+                .addPacket(100);
+        }
+    }
+
+    @Test
+    public void reportsAllStreamsWhenUnlimited()
+    {
+        TestConference conference = startConference("unlimited");
+        register(conference, "a", 2, 1);
+        register(conference, "b", 1, 10);
+
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.ACTIVE,
+            conference.getLifecycleState());
+
+        scheduler.advance(Duration.ofMillis(PERIOD));
+
+        assertEquals(List.of("a:1", "a:2", "b:10"), callStats.reports);
+    }
+
+    @Test
+    public void limitedReportsReachEveryStream()
+    {
+        statsService.getRateLimiter().setLimits(5, 0);
+
+        TestConference conference = startConference("limited");
+        register(conference, "large", 20, 100);
+        register(conference, "small", 2, 200);
+
+        scheduler.advance(Duration.ofMillis(20 * PERIOD));
+
+        Set<String> reported = new HashSet<>(callStats.reports);
+        for (int i = 0; i < 20; i++)
+        {
+            assertTrue(reported.contains("large:" + (100 + i)),
+                "stream " + (100 + i) + " of the large endpoint not reported");
+        }
+
+        long smallReports = callStats.reports.stream()
+            .filter(report -> report.startsWith("small:"))
+            .count();
+        assertTrue(smallReports >= 2 * 5,
+            "the small endpoint was starved: " + smallReports);
+
+        // the limits are respected, up to the initial burst
+        assertTrue(callStats.reports.size() <= 5 * 21);
+    }
+
+    @Test
+    public void limitedReportsReachEveryEndpoint()
+    {
+        statsService.getRateLimiter().setLimits(2, 0);
+
+        TestConference conference = startConference("small-endpoints");
+        register(conference, "a", 1, 1);
+        register(conference, "b", 1, 2);
+        register(conference, "c", 1, 3);
+
+        scheduler.advance(Duration.ofMillis(21 * PERIOD));
+
+        for (String endpoint : List.of("a", "b", "c"))
+        {
+            long reports = callStats.reports.stream()
+                .filter(report -> report.startsWith(endpoint + ":"))
+                .count();
+            // 2 of the 3 endpoints per period, taking turns
+            assertTrue(reports >= 13,
+                "endpoint " + endpoint + " reported " + reports + " times");
+        }
+    }
+
+    @Test
+    public void unregisteredStreamsAreNoLongerReported()
+    {
+        TestConference conference = startConference("handles");
+        SsrcStatsHandle audio
+            = conference.registerSsrc("a", 1, "audio", false);
+        SsrcStatsHandle video
+            = conference.registerSsrc("a", 2, "video", true);
+        audio.setCounters(1000, 10);
+
+        scheduler.advance(Duration.ofMillis(PERIOD));
+        assertEquals(List.of("a:1", "a:2"), callStats.reports);
+
+        conference.unregisterSsrc(video);
+        // unregistering twice is ignored
+        conference.unregisterSsrc(video);
+        callStats.reports.clear();
+
+        scheduler.advance(Duration.ofMillis(PERIOD));
+        assertEquals(List.of("a:1"), callStats.reports);
+
+        conference.unregisterSsrc(audio);
+        callStats.reports.clear();
+
+        scheduler.advance(Duration.ofMillis(PERIOD));
+        assertTrue(callStats.reports.isEmpty());
+    }
+
+    @Test
+    public void stopsOnce()
+    {
+        TestConference conference = startConference("once");
+
+        conference.stop();
+        conference.stop();
+        conference.start();
+
+        assertEquals(List.of("once"), callStats.setUp);
+        assertEquals(List.of("once"), callStats.terminated);
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+            conference.getLifecycleState());
+
+        register(conference, "a", 1, 1);
+        scheduler.advance(Duration.ofMillis(3 * PERIOD));
+        assertTrue(callStats.reports.isEmpty());
+    }
+
+    @Test
+    public void terminatesConferenceStoppedDuringSetup()
+    {
+        callStats.answerSetup = false;
+        TestConference conference = startConference("setup");
+
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.PENDING,
+            conference.getLifecycleState());
+
+        conference.stop();
+        assertTrue(callStats.terminated.isEmpty());
+
+        // the late response must not reopen the conference
+        callStats.pendingSetups.get(0).onResponse("late");
+
+        assertEquals(List.of("setup"), callStats.terminated);
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+            conference.getLifecycleState());
+    }
+
+    @Test
+    public void terminateWaitsForRunningReport()
+        throws Exception
+    {
+        TestConference conference = startConference("race");
+        register(conference, "a", 1, 1);
+        conference.block();
+
+        Thread periodic = new Thread(
+            () -> scheduler.advance(Duration.ofMillis(PERIOD)));
+        periodic.start();
+        assertTrue(conference.entered.await(5, TimeUnit.SECONDS));
+
+        Thread terminating = new Thread(conference::terminate);
+        terminating.start();
+
+        // terminate must not collect the stats while the report runs
+        terminating.join(200);
+        assertTrue(terminating.isAlive());
+        assertEquals(1, conference.maxConcurrent.get());
+
+        conference.release.countDown();
+        periodic.join(5000);
+        terminating.join(5000);
+        assertFalse(periodic.isAlive());
+        assertFalse(terminating.isAlive());
+
+        assertEquals(1, conference.maxConcurrent.get());
+        // the periodic report gave way to the last one of terminate
+        assertEquals(List.of("a:1"), callStats.reports);
+        assertEquals(List.of("race"), callStats.terminated);
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+            conference.getLifecycleState());
+
+        // no report after the conference terminated
+        scheduler.advance(Duration.ofMillis(3 * PERIOD));
+        assertEquals(1, callStats.reports.size());
+    }
+
+    @Test
+    public void stopWaitsForRunningReport()
+        throws Exception
+    {
+        TestConference conference = startConference("slow");
+        register(conference, "a", 1, 1);
+        conference.block();
+
+        Thread periodic = new Thread(
+            () -> scheduler.advance(Duration.ofMillis(PERIOD)));
+        periodic.start();
+        assertTrue(conference.entered.await(5, TimeUnit.SECONDS));
+
+        Thread stopping = new Thread(conference::stop);
+        stopping.start();
+        stopping.join(200);
+        assertTrue(stopping.isAlive());
+        assertTrue(callStats.terminated.isEmpty());
+
+        conference.release.countDown();
+        stopping.join(5000);
+        periodic.join(5000);
+        assertFalse(stopping.isAlive());
+        assertFalse(periodic.isAlive());
+
+        // the running report saw the state and sent nothing
+        assertTrue(callStats.reports.isEmpty());
+        assertEquals(List.of("slow"), callStats.terminated);
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+            conference.getLifecycleState());
+    }
+
+    @Test
+    public void interruptedStopKeepsWaiting()
+        throws Exception
+    {
+        TestConference conference = startConference("interrupted");
+        register(conference, "a", 1, 1);
+        conference.block();
+
+        Thread periodic = new Thread(
+            () -> scheduler.advance(Duration.ofMillis(PERIOD)));
+        periodic.start();
+        assertTrue(conference.entered.await(5, TimeUnit.SECONDS));
+
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread stopping = new Thread(() -> {
+            conference.stop();
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        stopping.start();
+        stopping.join(100);
+        stopping.interrupt();
+        stopping.join(200);
+        assertTrue(stopping.isAlive());
+
+        conference.release.countDown();
+        stopping.join(5000);
+        periodic.join(5000);
+
+        assertFalse(stopping.isAlive());
+        assertTrue(interrupted.get());
+        assertTrue(callStats.reports.isEmpty());
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+            conference.getLifecycleState());
+    }
+}
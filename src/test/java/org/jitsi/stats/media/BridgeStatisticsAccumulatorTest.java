@@ -0,0 +1,135 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BridgeStatisticsAccumulatorTest
+{
+    private VirtualTimeScheduler scheduler;
+
+    private BridgeStatisticsAccumulator accumulator;
+
+    @BeforeEach
+    public void setUp()
+    {
+        scheduler = new VirtualTimeScheduler(0);
+        StatsServiceFactory.getInstance().setClock(scheduler);
+
+        StatsService statsService
+            = new StatsService(1, new FakeCallStats(), false);
+        accumulator = new BridgeStatisticsAccumulator(statsService, 10_000);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        StatsServiceFactory.getInstance().setClock(StatsClock.SYSTEM);
+    }
+
+    private static SsrcStats stream(
+        String mediaType, long bytes, long packets, long lost)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.mediaType = mediaType;
+        stats.bytes = bytes;
+        stats.packets = packets;
+        stats.packetsLost = lost;
+        return stats;
+    }
+
+    private static EndpointStats endpoint(
+        String endpointId, SsrcStats receive, SsrcStats send)
+    {
+        EndpointStats stats = new EndpointStats(endpointId);
+        stats.addReceiveStats(receive);
+        stats.addSendStats(send);
+        return stats;
+    }
+
+    @Test
+    public void accumulatesGrowthOfTheInterval()
+    {
+        SsrcStats audio = stream("audio", 10_000, 90, 10);
+        audio.rtt_ms = 40;
+        audio.jitter_ms = 2.0;
+        accumulator.conferenceStats("c1", 0, List.of(
+            endpoint("a", audio, stream("video", 50_000, 0, 0))));
+        accumulator.conferenceStats("c2", 0, List.of(
+            endpoint("b", stream("audio", 0, 0, 0), stream("audio", 0, 0, 0)),
+            endpoint("c", stream("video", 0, 0, 0), stream("audio", 0, 0, 0))));
+        accumulator.snapshot();
+
+        scheduler.advance(Duration.ofSeconds(10));
+        SsrcStats later = stream("audio", 20_000, 180, 20);
+        later.rtt_ms = 60;
+        accumulator.conferenceStats("c1", 10_000, List.of(
+            endpoint("a", later, stream("video", 150_000, 0, 0))));
+
+        BridgeStatistics stats = accumulator.snapshot();
+        assertEquals(10, stats.getMeasurementInterval());
+        assertEquals(100_000, stats.getIntervalSentBytes());
+        assertEquals(10_000, stats.getIntervalReceivedBytes());
+        // kbps
+        assertEquals(80, stats.getIntervalUploadBitRate());
+        assertEquals(8, stats.getIntervalDownloadBitRate());
+        assertEquals(0.1f, stats.getIntervalRtpFractionLoss(), 1e-6);
+        assertEquals(0.1f, stats.getTotalLoss(), 1e-6);
+        assertEquals(60, stats.getAvgIntervalRtt(), 1e-6);
+        assertEquals(0, stats.getAvgIntervalJitter(), 1e-6);
+        assertEquals(2, stats.getConferenceCount());
+        assertEquals(3, stats.getParticipantsCount());
+        assertEquals(4, stats.getAudioFabricCount());
+        assertEquals(2, stats.getVideoFabricCount());
+    }
+
+    @Test
+    public void stoppedConferencesLeaveTheGauges()
+    {
+        accumulator.conferenceStats("c1", 0, List.of(
+            endpoint("a", stream("audio", 0, 90, 10), stream("audio", 0, 0, 0))));
+        accumulator.conferenceStats("c2", 0, List.of(
+            endpoint("b", stream("video", 0, 0, 0), stream("video", 0, 0, 0))));
+
+        accumulator.conferenceStopped("c1");
+        BridgeStatistics stats = accumulator.snapshot();
+
+        assertEquals(1, stats.getConferenceCount());
+        assertEquals(1, stats.getParticipantsCount());
+        assertEquals(0, stats.getAudioFabricCount());
+        assertEquals(2, stats.getVideoFabricCount());
+        assertEquals(0, stats.getTotalLoss(), 1e-6);
+    }
+
+    @Test
+    public void leavingStreamsDoNotCountAsNegativeTraffic()
+    {
+        accumulator.conferenceStats("c", 0, List.of(
+            endpoint("a", stream("audio", 5000, 0, 0), stream("audio", 0, 0, 0)),
+            endpoint("b", stream("audio", 5000, 0, 0), stream("audio", 0, 0, 0))));
+        accumulator.snapshot();
+
+        accumulator.conferenceStats("c", 0, List.of(
+            endpoint("a", stream("audio", 6000, 0, 0), stream("audio", 0, 0, 0))));
+
+        assertEquals(0, accumulator.snapshot().getIntervalReceivedBytes());
+    }
+}
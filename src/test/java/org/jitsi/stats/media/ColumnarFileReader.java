@@ -0,0 +1,218 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Decodes the files written by {@link ColumnarFileSink}.
+ */
+class ColumnarFileReader
+{
+    /**
+     * A decoded sample.
+     */
+    static class Row
+    {
+        long timestamp;
+        String conferenceID;
+        String endpointId;
+        String mediaType;
+        boolean send;
+        long ssrc;
+        long bytes;
+        long packets;
+        long packetsLost;
+        double fractionalLoss;
+        Double jitter;
+        int rtt;
+    }
+
+    /**
+     * Reads all the samples of a file.
+     * @param file the file.
+     * @return the samples in the order they were written.
+     * @throws IOException if the file cannot be read or is malformed.
+     */
+    static List<Row> read(Path file)
+        throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        byte[] magic = new byte[5];
+        in.get(magic);
+        if (!Arrays.equals(magic, new byte[] { 'J', 'S', 'T', 'C', 2 }))
+        {
+            throw new IOException("Not a stats file: " + file);
+        }
+
+        List<String> dictionary = new ArrayList<>();
+        Map<List<Object>, long[]> previousCounters = new HashMap<>();
+        long lastTimestamp = 0;
+        List<Row> rows = new ArrayList<>();
+
+        while (in.hasRemaining())
+        {
+            byte[] compressed = new byte[in.getInt()];
+            in.get(compressed);
+            ByteBuffer buf = inflate(compressed);
+
+            int count = (int) getVarint(buf);
+            int newEntries = (int) getVarint(buf);
+            for (int i = 0; i < newEntries; i++)
+            {
+                byte[] utf8 = new byte[(int) getVarint(buf)];
+                buf.get(utf8);
+                dictionary.add(new String(utf8, StandardCharsets.UTF_8));
+            }
+
+            Row[] block = new Row[count];
+            int[] conferences = new int[count];
+            int[] endpoints = new int[count];
+            for (int i = 0; i < count; i++)
+            {
+                block[i] = new Row();
+                lastTimestamp += unZigZag(getVarint(buf));
+                block[i].timestamp = lastTimestamp;
+            }
+            for (int i = 0; i < count; i++)
+            {
+                conferences[i] = (int) getVarint(buf);
+                block[i].conferenceID = dictionary.get(conferences[i]);
+            }
+            for (int i = 0; i < count; i++)
+            {
+                endpoints[i] = (int) getVarint(buf);
+                block[i].endpointId = dictionary.get(endpoints[i]);
+            }
+            for (int i = 0; i < count; i++)
+            {
+                block[i].mediaType = dictionary.get((int) getVarint(buf));
+            }
+            for (int i = 0; i < count; i++)
+            {
+                block[i].send = buf.get() == 1;
+            }
+            for (int i = 0; i < count; i++)
+            {
+                block[i].ssrc = getVarint(buf);
+            }
+
+            long[][] counters = new long[3][count];
+            for (long[] column : counters)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    column[i] = unZigZag(getVarint(buf));
+                }
+            }
+            for (int i = 0; i < count; i++)
+            {
+                Row row = block[i];
+                long[] previous = previousCounters.computeIfAbsent(
+                    List.of(conferences[i], endpoints[i], row.ssrc, row.send),
+                    k -> new long[3]);
+                row.bytes = previous[0] += counters[0][i];
+                row.packets = previous[1] += counters[1][i];
+                row.packetsLost = previous[2] += counters[2][i];
+            }
+
+            for (int i = 0; i < count; i++)
+            {
+                block[i].fractionalLoss = getVarint(buf) / 10000d;
+            }
+            for (int i = 0; i < count; i++)
+            {
+                long jitter = unZigZag(getVarint(buf));
+                block[i].jitter = jitter == -1 ? null : jitter / 100d;
+            }
+            for (int i = 0; i < count; i++)
+            {
+                block[i].rtt = (int) unZigZag(getVarint(buf));
+            }
+
+            int stopped = (int) getVarint(buf);
+            for (int i = 0; i < stopped; i++)
+            {
+                int conference = (int) getVarint(buf);
+                previousCounters.keySet()
+                    .removeIf(k -> k.get(0).equals(conference));
+            }
+
+            if (buf.hasRemaining())
+            {
+                throw new IOException("Trailing bytes in a block of " + file);
+            }
+            rows.addAll(Arrays.asList(block));
+        }
+
+        return rows;
+    }
+
+    private static ByteBuffer inflate(byte[] compressed)
+        throws IOException
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished())
+            {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && inflater.needsInput())
+                {
+                    throw new EOFException("Truncated block");
+                }
+                out.write(chunk, 0, n);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static long getVarint(ByteBuffer buf)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long unZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnarFileSinkTest
+{
+    private static final long START = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    public void setUp()
+    {
+        // a clock that does not move, every file opens in the same ms
+        StatsServiceFactory.getInstance()
+            .setClock(new VirtualTimeScheduler(START));
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        StatsServiceFactory.getInstance().setClock(StatsClock.SYSTEM);
+    }
+
+    private static SsrcStats stream(
+        long ssrc, String mediaType, long bytes, long packets, long lost)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = ssrc;
+        stats.mediaType = mediaType;
+        stats.bytes = bytes;
+        stats.packets = packets;
+        stats.packetsLost = lost;
+        return stats;
+    }
+
+    private List<ColumnarFileReader.Row> readAll()
+        throws IOException
+    {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory))
+        {
+            // by the sequence number ending the name
+            files = list
+                .sorted(Comparator.comparingLong(f ->
+                {
+                    String name = f.getFileName().toString();
+                    return Long.parseLong(name.substring(
+                        name.lastIndexOf('-') + 1, name.indexOf('.')));
+                }))
+                .collect(Collectors.toList());
+        }
+
+        List<ColumnarFileReader.Row> rows = new ArrayList<>();
+        for (Path file : files)
+        {
+            rows.addAll(ColumnarFileReader.read(file));
+        }
+        return rows;
+    }
+
+    @Test
+    public void decodesWhatWasWritten()
+        throws IOException
+    {
+        ColumnarFileSink sink = new ColumnarFileSink(
+            directory, "stats", Long.MAX_VALUE, Long.MAX_VALUE, 4);
+
+        List<SsrcStats> written = new ArrayList<>();
+        for (int period = 0; period < 5; period++)
+        {
+            EndpointStats a = new EndpointStats("a");
+            SsrcStats audio = stream(0xFFFFFFFFL, "audio",
+                1000 * period, 10 * period, period);
+            audio.fractionalPacketLoss = 0.0125;
+            audio.jitter_ms = 3.25;
+            audio.rtt_ms = 40 + period;
+            a.addReceiveStats(audio);
+            // a counter going backwards
+            SsrcStats video = stream(2, "video", 5000 - period, 50, 0);
+            a.addSendStats(video);
+
+            EndpointStats b = new EndpointStats("b");
+            SsrcStats other = stream(3, "video", 42, 1, 0);
+            b.addReceiveStats(other);
+
+            sink.conferenceStats(
+                period % 2 == 0 ? "c1" : "c2",
+                START + period * 10_000,
+                List.of(a, b));
+            written.addAll(List.of(audio, video, other));
+        }
+        sink.close();
+
+        List<ColumnarFileReader.Row> rows = readAll();
+        assertEquals(written.size(), rows.size());
+        for (int i = 0; i < rows.size(); i++)
+        {
+            ColumnarFileReader.Row row = rows.get(i);
+            SsrcStats stats = written.get(i);
+            int period = i / 3;
+
+            assertEquals(START + period * 10_000, row.timestamp);
+            assertEquals(period % 2 == 0 ? "c1" : "c2", row.conferenceID);
+            assertEquals(i % 3 == 2 ? "b" : "a", row.endpointId);
+            assertEquals(i % 3 == 1, row.send);
+            assertEquals(stats.ssrc, row.ssrc);
+            assertEquals(stats.mediaType, row.mediaType);
+            assertEquals(stats.bytes, row.bytes);
+            assertEquals(stats.packets, row.packets);
+            assertEquals(stats.packetsLost, row.packetsLost);
+            assertEquals(stats.fractionalPacketLoss, row.fractionalLoss);
+            assertEquals(stats.jitter_ms, row.jitter);
+            assertEquals(stats.rtt_ms, row.rtt);
+        }
+    }
+
+    @Test
+    public void restartedConferenceStartsFromZero()
+        throws IOException
+    {
+        ColumnarFileSink sink = new ColumnarFileSink(
+            directory, "stats", Long.MAX_VALUE, Long.MAX_VALUE, 16);
+
+        EndpointStats before = new EndpointStats("a");
+        before.addReceiveStats(stream(1, "audio", 3000, 30, 0));
+        sink.conferenceStats("c", START, List.of(before));
+        sink.flush();
+        sink.conferenceStopped("c");
+        // the stop is written on its own
+        sink.flush();
+
+        EndpointStats after = new EndpointStats("a");
+        after.addReceiveStats(stream(1, "audio", 100, 1, 0));
+        sink.conferenceStats("c", START + 1000, List.of(after));
+        sink.close();
+
+        List<ColumnarFileReader.Row> rows = readAll();
+        assertEquals(2, rows.size());
+        assertEquals(3000, rows.get(0).bytes);
+        assertEquals(100, rows.get(1).bytes);
+        assertEquals(1, rows.get(1).packets);
+    }
+
+    @Test
+    public void rotationsWithinOneMillisecondKeepEveryBlock()
+        throws IOException
+    {
+        // every block fills a file
+        ColumnarFileSink sink = new ColumnarFileSink(
+            directory, "stats", 1, Long.MAX_VALUE, 2);
+
+        for (int period = 0; period < 10; period++)
+        {
+            EndpointStats a = new EndpointStats("a");
+            a.addReceiveStats(stream(1, "audio", period, period, 0));
+            a.addReceiveStats(stream(2, "video", period, period, 0));
+            sink.conferenceStats("c", START, List.of(a));
+            // keeps the writer from dropping blocks
+            sink.flush();
+        }
+        sink.close();
+
+        assertEquals(0, sink.getDroppedBlocks());
+        try (Stream<Path> list = Files.list(directory))
+        {
+            assertEquals(10, list.count());
+        }
+        List<ColumnarFileReader.Row> rows = readAll();
+        assertEquals(20, rows.size());
+        for (int i = 0; i < rows.size(); i++)
+        {
+            assertEquals(i / 2, rows.get(i).bytes);
+        }
+    }
+
+    @Test
+    public void flushRacingCloseDoesNotFail()
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            for (int round = 0; round < 50; round++)
+            {
+                ColumnarFileSink sink = new ColumnarFileSink(
+                    directory.resolve("round" + round), "stats",
+                    Long.MAX_VALUE, Long.MAX_VALUE, 1);
+                CountDownLatch start = new CountDownLatch(1);
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+                List<Future<?>> flushes = new ArrayList<>();
+                for (int i = 0; i < 3; i++)
+                {
+                    flushes.add(executor.submit(() ->
+                    {
+                        try
+                        {
+                            start.await();
+                            for (int j = 0; j < 20; j++)
+                            {
+                                EndpointStats a = new EndpointStats("a");
+                                a.addReceiveStats(stream(1, "audio", j, j, 0));
+                                sink.conferenceStats("c", START, List.of(a));
+                                sink.flush();
+                            }
+                        }
+                        catch (Throwable t)
+                        {
+                            failure.compareAndSet(null, t);
+                        }
+                        return null;
+                    }));
+                }
+
+                start.countDown();
+                sink.close();
+                for (Future<?> flush : flushes)
+                {
+                    flush.get(10, TimeUnit.SECONDS);
+                }
+                assertNull(failure.get());
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConferenceRegistryTest
+{
+    private static final long PERIOD = 10_000;
+
+    private final ConferenceRegistry registry
+        = StatsServiceFactory.getInstance().getConferenceRegistry();
+
+    private VirtualTimeScheduler scheduler;
+
+    private FakeCallStats callStats;
+
+    private StatsService statsService;
+
+    private final List<TestConference> conferences = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp()
+    {
+        scheduler = new VirtualTimeScheduler(0);
+        StatsServiceFactory.getInstance().setClock(scheduler);
+
+        callStats = new FakeCallStats();
+        statsService = new StatsService(1, callStats, false);
+        statsService.setInitialized(true);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        for (TestConference conference : conferences)
+        {
+            conference.stop();
+        }
+        registry.setIdleTimeout(0);
+        registry.setMemoryBudget(0);
+        StatsServiceFactory.getInstance().setClock(StatsClock.SYSTEM);
+    }
+
+    private TestConference startConference(String conferenceID)
+    {
+        TestConference conference
+            = new TestConference(statsService, conferenceID, PERIOD);
+        conferences.add(conference);
+        conference.registerWith(scheduler);
+        conference.start();
+        return conference;
+    }
+
+    @Test
+    public void evictsNothingByDefault()
+    {
+        callStats.answerSetup = false;
+        TestConference orphan = startConference("orphan");
+
+        scheduler.advance(Duration.ofHours(2));
+
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.PENDING,
+            orphan.getLifecycleState());
+        assertEquals(1, registry.getConferenceCount());
+    }
+
+    @Test
+    public void evictsConferenceNeverSetUp()
+    {
+        registry.setIdleTimeout(Duration.ofMinutes(5).toMillis());
+        long idleEvictions = registry.getIdleEvictions();
+
+        callStats.answerSetup = false;
+        TestConference orphan = startConference("orphan");
+        orphan.registerSsrc("a", 1, "audio", false);
+        callStats.answerSetup = true;
+        TestConference active = startConference("active");
+        active.registerSsrc("a", 1, "audio", false);
+
+        scheduler.advance(Duration.ofMinutes(10));
+
+        // nothing collects the stats of the orphan, it is idle
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+            orphan.getLifecycleState());
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.ACTIVE,
+            active.getLifecycleState());
+        assertEquals(idleEvictions + 1, registry.getIdleEvictions());
+        assertEquals(1, registry.getConferenceCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyActiveOverBudget()
+    {
+        long memoryEvictions = registry.getMemoryEvictions();
+        TestConference older = startConference("older");
+        scheduler.advance(Duration.ofSeconds(30));
+        TestConference newer = startConference("newer");
+        newer.registerSsrc("a", 1, "audio", false);
+
+        registry.setMemoryBudget(
+            newer.estimateMemoryUsage() + older.estimateMemoryUsage() - 1);
+        scheduler.advance(Duration.ofMinutes(2));
+
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+            older.getLifecycleState());
+        assertEquals(
+            AbstractStatsPeriodicRunnable.LifecycleState.ACTIVE,
+            newer.getLifecycleState());
+        assertEquals(memoryEvictions + 1, registry.getMemoryEvictions());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import io.callstats.sdk.*;
+import io.callstats.sdk.data.*;
+import io.callstats.sdk.listeners.*;
+
+import java.util.*;
+
+/**
+ * A {@link CallStats} that is initialized without connecting and records the
+ * events and reports instead of sending them.
+ */
+class FakeCallStats
+    extends CallStats
+{
+    /**
+     * The reported streams, as endpoint ID and SSRC, in order.
+     */
+    final List<String> reports = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Whether the reports are added to {@link #reports}, or only counted.
+     */
+    volatile boolean recordReports = true;
+
+    /**
+     * The number of reports, by conference ID.
+     */
+    final Map<String, Integer> reportsByConference = new HashMap<>();
+
+    /**
+     * The IDs of the conferences set up and terminated, in order.
+     */
+    final List<String> setUp = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The initiator IDs of the conferences set up, in order.
+     */
+    final List<String> initiators
+        = Collections.synchronizedList(new ArrayList<>());
+    final List<String> terminated
+        = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Whether the setup events are answered.
+     */
+    volatile boolean answerSetup = true;
+
+    /**
+     * The listeners of the setup events that were not answered.
+     */
+    final List<CallStatsStartConferenceListener> pendingSetups
+        = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The listeners of the initializations, in order. The initialization
+     * completes or fails when the test calls its listener.
+     */
+    final List<CallStatsInitListener> initListeners
+        = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void initialize(
+        int appId,
+        String appSecret,
+        String bridgeId,
+        ServerInfo serverInfo,
+        CallStatsInitListener listener)
+    {
+        initListeners.add(listener);
+    }
+
+    @Override
+    public boolean isInitialized()
+    {
+        return true;
+    }
+
+    @Override
+    public synchronized void sendCallStatsConferenceEvent(
+        CallStatsConferenceEvents event,
+        ConferenceInfo conferenceInfo,
+        CallStatsStartConferenceListener listener)
+    {
+        setUp.add(conferenceInfo.getConfID());
+        initiators.add(conferenceInfo.getInitiatorID());
+        if (answerSetup)
+        {
+            listener.onResponse("ucid-" + conferenceInfo.getConfID());
+        }
+        else
+        {
+            pendingSetups.add(listener);
+        }
+    }
+
+    @Override
+    public synchronized void sendCallStatsConferenceEvent(
+        CallStatsConferenceEvents event, UserInfo userInfo)
+    {
+        if (event == CallStatsConferenceEvents.CONFERENCE_TERMINATED)
+        {
+            terminated.add(userInfo.getConfID());
+        }
+    }
+
+    @Override
+    public synchronized void startStatsReportingForUser(
+        String userID, String confID)
+    {
+    }
+
+    @Override
+    public synchronized void reportConferenceStats(
+        String userID, ConferenceStats stats)
+    {
+        reportsByConference.merge(stats.getConfID(), 1, Integer::sum);
+        if (recordReports)
+        {
+            reports.add(userID + ":" + stats.getSsrc());
+        }
+    }
+
+    @Override
+    public synchronized void stopStatsReportingForUser(
+        String userID, String confID)
+    {
+    }
+}
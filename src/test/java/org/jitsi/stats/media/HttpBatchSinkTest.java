@@ -0,0 +1,229 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import com.sun.net.httpserver.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpBatchSinkTest
+{
+    private HttpServer server;
+
+    private URI uri;
+
+    /**
+     * The decoded bodies of the requests received by the stub collector.
+     */
+    private final BlockingQueue<JSONArray> batches
+        = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    public void setUp()
+        throws IOException
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/stats", exchange ->
+        {
+            try (InputStream in = exchange.getRequestBody())
+            {
+                assertEquals(
+                    "gzip",
+                    exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                String body = new String(
+                    new GZIPInputStream(in).readAllBytes(),
+                    StandardCharsets.UTF_8);
+                batches.add((JSONArray) new JSONParser().parse(body));
+                exchange.sendResponseHeaders(204, -1);
+            }
+            catch (Throwable t)
+            {
+                exchange.sendResponseHeaders(400, -1);
+            }
+            finally
+            {
+                exchange.close();
+            }
+        });
+        server.start();
+        uri = URI.create(
+            "http://127.0.0.1:" + server.getAddress().getPort() + "/stats");
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    private static SsrcStats stream(long ssrc, long bytes)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = ssrc;
+        stats.mediaType = "audio";
+        stats.bytes = bytes;
+        stats.packets = bytes / 100;
+        stats.jitter_ms = 2.5;
+        stats.rtt_ms = 30;
+        return stats;
+    }
+
+    private static List<EndpointStats> endpoints(int count)
+    {
+        List<EndpointStats> endpoints = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            EndpointStats endpoint = new EndpointStats("endpoint-" + i);
+            endpoint.addReceiveStats(stream(i, 1000 + i));
+            endpoint.addSendStats(stream(i + 1_000_000, 2000 + i));
+            endpoints.add(endpoint);
+        }
+        return endpoints;
+    }
+
+    @Test
+    public void postsGzippedJson()
+        throws Exception
+    {
+        HttpBatchSink sink = new HttpBatchSink(uri, Integer.MAX_VALUE, 60_000);
+
+        sink.conferenceStats("café \"1\"\n", 1234, endpoints(1));
+        BridgeStatistics bridge = new BridgeStatistics();
+        bridge.cpuUsage(0.5f);
+        bridge.conferenceCount(3);
+        sink.bridgeStatistics(5678, bridge);
+        sink.close();
+
+        JSONArray batch = batches.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(1, sink.getSentBatches());
+        assertEquals(2, batch.size());
+
+        JSONObject conference = (JSONObject) batch.get(0);
+        assertEquals("conference", conference.get("type"));
+        assertEquals("café \"1\"\n", conference.get("conferenceID"));
+        assertEquals(1234L, conference.get("timestamp"));
+        JSONObject endpoint
+            = (JSONObject) ((JSONArray) conference.get("endpoints")).get(0);
+        assertEquals("endpoint-0", endpoint.get("id"));
+        JSONObject receive
+            = (JSONObject) ((JSONArray) endpoint.get("receive")).get(0);
+        assertEquals(0L, receive.get("ssrc"));
+        assertEquals(1000L, receive.get("bytes"));
+        assertEquals(2.5, receive.get("jitter"));
+        assertEquals(30L, receive.get("rtt"));
+        JSONObject send = (JSONObject) ((JSONArray) endpoint.get("send")).get(0);
+        assertEquals(2000L, send.get("bytes"));
+
+        JSONObject stats = (JSONObject) batch.get(1);
+        assertEquals("bridge", stats.get("type"));
+        assertEquals(5678L, stats.get("timestamp"));
+        assertEquals(0.5, stats.get("cpuUsage"));
+        assertEquals(3L, stats.get("conferenceCount"));
+    }
+
+    @Test
+    public void recordsLargerThanAChunkAreCopiedWhole()
+        throws Exception
+    {
+        HttpBatchSink sink = new HttpBatchSink(uri, Integer.MAX_VALUE, 60_000);
+
+        // well over the 64 KB of a pooled buffer
+        sink.conferenceStats("big", 1, endpoints(2000));
+        sink.conferenceStats("small", 2, endpoints(1));
+        sink.close();
+
+        JSONArray batch = batches.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(2, batch.size());
+        JSONArray big = (JSONArray) ((JSONObject) batch.get(0)).get("endpoints");
+        assertEquals(2000, big.size());
+        assertEquals(
+            "endpoint-1999", ((JSONObject) big.get(1999)).get("id"));
+        assertEquals("small", ((JSONObject) batch.get(1)).get("conferenceID"));
+    }
+
+    @Test
+    public void concurrentRecordsAreNotInterleaved()
+        throws Exception
+    {
+        HttpBatchSink sink = new HttpBatchSink(uri, Integer.MAX_VALUE, 60_000);
+        int threads = 8;
+        int records = 200;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                String conferenceID = "conference-" + t;
+                futures.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < records; i++)
+                    {
+                        sink.conferenceStats(conferenceID, i, endpoints(3));
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        sink.close();
+
+        JSONArray batch = batches.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(threads * records, batch.size());
+
+        Map<Object, List<Long>> timestamps = new HashMap<>();
+        for (Object record : batch)
+        {
+            JSONObject conference = (JSONObject) record;
+            assertEquals(
+                3, ((JSONArray) conference.get("endpoints")).size());
+            timestamps
+                .computeIfAbsent(
+                    conference.get("conferenceID"), k -> new ArrayList<>())
+                .add((Long) conference.get("timestamp"));
+        }
+        assertEquals(threads, timestamps.size());
+        for (List<Long> values : timestamps.values())
+        {
+            // the records of a thread keep their order
+            for (int i = 0; i < records; i++)
+            {
+                assertEquals(i, values.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdentifierPoolTest
+{
+    private final IdentifierPool pool = new IdentifierPool();
+
+    @Test
+    public void sharesEqualEndpointIDs()
+    {
+        String first = pool.intern(new String("endpoint-1"));
+        String second = pool.intern(new String("endpoint-1"));
+
+        assertSame(first, second);
+        assertEquals(1, pool.size());
+        assertNull(pool.intern(null));
+
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertNotSame(first, pool.intern(new String("endpoint-1")));
+    }
+
+    @Test
+    public void boundsTheEndpointIDs()
+    {
+        for (int i = 0; pool.size() < 4096; i++)
+        {
+            pool.intern("endpoint-" + i);
+        }
+
+        // IDs beyond the bound are used as they are
+        String endpointID = new String("another");
+        assertSame(endpointID, pool.intern(endpointID));
+        assertEquals(4096, pool.size());
+
+        // while the interned ones are still shared
+        assertSame(
+            pool.intern("endpoint-1"), pool.intern(new String("endpoint-1")));
+    }
+
+    @Test
+    public void derivesTheSiteID()
+    {
+        IdentifierPool.DomainIdentifiers identifiers
+            = IdentifierPool.getDomainIdentifiers(
+                "example.com", "conference.site1.example.com");
+
+        assertEquals("example.com/site1/", identifiers.prefix);
+        assertEquals("site1", identifiers.siteID);
+
+        identifiers = IdentifierPool.getDomainIdentifiers(
+            "example.com/", "conference.example.com");
+        assertEquals("example.com/", identifiers.prefix);
+        assertEquals("/", identifiers.siteID);
+
+        identifiers = IdentifierPool.getDomainIdentifiers(
+            null, "conference.site1.example.com");
+        assertEquals("", identifiers.prefix);
+        assertEquals("/", identifiers.siteID);
+    }
+
+    @Test
+    public void cachesTheDomainIdentifiers()
+    {
+        IdentifierPool.DomainIdentifiers identifiers
+            = IdentifierPool.getDomainIdentifiers(
+                "example.org", "conference.site2.example.org");
+
+        assertSame(
+            identifiers,
+            IdentifierPool.getDomainIdentifiers(
+                "example.org", "conference.site2.example.org"));
+
+        // a changed prefix derives them again
+        IdentifierPool.DomainIdentifiers changed
+            = IdentifierPool.getDomainIdentifiers(
+                "site2.example.org", "conference.site2.example.org");
+        assertNotSame(identifiers, changed);
+        assertEquals("site2.example.org/", changed.prefix);
+        assertEquals("/", changed.siteID);
+    }
+}
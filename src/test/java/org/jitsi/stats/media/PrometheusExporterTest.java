@@ -0,0 +1,165 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrometheusExporterTest
+{
+    private PrometheusExporter exporter;
+
+    private URL url;
+
+    @BeforeEach
+    public void setUp()
+        throws IOException
+    {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+
+        exporter = new PrometheusExporter(1);
+        exporter.start(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        url = new URL("http://127.0.0.1:" + port + "/metrics");
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        exporter.close();
+    }
+
+    private static List<EndpointStats> audio(
+        String endpointId, long ssrc, long bytes, double loss)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = ssrc;
+        stats.mediaType = "audio";
+        stats.bytes = bytes;
+        stats.packets = bytes / 100;
+        stats.fractionalPacketLoss = loss;
+
+        EndpointStats endpointStats = new EndpointStats(endpointId);
+        endpointStats.addReceiveStats(stats);
+        return List.of(endpointStats);
+    }
+
+    private String scrape()
+        throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try
+        {
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            try (InputStream in = connection.getInputStream())
+            {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    private long receivedAudioBytes()
+        throws IOException
+    {
+        String prefix
+            = "jitsi_stats_bytes_total{direction=\"receive\",media=\"audio\"} ";
+        for (String line : scrape().split("\n"))
+        {
+            if (line.startsWith(prefix))
+            {
+                return Long.parseLong(line.substring(prefix.length()));
+            }
+        }
+        return fail("No received audio bytes");
+    }
+
+    @Test
+    public void addsGrowthOfEveryStream()
+        throws IOException
+    {
+        exporter.conferenceStats("c1", 0, audio("a", 1, 1000, 0));
+        exporter.conferenceStats("c2", 0, audio("b", 2, 300, 0));
+        exporter.conferenceStats("c1", 0, audio("a", 1, 1500, 0));
+
+        assertEquals(1800, receivedAudioBytes());
+    }
+
+    @Test
+    public void returningStreamIsNotCountedTwice()
+        throws IOException
+    {
+        exporter.conferenceStats("c", 0, audio("a", 1, 3000, 0));
+        exporter.conferenceStats("c", 0, audio("a", 2, 100, 0));
+        exporter.conferenceStats("c", 0, audio("a", 1, 4500, 0));
+
+        assertEquals(4600, receivedAudioBytes());
+    }
+
+    @Test
+    public void restartedConferenceIsNotCountedTwice()
+        throws IOException
+    {
+        exporter.conferenceStats("c", 0, audio("a", 1, 1000, 0));
+        exporter.conferenceStopped("c");
+        // the streams of the bridge kept counting
+        exporter.conferenceStats("c", 0, audio("a", 1, 1500, 0));
+
+        assertEquals(1500, receivedAudioBytes());
+    }
+
+    @Test
+    public void streamStartingOverIsCountedAgain()
+        throws IOException
+    {
+        exporter.conferenceStats("c", 0, audio("a", 1, 1000, 0));
+        exporter.conferenceStats("c", 0, audio("a", 1, 200, 0));
+
+        assertEquals(1200, receivedAudioBytes());
+    }
+
+    @Test
+    public void exportsTopConferenceOnly()
+        throws IOException
+    {
+        exporter.conferenceStats("quiet", 0, audio("a", 1, 100, 0.01));
+        exporter.conferenceStats("lossy\"1", 0, audio("b", 2, 100, 0.25));
+
+        String metrics = scrape();
+        assertTrue(metrics.contains("jitsi_stats_conferences 2\n"));
+        assertTrue(metrics.contains(
+            "jitsi_stats_conference_fraction_lost{conference=\"lossy\\\"1\"}"
+                + " 0.250000\n"));
+        assertFalse(metrics.contains("conference=\"quiet\""));
+
+        exporter.conferenceStopped("lossy\"1");
+        assertTrue(scrape().contains("jitsi_stats_conferences 1\n"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QualityEstimatorTest
+{
+    private final QualityEstimator estimator = new QualityEstimator();
+
+    @Test
+    public void scoresTheNetworkConditions()
+    {
+        double perfect = QualityEstimator.mos(0, 0, 0);
+        assertTrue(perfect > 4.3 && perfect <= 4.5);
+
+        assertTrue(QualityEstimator.mos(0.05, 0, 0) < perfect);
+        assertTrue(QualityEstimator.mos(0, 30, 0) < perfect);
+        assertTrue(QualityEstimator.mos(0, 0, 400) < perfect);
+        assertTrue(
+            QualityEstimator.mos(0.1, 0, 0) < QualityEstimator.mos(0.05, 0, 0));
+
+        assertEquals(1, QualityEstimator.mos(1, 500, 2000));
+
+        // out of range values are clamped
+        assertEquals(perfect, QualityEstimator.mos(-1, -5, -10));
+    }
+
+    @Test
+    public void takesTheLossOfThePeriodFromTheCounters()
+    {
+        SsrcStats stats = stream(1, 1000, 10, 0);
+        estimator.update(List.of(endpoint("a", stats)));
+        double first = stats.mos;
+        // the first period has no previous counters, the fractional loss
+        assertEquals(QualityEstimator.mos(0, 0, 0), first, 1e-9);
+
+        // 100 packets received and 100 lost since the previous period
+        stats = stream(1, 1100, 110, 0);
+        estimator.update(List.of(endpoint("a", stats)));
+
+        // smoothed, so below the first period but above the period alone
+        assertTrue(stats.mos < first);
+        assertTrue(stats.mos > QualityEstimator.mos(0.5, 0, 0));
+    }
+
+    @Test
+    public void weightsTheEndpointScoreByPackets()
+    {
+        EndpointStats endpointStats = endpoint(
+            "a", stream(1, 900, 0, 0), stream(2, 100, 0, 0.5));
+        EndpointStats silent = endpoint("b");
+        estimator.update(List.of(endpointStats, silent));
+
+        double good = QualityEstimator.mos(0, 0, 0);
+        double bad = QualityEstimator.mos(0.5, 0, 0);
+        assertEquals(0.9 * good + 0.1 * bad, endpointStats.getMos(), 1e-9);
+
+        // nothing to score
+        assertTrue(Double.isNaN(silent.getMos()));
+    }
+
+    @Test
+    public void forgetsStreamsThatAreNoLongerReported()
+    {
+        estimator.update(List.of(endpoint("a", stream(1, 100, 0, 0.5))));
+        estimator.update(List.of(endpoint("b", stream(2, 100, 0, 0))));
+
+        // without the previous period the score is not smoothed
+        SsrcStats stats = stream(1, 200, 0, 0);
+        estimator.update(List.of(endpoint("a", stats)));
+        assertEquals(QualityEstimator.mos(0, 0, 0), stats.mos, 1e-9);
+    }
+
+    private static EndpointStats endpoint(String id, SsrcStats... streams)
+    {
+        EndpointStats endpointStats = new EndpointStats(id);
+        for (SsrcStats stats : streams)
+        {
+            endpointStats.addReceiveStats(stats);
+        }
+        return endpointStats;
+    }
+
+    private static SsrcStats stream(
+        long ssrc, long packets, long packetsLost, double fractionalLoss)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = ssrc;
+        stats.packets = packets;
+        stats.packetsLost = packetsLost;
+        stats.fractionalPacketLoss = fractionalLoss;
+        return stats;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReportRateLimiterTest
+{
+    private static final int REPORT_SIZE = 100;
+
+    private final VirtualTimeScheduler clock = new VirtualTimeScheduler(0);
+
+    private final ReportRateLimiter limiter = new ReportRateLimiter(clock);
+
+    @Test
+    public void grantsEverythingWithoutLimits()
+    {
+        assertEquals(1000, limiter.acquire(1000, REPORT_SIZE, 1000));
+        assertEquals(0, limiter.getShapedReports());
+        assertEquals(0, limiter.getDroppedReports());
+    }
+
+    @Test
+    public void sharesLimitBetweenConferences()
+    {
+        limiter.setLimits(10, 0);
+        limiter.conferenceStarted();
+        limiter.conferenceStarted();
+
+        assertEquals(5, limiter.acquire(20, REPORT_SIZE, 1000));
+        assertEquals(15, limiter.getShapedReports());
+        assertEquals(5, limiter.acquire(20, REPORT_SIZE, 1000));
+
+        // the bucket is empty until it refills
+        assertEquals(0, limiter.acquire(20, REPORT_SIZE, 1000));
+        assertEquals(5, limiter.getDroppedReports());
+
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals(5, limiter.acquire(20, REPORT_SIZE, 1000));
+
+        // a conference alone gets the whole limit
+        limiter.conferenceStopped();
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals(10, limiter.acquire(20, REPORT_SIZE, 1000));
+    }
+
+    @Test
+    public void releasedReportsAreGrantedAgain()
+    {
+        limiter.setLimits(10, 0);
+        limiter.conferenceStarted();
+
+        assertEquals(10, limiter.acquire(10, REPORT_SIZE, 1000));
+        limiter.release(4, REPORT_SIZE);
+        assertEquals(4, limiter.getShapedReports());
+
+        assertEquals(4, limiter.acquire(10, REPORT_SIZE, 1000));
+    }
+
+    @Test
+    public void limitsBytes()
+    {
+        limiter.setLimits(0, 10 * REPORT_SIZE);
+        limiter.conferenceStarted();
+
+        assertEquals(10, limiter.acquire(30, REPORT_SIZE, 1000));
+        assertEquals(0, limiter.acquire(30, REPORT_SIZE, 1000));
+
+        // larger reports get fewer of the refilled bytes
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals(5, limiter.acquire(30, 2 * REPORT_SIZE, 1000));
+    }
+}
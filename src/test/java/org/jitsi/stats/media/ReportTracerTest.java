@@ -0,0 +1,110 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReportTracerTest
+{
+    private final ReportTracer tracer = new ReportTracer(8);
+
+    @AfterEach
+    public void tearDown()
+    {
+        tracer.disable();
+    }
+
+    @Test
+    public void dropsRecordsThatDoNotFit()
+    {
+        SsrcStats stats = new SsrcStats();
+        for (int i = 0; i < 10; i++)
+        {
+            stats.ssrc = i;
+            tracer.trace(i, "conference", "jvb", "endpoint", false, stats);
+        }
+
+        assertEquals(8, tracer.getTracedRecords());
+        assertEquals(2, tracer.getDroppedRecords());
+    }
+
+    @Test
+    public void flushingFreesTheRing()
+        throws Exception
+    {
+        tracer.enable(null, null, 1);
+
+        SsrcStats stats = new SsrcStats();
+        for (int i = 0; i < 8; i++)
+        {
+            tracer.trace(i, "conference", "jvb", "endpoint", true, stats);
+        }
+
+        // the flusher writes the records every 100 ms
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tracer.getTracedRecords() < 16
+            && System.currentTimeMillis() < deadline)
+        {
+            tracer.trace(0, "conference", "jvb", "endpoint", true, stats);
+            Thread.sleep(10);
+        }
+
+        assertTrue(tracer.getTracedRecords() >= 16);
+    }
+
+    @Test
+    public void tracesSelectedEndpoints()
+    {
+        assertFalse(tracer.isTraced("a", "x"));
+
+        tracer.enable(List.of("a"), List.of("x", "y"), 1);
+        assertTrue(tracer.isEnabled());
+        assertTrue(tracer.isTraced("a", "x"));
+        assertTrue(tracer.isTraced("a", "y"));
+        assertFalse(tracer.isTraced("a", "z"));
+        assertFalse(tracer.isTraced("b", "x"));
+
+        tracer.enable(null, null, 0);
+        assertFalse(tracer.isEnabled());
+        assertFalse(tracer.isTraced("a", "x"));
+    }
+
+    @Test
+    public void samplesEndpoints()
+    {
+        tracer.enable(null, null, 0.25);
+
+        int traced = 0;
+        for (int i = 0; i < 10000; i++)
+        {
+            String endpointID = "endpoint-" + i;
+            boolean isTraced = tracer.isTraced("conference", endpointID);
+            // the sample is stable across periods
+            assertEquals(
+                isTraced, tracer.isTraced("conference", endpointID));
+            if (isTraced)
+            {
+                traced++;
+            }
+        }
+
+        assertTrue(traced > 2000 && traced < 3000, "traced " + traced);
+    }
+}
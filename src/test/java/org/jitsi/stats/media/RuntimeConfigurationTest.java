@@ -0,0 +1,177 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RuntimeConfigurationTest
+{
+    private static final long PERIOD = 10_000;
+
+    private final StatsServiceFactory factory
+        = StatsServiceFactory.getInstance();
+
+    private final ConferenceRegistry registry
+        = factory.getConferenceRegistry();
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+
+    private VirtualTimeScheduler scheduler;
+
+    private StatsService statsService;
+
+    private TestConference conference;
+
+    private RuntimeConfiguration configuration;
+
+    @BeforeEach
+    public void setUp()
+    {
+        scheduler = new VirtualTimeScheduler(0);
+        factory.setClock(scheduler);
+
+        statsService = new StatsService(1, new FakeCallStats(), false);
+        statsService.setInitialized(true);
+        statsService.getRateLimiter().setLimits(100, 0);
+
+        conference = new TestConference(statsService, "c", PERIOD);
+        conference.registerWith(scheduler);
+        conference.start();
+
+        file = directory.resolve("stats.properties");
+        configuration = new RuntimeConfiguration(file, factory);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        configuration.close();
+        conference.stop();
+        registry.setPeriod(0);
+        registry.setIdleTimeout(0);
+        registry.setMemoryBudget(0);
+        factory.getReportTracer().disable();
+        factory.setClock(StatsClock.SYSTEM);
+    }
+
+    private void write(String... lines)
+        throws IOException
+    {
+        Files.write(file, Arrays.asList(lines));
+    }
+
+    private boolean reload()
+    {
+        boolean applied = configuration.reload();
+        // the test service is not one of the factory's
+        configuration.apply(statsService);
+        return applied;
+    }
+
+    @Test
+    public void appliesSettings()
+        throws IOException
+    {
+        write(
+            "org.jitsi.stats.period=2000",
+            "org.jitsi.stats.reportsPerSecond=5",
+            "org.jitsi.stats.bytesPerSecond=1000",
+            "org.jitsi.stats.idleTimeout=60000",
+            "org.jitsi.stats.memoryBudget=1000000",
+            "org.jitsi.stats.disabledSinks=StatsHistory, HttpBatchSink",
+            "org.jitsi.stats.trace.conferences=c");
+        assertTrue(reload());
+
+        assertEquals(2000, conference.getPeriod());
+        assertEquals(5, statsService.getRateLimiter().getReportsPerSecond());
+        assertEquals(1000, statsService.getRateLimiter().getBytesPerSecond());
+        assertEquals(60000, registry.getIdleTimeout());
+        assertEquals(1000000, registry.getMemoryBudget());
+        assertEquals(
+            Set.of("StatsHistory", "HttpBatchSink"),
+            statsService.getDisabledSinks());
+        assertTrue(factory.getReportTracer().isEnabled());
+    }
+
+    @Test
+    public void removedSettingsFallBackToDefaults()
+        throws IOException
+    {
+        write(
+            "org.jitsi.stats.period=2000",
+            "org.jitsi.stats.reportsPerSecond=5",
+            "org.jitsi.stats.idleTimeout=60000",
+            "org.jitsi.stats.disabledSinks=StatsHistory",
+            "org.jitsi.stats.trace.samplingRatio=0.5");
+        assertTrue(reload());
+
+        write("org.jitsi.stats.bytesPerSecond=1000");
+        assertTrue(reload());
+
+        assertEquals(PERIOD, conference.getPeriod());
+        // the limit the service had before the configuration
+        assertEquals(100, statsService.getRateLimiter().getReportsPerSecond());
+        assertEquals(1000, statsService.getRateLimiter().getBytesPerSecond());
+        assertEquals(0, registry.getIdleTimeout());
+        assertTrue(statsService.getDisabledSinks().isEmpty());
+        assertFalse(factory.getReportTracer().isEnabled());
+    }
+
+    @Test
+    public void invalidFileIsIgnoredAsAWhole()
+        throws IOException
+    {
+        write("org.jitsi.stats.reportsPerSecond=5");
+        assertTrue(reload());
+
+        write(
+            "org.jitsi.stats.idleTimeout=60000",
+            "org.jitsi.stats.reportsPerSecond=-1");
+        assertFalse(reload());
+
+        assertEquals(5, statsService.getRateLimiter().getReportsPerSecond());
+        assertEquals(0, registry.getIdleTimeout());
+    }
+
+    @Test
+    public void reloadsWhenTheFileChanges()
+        throws Exception
+    {
+        write("org.jitsi.stats.idleTimeout=60000");
+        configuration.start();
+        assertEquals(60000, registry.getIdleTimeout());
+
+        write("org.jitsi.stats.idleTimeout=120000");
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (registry.getIdleTimeout() != 120000
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(120000, registry.getIdleTimeout());
+    }
+}
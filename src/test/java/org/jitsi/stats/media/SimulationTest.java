@@ -0,0 +1,123 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs a simulated day of a bridge hosting a thousand conferences in virtual
+ * time, and checks that every conference is set up, reported on every
+ * period of its life and terminated exactly once.
+ */
+public class SimulationTest
+{
+    private static final long PERIOD = 10_000;
+
+    private static final int CONFERENCES = 1000;
+
+    private static final long DAY = Duration.ofDays(1).toMillis();
+
+    private VirtualTimeScheduler scheduler;
+
+    private FakeCallStats callStats;
+
+    private StatsService statsService;
+
+    @BeforeEach
+    public void setUp()
+    {
+        scheduler = new VirtualTimeScheduler(0);
+        StatsServiceFactory.getInstance().setClock(scheduler);
+
+        callStats = new FakeCallStats();
+        callStats.recordReports = false;
+        statsService = new StatsService(1, callStats, false);
+        statsService.setInitialized(true);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        StatsServiceFactory.getInstance().setClock(StatsClock.SYSTEM);
+    }
+
+    @Test
+    public void simulatesDay()
+    {
+        Random random = new Random(42);
+        Map<String, Integer> expectedReports = new HashMap<>();
+        List<TestConference> conferences = new ArrayList<>();
+
+        for (int i = 0; i < CONFERENCES; i++)
+        {
+            String conferenceID = "conference-" + i;
+            // between 1 and 120 periods, ending between two periods
+            int periods = 1 + random.nextInt(120);
+            long start = (long) (random.nextDouble() * (DAY - 121 * PERIOD));
+            long duration = periods * PERIOD + PERIOD / 2;
+            int endpoints = 1 + random.nextInt(5);
+            int streams = 2 * endpoints;
+
+            TestConference conference
+                = new TestConference(statsService, conferenceID, PERIOD);
+            conferences.add(conference);
+            expectedReports.put(conferenceID, periods * streams);
+
+            scheduler.schedule(() -> {
+                for (int e = 0; e < endpoints; e++)
+                {
+                    String endpointId = "endpoint-" + e;
+                    conference.registerSsrc(endpointId, 2 * e, "audio", false)
+                        .setCounters(1000, 10);
+                    conference.registerSsrc(endpointId, 2 * e + 1, "video", true)
+                        .setCounters(100_000, 100);
+                }
+                conference.registerWith(scheduler);
+                conference.start();
+            }, start, TimeUnit.MILLISECONDS);
+            scheduler.schedule(
+                conference::stop, start + duration, TimeUnit.MILLISECONDS);
+        }
+
+        scheduler.advance(Duration.ofMillis(DAY));
+
+        assertEquals(CONFERENCES, callStats.setUp.size());
+        assertEquals(CONFERENCES, callStats.terminated.size());
+        assertEquals(
+            CONFERENCES, new HashSet<>(callStats.terminated).size());
+        assertEquals(expectedReports, callStats.reportsByConference);
+
+        for (TestConference conference : conferences)
+        {
+            assertEquals(
+                AbstractStatsPeriodicRunnable.LifecycleState.TERMINATED,
+                conference.getLifecycleState());
+        }
+        assertTrue(StatsServiceFactory.getInstance().getConferenceRegistry()
+            .getConferences().isEmpty());
+
+        // the stopped conferences left the scheduler, only the time passes
+        long executed = scheduler.getExecutedTasks();
+        scheduler.advance(Duration.ofHours(1));
+        assertEquals(executed, scheduler.getExecutedTasks());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SsrcStatsAggregatorTest
+{
+    private static SsrcStats stream(
+        long ssrc, String mediaType, long bytes, long packets, long lost)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = ssrc;
+        stats.mediaType = mediaType;
+        stats.bytes = bytes;
+        stats.packets = packets;
+        stats.packetsLost = lost;
+        return stats;
+    }
+
+    private static List<EndpointStats> endpoint(SsrcStats... streams)
+    {
+        EndpointStats endpointStats = new EndpointStats("a");
+        for (SsrcStats stats : streams)
+        {
+            endpointStats.addReceiveStats(stats);
+        }
+        return List.of(endpointStats);
+    }
+
+    private static SsrcStats single(List<EndpointStats> aggregated)
+    {
+        assertEquals(1, aggregated.size());
+        List<SsrcStats> streams = aggregated.get(0).getReceiveStats();
+        assertEquals(1, streams.size());
+        return streams.get(0);
+    }
+
+    @Test
+    public void sumsStreamsOfSameMediaType()
+    {
+        SsrcStatsAggregator aggregator = new SsrcStatsAggregator();
+
+        List<EndpointStats> aggregated = aggregator.aggregate(endpoint(
+            stream(1, "video", 1000, 10, 0),
+            stream(2, "video", 500, 5, 0),
+            stream(3, "audio", 200, 20, 0)));
+
+        List<SsrcStats> streams = aggregated.get(0).getReceiveStats();
+        assertEquals(2, streams.size());
+        assertEquals(1, streams.get(0).ssrc);
+        assertEquals(1500, streams.get(0).bytes);
+        assertEquals(15, streams.get(0).packets);
+        assertEquals(3, streams.get(1).ssrc);
+        assertEquals(200, streams.get(1).bytes);
+    }
+
+    @Test
+    public void passesSingleStreamThrough()
+    {
+        SsrcStatsAggregator aggregator = new SsrcStatsAggregator();
+        SsrcStats stats = stream(1, "audio", 100, 1, 0);
+
+        assertSame(stats, single(aggregator.aggregate(endpoint(stats))));
+    }
+
+    @Test
+    public void returningLayerIsNotCountedTwice()
+    {
+        SsrcStatsAggregator aggregator
+            = new SsrcStatsAggregator((endpointId, stats, send) -> 1);
+
+        assertEquals(4000, single(aggregator.aggregate(endpoint(
+            stream(1, "video", 3000, 30, 0),
+            stream(2, "video", 1000, 10, 0)))).bytes);
+
+        // the layer is off for a period
+        assertEquals(4000, single(aggregator.aggregate(endpoint(
+            stream(1, "video", 3000, 30, 0)))).bytes);
+
+        // and back with its cumulative counters
+        SsrcStats stats = single(aggregator.aggregate(endpoint(
+            stream(1, "video", 3000, 30, 0),
+            stream(2, "video", 1500, 15, 0))));
+        assertEquals(4500, stats.bytes);
+        assertEquals(45, stats.packets);
+        assertEquals(1, stats.ssrc);
+    }
+
+    @Test
+    public void restartedStreamDoesNotGoBack()
+    {
+        SsrcStatsAggregator aggregator = new SsrcStatsAggregator();
+
+        aggregator.aggregate(endpoint(
+            stream(1, "video", 3000, 30, 0),
+            stream(2, "video", 1000, 10, 0)));
+
+        SsrcStats stats = single(aggregator.aggregate(endpoint(
+            stream(1, "video", 500, 5, 0),
+            stream(2, "video", 1000, 10, 0))));
+        assertEquals(4500, stats.bytes);
+        assertEquals(45, stats.packets);
+    }
+
+    @Test
+    public void keepsGroupsThatAreBrieflyMissing()
+    {
+        SsrcStatsAggregator aggregator = new SsrcStatsAggregator();
+
+        aggregator.aggregate(endpoint(
+            stream(1, "video", 1000, 10, 0),
+            stream(2, "video", 1000, 10, 0)));
+        aggregator.aggregate(Collections.emptyList());
+
+        SsrcStats stats = single(aggregator.aggregate(endpoint(
+            stream(2, "video", 1100, 11, 0),
+            stream(1, "video", 1000, 10, 0))));
+        assertEquals(2100, stats.bytes);
+        // the SSRC of the group did not change with the order
+        assertEquals(1, stats.ssrc);
+
+        for (int i = 0; i < SsrcStatsAggregator.GROUP_TIMEOUT; i++)
+        {
+            aggregator.aggregate(Collections.emptyList());
+        }
+
+        // forgotten, it starts over
+        stats = single(aggregator.aggregate(endpoint(
+            stream(2, "video", 100, 1, 0),
+            stream(1, "video", 100, 1, 0))));
+        assertEquals(200, stats.bytes);
+        assertEquals(2, stats.ssrc);
+    }
+
+    @Test
+    public void weighsQualityByExpectedPackets()
+    {
+        SsrcStatsAggregator aggregator = new SsrcStatsAggregator();
+
+        SsrcStats clean = stream(1, "video", 1000, 100, 0);
+        clean.jitter_ms = 10d;
+        clean.rtt_ms = 100;
+        SsrcStats lossy = stream(2, "video", 500, 50, 50);
+        lossy.jitter_ms = 30d;
+        lossy.rtt_ms = 300;
+
+        SsrcStats stats = single(aggregator.aggregate(endpoint(clean, lossy)));
+        assertEquals(20, stats.jitter_ms, 1e-9);
+        assertEquals(200, stats.rtt_ms);
+        assertEquals(0.25, stats.fractionalPacketLoss, 1e-9);
+        assertEquals(50, stats.packetsLost);
+    }
+
+    @Test
+    public void mergesStreamsBeyondLimit()
+    {
+        SsrcStatsAggregator aggregator = new SsrcStatsAggregator();
+        long total = 0;
+
+        // one new SSRC per period, like repeated screen shares
+        for (int i = 0; i < 2 * SsrcStatsAggregator.MAX_MEMBERS; i++)
+        {
+            total += 100;
+            SsrcStats stats = single(aggregator.aggregate(endpoint(
+                stream(1, "video", 0, 0, 0),
+                stream(1000 + i, "video", 100, 1, 0))));
+            assertEquals(total, stats.bytes);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SsrcStatsHandleTest
+{
+    private static final long PERIOD = 1000;
+
+    private VirtualTimeScheduler scheduler;
+
+    private TestConference conference;
+
+    /**
+     * The streams of the last period, as copies, by SSRC.
+     */
+    private final Map<Long, SsrcStats> reported = new HashMap<>();
+
+    @BeforeEach
+    public void setUp()
+    {
+        scheduler = new VirtualTimeScheduler(0);
+        StatsServiceFactory.getInstance().setClock(scheduler);
+
+        StatsService statsService
+            = new StatsService(1, new FakeCallStats(), false);
+        statsService.setInitialized(true);
+        statsService.addSink((conferenceID, timestamp, endpointStats) ->
+        {
+            reported.clear();
+            for (EndpointStats endpoint : endpointStats)
+            {
+                for (SsrcStats stats : endpoint.getReceiveStats())
+                {
+                    reported.put(stats.ssrc, copy(stats));
+                }
+                for (SsrcStats stats : endpoint.getSendStats())
+                {
+                    reported.put(-stats.ssrc, copy(stats));
+                }
+            }
+        });
+
+        conference = new TestConference(statsService, "handles", PERIOD);
+        conference.registerWith(scheduler);
+        conference.start();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        conference.stop();
+        StatsServiceFactory.getInstance().setClock(StatsClock.SYSTEM);
+    }
+
+    private static SsrcStats copy(SsrcStats stats)
+    {
+        SsrcStats copy = new SsrcStats();
+        copy.ssrc = stats.ssrc;
+        copy.mediaType = stats.mediaType;
+        copy.bytes = stats.bytes;
+        copy.packets = stats.packets;
+        copy.packetsLost = stats.packetsLost;
+        copy.fractionalPacketLoss = stats.fractionalPacketLoss;
+        copy.jitter_ms = stats.jitter_ms;
+        copy.rtt_ms = stats.rtt_ms;
+        return copy;
+    }
+
+    @Test
+    public void reportsTheLatestValues()
+    {
+        SsrcStatsHandle receive
+            = conference.registerSsrc("a", 1, "audio", false);
+        SsrcStatsHandle send = conference.registerSsrc("a", 2, "video", true);
+        assertEquals("a", receive.getEndpointId());
+        assertEquals(1, receive.getSsrc());
+        assertTrue(send.isSend());
+
+        receive.addPacket(100);
+        receive.addPacket(200);
+        receive.setPacketsLost(3);
+        receive.setFractionalPacketLoss(0.25);
+        receive.setJitter(4.5);
+        receive.setRtt(80);
+        send.setCounters(50_000, 40);
+
+        scheduler.advance(Duration.ofMillis(PERIOD));
+
+        SsrcStats audio = reported.get(1L);
+        assertEquals("audio", audio.mediaType);
+        assertEquals(300, audio.bytes);
+        assertEquals(2, audio.packets);
+        assertEquals(3, audio.packetsLost);
+        assertEquals(0.25, audio.fractionalPacketLoss);
+        assertEquals(4.5, audio.jitter_ms);
+        assertEquals(80, audio.rtt_ms);
+
+        SsrcStats video = reported.get(-2L);
+        assertEquals("video", video.mediaType);
+        assertEquals(50_000, video.bytes);
+        assertEquals(40, video.packets);
+        assertNull(video.jitter_ms);
+        assertEquals(-1, video.rtt_ms);
+    }
+
+    @Test
+    public void unknownJitterIsReportedAsNull()
+    {
+        SsrcStatsHandle handle
+            = conference.registerSsrc("a", 1, "audio", false);
+        handle.setJitter(2);
+        scheduler.advance(Duration.ofMillis(PERIOD));
+        assertEquals(2.0, reported.get(1L).jitter_ms);
+
+        handle.setJitter(Double.NaN);
+        scheduler.advance(Duration.ofMillis(PERIOD));
+        assertNull(reported.get(1L).jitter_ms);
+    }
+
+    @Test
+    public void seesTheUpdatesOfAnotherThread()
+        throws InterruptedException
+    {
+        SsrcStatsHandle handle
+            = conference.registerSsrc("a", 1, "audio", false);
+
+        Thread producer = new Thread(() ->
+        {
+            for (int i = 0; i < 100_000; i++)
+            {
+                handle.addPacket(10);
+            }
+        });
+        producer.start();
+        // reports while the producer counts, never going backwards
+        long packets = 0;
+        while (producer.isAlive())
+        {
+            scheduler.advance(Duration.ofMillis(PERIOD));
+            SsrcStats stats = reported.get(1L);
+            if (stats != null)
+            {
+                assertTrue(stats.packets >= packets);
+                packets = stats.packets;
+            }
+        }
+        producer.join();
+
+        scheduler.advance(Duration.ofMillis(PERIOD));
+        assertEquals(100_000, reported.get(1L).packets);
+        assertEquals(1_000_000, reported.get(1L).bytes);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatsHistoryTest
+{
+    private static List<EndpointStats> endpoint(
+        String endpointId, String mediaType, long bytes)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = 1;
+        stats.mediaType = mediaType;
+        stats.bytes = bytes;
+
+        EndpointStats endpointStats = new EndpointStats(endpointId);
+        endpointStats.addReceiveStats(stats);
+        return List.of(endpointStats);
+    }
+
+    private static List<String> endpoints(
+        StatsHistory history, String conferenceID, String endpointID)
+    {
+        List<String> endpoints = new ArrayList<>();
+        history.query(conferenceID, endpointID, 0, Long.MAX_VALUE,
+            sample -> endpoints.add(sample.getEndpointId()));
+        return endpoints;
+    }
+
+    @Test
+    public void keepsNewestSamplesInOrder()
+    {
+        StatsHistory history = new StatsHistory(3, Long.MAX_VALUE);
+
+        for (int i = 0; i < 5; i++)
+        {
+            history.conferenceStats("c", i * 1000, endpoint("a", "audio", i));
+        }
+
+        List<Long> bytes = new ArrayList<>();
+        int count = history.query("c", null, 0, Long.MAX_VALUE,
+            sample -> bytes.add(sample.getBytes()));
+        assertEquals(3, count);
+        assertEquals(List.of(2L, 3L, 4L), bytes);
+
+        assertEquals(1, history.query("c", "a", 3000, 4000, sample -> { }));
+        assertEquals(0, history.query("c", "b", 0, Long.MAX_VALUE, s -> { }));
+    }
+
+    @Test
+    public void endpointChurnKeepsTheRing()
+    {
+        int capacity = 64;
+        StatsHistory history = new StatsHistory(capacity, Long.MAX_VALUE);
+
+        // far more endpoints than a short can index
+        for (int i = 0; i < 100_000; i++)
+        {
+            history.conferenceStats(
+                "c", i, endpoint("endpoint-" + i, "media-" + i % 100, i));
+            if (i % 2 == 0)
+            {
+                history.conferenceStats("c", i, endpoint("stable", "audio", i));
+            }
+
+            int added = i + 1 + (i / 2 + 1);
+            assertEquals(
+                Math.min(added, capacity),
+                history.query("c", null, 0, Long.MAX_VALUE, s -> { }));
+        }
+
+        List<String> endpoints = endpoints(history, "c", null);
+        assertEquals(capacity, endpoints.size());
+        assertEquals("endpoint-99999", endpoints.get(capacity - 1));
+        assertEquals("stable", endpoints.get(capacity - 2));
+        assertTrue(endpoints(history, "c", "endpoint-0").isEmpty());
+        assertEquals(
+            Collections.frequency(endpoints, "stable"),
+            endpoints(history, "c", "stable").size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUpdatedConference()
+    {
+        // room for two conferences of two samples
+        StatsHistory history = new StatsHistory(
+            2, 2 * 2 * StatsHistory.BYTES_PER_SAMPLE);
+
+        history.conferenceStats("a", 1000, endpoint("e", "audio", 1));
+        history.conferenceStats("b", 2000, endpoint("e", "audio", 1));
+        history.conferenceStats("a", 3000, endpoint("e", "audio", 2));
+        history.conferenceStats("c", 4000, endpoint("e", "audio", 1));
+
+        assertEquals(Set.of("a", "c"), history.getConferenceIDs());
+
+        history.conferenceStopped("a");
+        assertEquals(Set.of("c"), history.getConferenceIDs());
+        assertEquals(0, history.query("a", null, 0, Long.MAX_VALUE, s -> { }));
+    }
+
+    @Test
+    public void rejectsRingsTooLargeForTheDictionary()
+    {
+        assertThrows(IllegalArgumentException.class,
+            () -> new StatsHistory(0, Long.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class,
+            () -> new StatsHistory(
+                StatsHistory.MAX_SAMPLES_PER_CONFERENCE + 1, Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.stats.media.StatsLoadMonitor.*;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatsLoadMonitorTest
+{
+    private final StatsLoadMonitor monitor = new StatsLoadMonitor();
+
+    /**
+     * The changes the listener was notified of, and the threads it ran on.
+     */
+    private final BlockingQueue<LoadLevel[]> changes
+        = new LinkedBlockingQueue<>();
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    public void setUp()
+    {
+        monitor.addListener((oldLevel, newLevel) -> {
+            threads.add(Thread.currentThread());
+            changes.add(new LoadLevel[] { oldLevel, newLevel });
+        });
+    }
+
+    @Test
+    public void followsTheWorstSignal()
+        throws Exception
+    {
+        assertEquals(LoadLevel.NORMAL, monitor.getLoadLevel());
+
+        for (int i = 0; i < 20; i++)
+        {
+            monitor.recordTickLag(5000);
+        }
+        assertEquals(LoadLevel.SHEDDING, monitor.getLoadLevel());
+        awaitChangeTo(LoadLevel.SHEDDING);
+
+        // a good signal does not hide a bad one
+        for (int i = 0; i < 20; i++)
+        {
+            monitor.recordQueueDepth(0, 10);
+        }
+        assertEquals(LoadLevel.SHEDDING, monitor.getLoadLevel());
+
+        for (int i = 0; i < 40; i++)
+        {
+            monitor.recordTickLag(0);
+        }
+        assertEquals(LoadLevel.NORMAL, monitor.getLoadLevel());
+        awaitChangeTo(LoadLevel.NORMAL);
+
+        // the listener runs on the notifier thread
+        assertFalse(threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void notifiesConsistentChanges()
+        throws Exception
+    {
+        Thread[] recorders = new Thread[4];
+        for (int t = 0; t < recorders.length; t++)
+        {
+            recorders[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++)
+                {
+                    monitor.recordQueueDepth(i % 7 < 4 ? 10 : 0, 10);
+                }
+                for (int i = 0; i < 100; i++)
+                {
+                    monitor.recordQueueDepth(0, 10);
+                }
+            });
+            recorders[t].start();
+        }
+        for (Thread recorder : recorders)
+        {
+            recorder.join();
+        }
+        assertEquals(LoadLevel.NORMAL, monitor.getLoadLevel());
+
+        // wait for the notifications to settle
+        List<LoadLevel[]> received = new ArrayList<>();
+        LoadLevel[] change;
+        while ((change = changes.poll(300, TimeUnit.MILLISECONDS)) != null)
+        {
+            received.add(change);
+        }
+
+        // every change starts where the previous one ended
+        LoadLevel level = LoadLevel.NORMAL;
+        for (LoadLevel[] c : received)
+        {
+            assertEquals(level, c[0]);
+            assertNotEquals(c[0], c[1]);
+            level = c[1];
+        }
+        assertEquals(LoadLevel.NORMAL, level);
+    }
+
+    /**
+     * Waits for the listener to be notified of a change to <tt>level</tt>.
+     */
+    private void awaitChangeTo(LoadLevel level)
+        throws InterruptedException
+    {
+        while (true)
+        {
+            LoadLevel[] change = changes.poll(5, TimeUnit.SECONDS);
+            assertNotNull(change, "no change to " + level);
+            if (change[1] == level)
+            {
+                return;
+            }
+        }
+    }
+}
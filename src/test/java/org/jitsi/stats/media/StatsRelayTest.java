@@ -0,0 +1,158 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.function.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatsRelayTest
+{
+    private static final long PERIOD = 100;
+
+    private FakeCallStats callStats;
+
+    private StatsRelayServer server;
+
+    private StatsRelayClient client;
+
+    @BeforeEach
+    public void setUp()
+        throws IOException
+    {
+        callStats = new FakeCallStats();
+        StatsService statsService = new StatsService(1, callStats, false);
+        statsService.setInitialized(true);
+
+        server = new StatsRelayServer(statsService, "relay", PERIOD);
+        server.start(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new StatsRelayClient(server.getAddress());
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        client.close();
+        server.close();
+    }
+
+    private static List<EndpointStats> endpoint(String endpointId, long ssrc)
+    {
+        SsrcStats stats = new SsrcStats();
+        stats.ssrc = ssrc;
+        stats.mediaType = "audio";
+        stats.bytes = 1000;
+
+        EndpointStats endpointStats = new EndpointStats(endpointId);
+        endpointStats.addReceiveStats(stats);
+        return List.of(endpointStats);
+    }
+
+    private static void await(BooleanSupplier condition)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean())
+        {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void relaysConferencesWithTheirOrigin()
+        throws InterruptedException
+    {
+        // the same conference from two bridge processes
+        client.conferenceStarted("conference", "/site", "jvb-1");
+        client.conferenceStarted("other", "/site", "jvb-1");
+        StatsRelayClient second = new StatsRelayClient(server.getAddress());
+        try
+        {
+            second.conferenceStarted("conference", "/site", "jvb-2");
+            await(() -> server.getConferenceCount() == 3);
+
+            client.conferenceStats("conference", 1, endpoint("a", 1));
+            second.conferenceStats("conference", 1, endpoint("b", 2));
+            await(() -> callStats.reports.contains("a:1")
+                && callStats.reports.contains("b:2"));
+
+            Set<String> setUp = new HashSet<>();
+            for (int i = 0; i < callStats.setUp.size(); i++)
+            {
+                setUp.add(callStats.setUp.get(i)
+                    + ":" + callStats.initiators.get(i));
+            }
+            assertEquals(
+                Set.of("conference:jvb-1", "conference:jvb-2", "other:jvb-1"),
+                setUp);
+
+            client.conferenceStopped("conference");
+            await(() -> server.getConferenceCount() == 2);
+        }
+        finally
+        {
+            second.close();
+        }
+
+        // the second client disconnecting stops its conference
+        await(() -> server.getConferenceCount() == 1);
+        client.conferenceStopped("other");
+        await(() -> server.getConferenceCount() == 0);
+        await(() -> callStats.terminated.size() == 3);
+    }
+
+    @Test
+    public void reportsUnknownOriginAsTheServer()
+        throws InterruptedException
+    {
+        // the client was added as a sink after the conference started
+        client.conferenceStats("conference", 1, endpoint("a", 1));
+
+        await(() -> callStats.reports.contains("a:1"));
+        assertEquals(List.of("relay"), callStats.initiators);
+    }
+
+    @Test
+    public void queueIsBounded()
+        throws IOException
+    {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+
+        // nothing listens, the frames pile up
+        try (StatsRelayClient unconnected = new StatsRelayClient(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 2))
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                unconnected.conferenceStarted("c" + i, "/", "jvb");
+                unconnected.conferenceStats("c" + i, 1, endpoint("a", 1));
+            }
+            // at most 4 queued and one taken by the writer
+            assertTrue(unconnected.getDroppedFrames() >= 200 - 5);
+        }
+    }
+}
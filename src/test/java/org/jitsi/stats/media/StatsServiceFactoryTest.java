@@ -0,0 +1,252 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import io.callstats.sdk.*;
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatsServiceFactoryTest
+{
+    private static final long PERIOD = 1000;
+
+    private static final int ASYNC_ID = 100;
+
+    private final StatsServiceFactory factory
+        = StatsServiceFactory.getInstance();
+
+    private FakeCallStats callStats;
+
+    private StatsService statsService;
+
+    private final List<TestConference> conferences = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp()
+    {
+        callStats = new FakeCallStats();
+        statsService = new StatsService(1, callStats, false);
+        statsService.setInitialized(true);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        for (TestConference conference : conferences)
+        {
+            conference.release.countDown();
+            conference.stop();
+        }
+        factory.stopStatsService(ASYNC_ID);
+        factory.setCallStatsSupplier(CallStats::new);
+        factory.setClock(StatsClock.SYSTEM);
+    }
+
+    /**
+     * Starts initializing a service on a virtual clock, with a 5 s deadline
+     * and 2 retries.
+     */
+    private CompletableFuture<StatsService> createStatsServiceAsync(
+        VirtualTimeScheduler scheduler)
+    {
+        factory.setClock(scheduler);
+        factory.setCallStatsSupplier(() -> callStats);
+        return factory.createStatsServiceAsync(
+            null, ASYNC_ID, "secret", null, null, "jvb", false,
+            Duration.ofSeconds(5), 2);
+    }
+
+    private StatsService getAsyncService()
+    {
+        for (StatsService statsService : factory.getStatsServices())
+        {
+            if (statsService.getId() == ASYNC_ID)
+            {
+                return statsService;
+            }
+        }
+        return null;
+    }
+
+    private TestConference startConference(String conferenceID)
+    {
+        return startConference(statsService, conferenceID);
+    }
+
+    private TestConference startConference(
+        StatsService statsService, String conferenceID)
+    {
+        TestConference conference
+            = new TestConference(statsService, conferenceID, PERIOD);
+        conferences.add(conference);
+        conference.start();
+        conference.registerSsrc("a", 1, "audio", false);
+        return conference;
+    }
+
+    @Test
+    public void shutdownReportsAndTerminatesConferences()
+    {
+        startConference("first");
+        startConference("second");
+
+        StatsServiceFactory.ShutdownReport report
+            = factory.shutdown(Duration.ofSeconds(5));
+
+        assertTrue(report.isComplete(), report.toString());
+        assertEquals(2, report.getTerminatedConferences());
+        assertEquals(
+            new HashSet<>(List.of("first", "second")),
+            new HashSet<>(callStats.terminated));
+        // one last report each
+        assertEquals(List.of("a:1", "a:1"), callStats.reports);
+        assertTrue(factory.getConferenceRegistry().getConferences().isEmpty());
+    }
+
+    @Test
+    public void shutdownAbandonsConferencesPastDeadline()
+    {
+        // in another service, which is terminated concurrently
+        StatsService slowService
+            = new StatsService(2, new FakeCallStats(), false);
+        slowService.setInitialized(true);
+
+        startConference("fast");
+        TestConference slow = startConference(slowService, "slow");
+        slow.block();
+
+        long start = System.nanoTime();
+        StatsServiceFactory.ShutdownReport report
+            = factory.shutdown(Duration.ofMillis(300));
+        long elapsedMs
+            = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMs < 3000, "shutdown took " + elapsedMs + " ms");
+        assertFalse(report.isComplete(), report.toString());
+        assertEquals(1, report.getTerminatedConferences());
+        assertEquals(List.of("slow"), report.getTimedOutConferences());
+        assertTrue(callStats.terminated.contains("fast"));
+    }
+
+    @Test
+    public void initializesWithoutBlocking()
+    {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler(0);
+        CompletableFuture<StatsService> future
+            = createStatsServiceAsync(scheduler);
+
+        // the attempt runs on the clock, not on the calling thread
+        assertFalse(future.isDone());
+        assertTrue(callStats.initListeners.isEmpty());
+        StatsService statsService = getAsyncService();
+        assertEquals(
+            StatsService.HealthState.INITIALIZING,
+            statsService.getHealthState());
+
+        // a conference started meanwhile is set up once initialized
+        startConference(statsService, "early");
+        scheduler.advance(Duration.ZERO);
+        assertEquals(1, callStats.initListeners.size());
+        assertTrue(callStats.setUp.isEmpty());
+
+        callStats.initListeners.get(0).onInitialized("ok");
+
+        assertSame(statsService, future.join());
+        assertTrue(statsService.isInitialized());
+        assertEquals(
+            StatsService.HealthState.READY, statsService.getHealthState());
+        assertEquals(List.of("early"), callStats.setUp);
+
+        // asking again returns the same service
+        assertSame(
+            statsService,
+            factory.createStatsServiceAsync(
+                null, ASYNC_ID, "secret", null, null, "jvb", false,
+                Duration.ofSeconds(5), 2).join());
+    }
+
+    @Test
+    public void retriesWithBackoffUntilItGivesUp()
+    {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler(0);
+        CompletableFuture<StatsService> future
+            = createStatsServiceAsync(scheduler);
+        StatsService statsService = getAsyncService();
+
+        // the first attempt times out, and is retried after 1 s
+        scheduler.advance(Duration.ofSeconds(5));
+        assertEquals(
+            StatsService.HealthState.RETRYING, statsService.getHealthState());
+        scheduler.advance(Duration.ofMillis(999));
+        assertEquals(1, callStats.initListeners.size());
+        scheduler.advance(Duration.ofMillis(1));
+        assertEquals(2, callStats.initListeners.size());
+        assertEquals(
+            StatsService.HealthState.INITIALIZING,
+            statsService.getHealthState());
+
+        // the second one fails, and is retried after 2 s
+        callStats.initListeners.get(1).onError(
+            CallStatsErrors.HTTP_ERROR, "unreachable");
+        scheduler.advance(Duration.ofMillis(1999));
+        assertEquals(2, callStats.initListeners.size());
+        scheduler.advance(Duration.ofMillis(1));
+        assertEquals(3, callStats.initListeners.size());
+
+        // the last retry fails too
+        callStats.initListeners.get(2).onError(
+            CallStatsErrors.AUTH_ERROR, "denied");
+
+        CompletionException e
+            = assertThrows(CompletionException.class, future::join);
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals(
+            StatsService.HealthState.FAILED, statsService.getHealthState());
+        assertNull(getAsyncService());
+
+        // nothing is attempted anymore
+        scheduler.advance(Duration.ofMinutes(5));
+        assertEquals(3, callStats.initListeners.size());
+    }
+
+    @Test
+    public void ignoresLateFailuresOfPreviousAttempts()
+    {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler(0);
+        CompletableFuture<StatsService> future
+            = createStatsServiceAsync(scheduler);
+
+        scheduler.advance(Duration.ofSeconds(5));
+
+        // the timed out attempt fails while waiting for the retry
+        callStats.initListeners.get(0).onError(
+            CallStatsErrors.HTTP_ERROR, "late");
+        scheduler.advance(Duration.ofSeconds(1));
+        assertEquals(2, callStats.initListeners.size());
+
+        // its deadline does not fail the retry either
+        scheduler.advance(Duration.ofSeconds(4));
+        callStats.initListeners.get(1).onInitialized("ok");
+
+        assertTrue(future.join().isInitialized());
+        assertEquals(2, callStats.initListeners.size());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A conference reporting the streams registered with it, which can be
+ * made to block while collecting them.
+ */
+class TestConference
+    extends AbstractStatsPeriodicRunnable<Object>
+{
+    /**
+     * Counted down when collecting the stats once blocking.
+     */
+    final CountDownLatch entered = new CountDownLatch(1);
+
+    /**
+     * Opened to let the blocked collections return.
+     */
+    final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * The threads collecting the stats, and their maximum.
+     */
+    final AtomicInteger concurrent = new AtomicInteger();
+    final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private volatile boolean blocking = false;
+
+    TestConference(StatsService statsService, String conferenceID, long period)
+    {
+        super(new Object(), period, statsService, conferenceID, "/", "jvb");
+    }
+
+    void block()
+    {
+        blocking = true;
+    }
+
+    @Override
+    protected List<EndpointStats> getEndpointStats()
+    {
+        int running = concurrent.incrementAndGet();
+        maxConcurrent.accumulateAndGet(running, Math::max);
+        try
+        {
+            if (blocking)
+            {
+                entered.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return super.getEndpointStats();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+        finally
+        {
+            concurrent.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright @ 2015 - present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.stats.media;
+
+import org.jitsi.utils.concurrent.*;
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VirtualTimeSchedulerTest
+{
+    private final VirtualTimeScheduler scheduler
+        = new VirtualTimeScheduler(1000);
+
+    @Test
+    public void runsTasksInOrderOfDueTime()
+    {
+        List<String> runs = new ArrayList<>();
+        scheduler.schedule(() -> runs.add("b"), 20, TimeUnit.MILLISECONDS);
+        scheduler.schedule(() -> runs.add("a"), 10, TimeUnit.MILLISECONDS);
+        scheduler.schedule(() -> runs.add("c"), 20, TimeUnit.MILLISECONDS);
+        scheduler.schedule(() -> runs.add("d"), 30, TimeUnit.MILLISECONDS);
+
+        scheduler.advance(Duration.ofMillis(20));
+
+        assertEquals(List.of("a", "b", "c"), runs);
+        assertEquals(1020, scheduler.millis());
+        assertEquals(3, scheduler.getExecutedTasks());
+    }
+
+    @Test
+    public void runsPeriodicRunnableEveryPeriod()
+    {
+        List<Long> runs = new ArrayList<>();
+        PeriodicRunnable runnable = new PeriodicRunnable(100)
+        {
+            @Override
+            public void run()
+            {
+                super.run();
+                runs.add(scheduler.millis());
+            }
+        };
+
+        assertTrue(scheduler.registerRecurringRunnable(runnable));
+        assertFalse(scheduler.registerRecurringRunnable(runnable));
+
+        scheduler.advance(Duration.ofMillis(350));
+        assertEquals(List.of(1100L, 1200L, 1300L), runs);
+
+        assertTrue(scheduler.deRegisterRecurringRunnable(runnable));
+        scheduler.advance(Duration.ofMillis(500));
+        assertEquals(3, runs.size());
+    }
+
+    @Test
+    public void getReturnsOutcome()
+        throws Exception
+    {
+        ScheduledFuture<?> done
+            = scheduler.schedule(() -> {}, 10, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> failed = scheduler.schedule(
+            () -> { throw new IllegalStateException(); },
+            10, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> cancelled
+            = scheduler.schedule(() -> {}, 10, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> pending
+            = scheduler.schedule(() -> {}, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(cancelled.cancel(false));
+        scheduler.advance(Duration.ofMillis(10));
+
+        assertTrue(done.isDone());
+        assertNull(done.get());
+
+        ExecutionException e
+            = assertThrows(ExecutionException.class, failed::get);
+        assertTrue(e.getCause() instanceof IllegalStateException);
+
+        assertTrue(cancelled.isCancelled());
+        assertThrows(CancellationException.class, cancelled::get);
+
+        assertFalse(pending.isDone());
+        assertThrows(
+            TimeoutException.class,
+            () -> pending.get(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void getWaitsForAdvance()
+        throws Exception
+    {
+        ScheduledFuture<?> task
+            = scheduler.schedule(() -> {}, 10, TimeUnit.MILLISECONDS);
+
+        Thread advancing = new Thread(() -> {
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            scheduler.advance(Duration.ofMillis(10));
+        });
+        advancing.start();
+
+        assertNull(task.get(5, TimeUnit.SECONDS));
+        advancing.join();
+    }
+}